@@ -0,0 +1,33 @@
+package org.github.whisper4j.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.Whisper;
+
+/**
+ * Helpers shared by the benchmarks
+ */
+class BenchmarkFiles {
+	static final String SINGLE = "1m:1d";
+	static final String CARBON = "10s:1d,1m:7d,10m:5y";
+
+	static RetentionDef[] layout(String layout) {
+		return RetentionDef.parseRetentionDefs(layout);
+	}
+
+	static String create(String name, String layout,
+			AggregationMethod method) throws Exception {
+		File file = File.createTempFile("whisper-" + name, ".wsp");
+		file.delete();
+		new Whisper().create(file.getPath(), layout(layout), 0.5f, method);
+		file.deleteOnExit();
+		return file.getPath();
+	}
+
+	static void delete(String path) throws IOException {
+		new File(path).delete();
+	}
+}
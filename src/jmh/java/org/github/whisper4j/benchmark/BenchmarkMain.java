@@ -0,0 +1,18 @@
+package org.github.whisper4j.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so every result comes
+ * with its allocation rate. Takes the usual JMH command line options.
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder().parent(commandLine)
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,65 @@
+package org.github.whisper4j.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Whisper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whisper.create of small and large files, sparse or preallocated. 1s:30d
+ * is about 31MB.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateBenchmark {
+	@Param({ BenchmarkFiles.SINGLE, BenchmarkFiles.CARBON, "1s:30d" })
+	public String layout;
+
+	@Param({ "false", "true" })
+	public boolean preallocate;
+
+	private Whisper whisper;
+	private String path;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		whisper = new Whisper();
+		whisper.setPreallocate(preallocate);
+		File file = File.createTempFile("whisper-create", ".wsp");
+		path = file.getPath();
+	}
+
+	@Setup(Level.Invocation)
+	public void deleteFile() {
+		new File(path).delete();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		new File(path).delete();
+	}
+
+	@Benchmark
+	public void create() throws Exception {
+		whisper.create(path, BenchmarkFiles.layout(layout), 0.5f,
+				AggregationMethod.Average);
+	}
+}
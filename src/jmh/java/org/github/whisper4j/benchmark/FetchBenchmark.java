@@ -0,0 +1,93 @@
+package org.github.whisper4j.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Point;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WhisperFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whisper.file_fetch on an open file with a single 1m:1d archive, for an
+ * hour or the full day, with the requested range either in one piece or
+ * wrapping around the end of the archive
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FetchBenchmark {
+	@Param({ "short", "full" })
+	public String range;
+
+	@Param({ "false", "true" })
+	public boolean wrap;
+
+	private Whisper whisper;
+	private String path;
+	private WhisperFile file;
+	private int from;
+	private int until;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		whisper = new Whisper();
+		path = BenchmarkFiles.create("fetch", BenchmarkFiles.SINGLE, AggregationMethod.Average);
+		int now = Whisper.time();
+		now -= now % 60;
+		// The first point written becomes slot 0 of the archive
+		int base = wrap ? now - 12 * 3600 : now - 23 * 3600 - 1800;
+		List<Point> points = new ArrayList<Point>();
+		for (long t = base; t <= now; t += 60) {
+			Point point = new Point();
+			point.timestamp = t;
+			point.value = t;
+			points.add(point);
+		}
+		whisper.update_many(path, points.subList(0, 1));
+		whisper.update_many(path, points);
+
+		if (range.equals("short")) {
+			from = wrap ? base - 1800 : base;
+			until = from + 3600;
+		} else {
+			from = wrap ? now - 23 * 3600 - 3000 : base;
+			until = now;
+		}
+		file = new WhisperFile(path, false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		file.close();
+		BenchmarkFiles.delete(path);
+	}
+
+	@Benchmark
+	public TimeInfo fetch() throws Exception {
+		return whisper.file_fetch(file, from, until);
+	}
+
+	@Benchmark
+	public TimeInfo fetchValues() throws Exception {
+		return whisper.file_fetchValues(file, from, until);
+	}
+}
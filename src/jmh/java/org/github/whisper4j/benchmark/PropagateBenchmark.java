@@ -0,0 +1,77 @@
+package org.github.whisper4j.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Header;
+import org.github.whisper4j.Point;
+import org.github.whisper4j.Propagation;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WhisperFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Propagation.__propagate from a full 10s archive into the 1m archive below
+ * it, for every aggregation method
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropagateBenchmark {
+	@Param({ "Average", "Sum", "Last", "Max", "Min" })
+	public AggregationMethod method;
+
+	private String path;
+	private WhisperFile file;
+	private Header header;
+	private int start;
+	private int i;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		path = BenchmarkFiles.create("propagate", BenchmarkFiles.CARBON, method);
+		int now = Whisper.time();
+		now -= now % 60;
+		start = now - 3600;
+		List<Point> points = new ArrayList<Point>();
+		for (long t = start; t < now; t += 10) {
+			Point point = new Point();
+			point.timestamp = t;
+			point.value = t % 97;
+			points.add(point);
+		}
+		new Whisper().update_many(path, points);
+		file = new WhisperFile(path, true);
+		header = file.getHeader();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		file.close();
+		BenchmarkFiles.delete(path);
+	}
+
+	@Benchmark
+	public boolean propagate() throws Exception {
+		long timestamp = start + 60L * (i++ % 60);
+		return Propagation.__propagate(file, header, timestamp,
+				header.archiveInfo.get(0), header.archiveInfo.get(1));
+	}
+}
@@ -0,0 +1,66 @@
+package org.github.whisper4j.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.github.whisper4j.Point;
+import org.github.whisper4j.Whisper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of packed points as read from an archive
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnpackBenchmark {
+	@Param({ "60", "1440", "8640" })
+	public int points;
+
+	private byte[] series;
+	private ByteBuffer buffer;
+	private int start;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		start = 1300000000;
+		buffer = ByteBuffer.allocate(points * 12);
+		for (int i = 0; i < points; i++) {
+			// Every tenth slot left empty
+			buffer.putInt(i % 10 == 0 ? 0 : start + 60 * i);
+			buffer.putDouble(i);
+		}
+		series = buffer.array();
+	}
+
+	@Benchmark
+	public Point[] unpackPointsArray() {
+		return Whisper.unpackPoints(series, start, 60);
+	}
+
+	@Benchmark
+	public Point[] unpackPointsBuffer() {
+		buffer.clear();
+		return Whisper.unpackPoints(buffer, start, 60);
+	}
+
+	@Benchmark
+	public double[] unpackValues() {
+		buffer.clear();
+		return Whisper.unpackValues(buffer, start, 60);
+	}
+}
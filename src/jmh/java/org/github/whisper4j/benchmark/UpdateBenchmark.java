@@ -0,0 +1,60 @@
+package org.github.whisper4j.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Whisper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whisper.update of a single point, walking forward through the last hour so
+ * every update lands in a new slot of the top archive and propagates
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateBenchmark {
+	@Param({ BenchmarkFiles.SINGLE, BenchmarkFiles.CARBON })
+	public String layout;
+
+	private Whisper whisper;
+	private String path;
+	private int start;
+	private int step;
+	private int i;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		whisper = new Whisper();
+		path = BenchmarkFiles.create("update", layout, AggregationMethod.Average);
+		step = BenchmarkFiles.layout(layout)[0].secondsPerPoint;
+		int now = Whisper.time();
+		start = now - (now % step) - 3600;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		BenchmarkFiles.delete(path);
+	}
+
+	@Benchmark
+	public void update() throws Exception {
+		long timestamp = start + (long) step * (i++ % (3600 / step));
+		whisper.update(path, i, timestamp);
+	}
+}
@@ -0,0 +1,64 @@
+package org.github.whisper4j;
+
+/**
+ * A running aggregate of the known values of one interval: count, sum,
+ * minimum, maximum and last value, enough for every
+ * {@link AggregationMethod} without keeping the values themselves
+ */
+final class Aggregate {
+	int count;
+	double sum;
+	double min;
+	double max;
+	double last;
+
+	Aggregate() {
+		reset();
+	}
+
+	void reset() {
+		count = 0;
+		sum = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+		last = Double.NaN;
+	}
+
+	void add(double value) {
+		count++;
+		sum += value;
+		if (value < min) {
+			min = value;
+		}
+		if (value > max) {
+			max = value;
+		}
+		last = value;
+	}
+
+	/**
+	 * Whether enough of the expected values are known for xFilesFactor
+	 */
+	boolean isKnownEnough(float xFilesFactor, int expected) {
+		return count > 0 && (float) count / (float) expected >= xFilesFactor;
+	}
+
+	double value(AggregationMethod aggregationMethod)
+			throws InvalidAggregationMethodException {
+		switch (aggregationMethod) {
+		case Average:
+			return sum / count;
+		case Sum:
+			return sum;
+		case Last:
+			return last;
+		case Max:
+			return max;
+		case Min:
+			return min;
+		default:
+			throw new InvalidAggregationMethodException(
+					"Unrecognized aggregation method " + aggregationMethod);
+		}
+	}
+}
@@ -12,6 +12,8 @@ public enum AggregationMethod {
 	Min(5);
 
 	private final int i;
+	// values() copies the array on every call
+	private static final AggregationMethod[] METHODS = values();
 
 	private AggregationMethod(int i) {
 		this.i = i;
@@ -22,7 +24,7 @@ public enum AggregationMethod {
 	}
 	
 	public static AggregationMethod fromInt(int j){
-		for(AggregationMethod aggregationMethod:AggregationMethod.values()){
+		for(AggregationMethod aggregationMethod:METHODS){
 			if(aggregationMethod.i == j){
 				return aggregationMethod;
 			}
@@ -0,0 +1,193 @@
+package org.github.whisper4j;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Digests of the points of a whisper file, per archive and per block of
+ * intervals, as {@link WhisperFill} compares them.
+ *
+ * Blocks are aligned to time, so the blocks of two replicas cover the same
+ * intervals whatever the position of their ring buffers. The digest of a
+ * block is the sum of a 64 bit mix of every point stored for one of its
+ * intervals: it does not depend on the order the points are found in, and
+ * a block without points has digest 0. Every archive keeps the blocks of
+ * its retention, older blocks make room for newer ones.
+ *
+ * Digests are plain values. They can be kept between fills, or taken on the
+ * host of one replica and sent to the host of the other, so only blocks
+ * that differ need to be read.
+ */
+public class BlockDigests implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final long UNKNOWN = Long.MIN_VALUE;
+
+	private final int blockPoints;
+	// Per archive
+	private final long[] steps;
+	private final long[] spans;
+	private final long[][] starts;
+	private final long[][] digests;
+
+	BlockDigests(int blockPoints, List<ArchiveInfo> archives) {
+		this.blockPoints = blockPoints;
+		int count = archives.size();
+		steps = new long[count];
+		spans = new long[count];
+		starts = new long[count][];
+		digests = new long[count][];
+		for (int i = 0; i < count; i++) {
+			ArchiveInfo archive = archives.get(i);
+			steps[i] = archive.secondsPerPoint;
+			spans[i] = span(blockPoints, archive);
+			int blocks = (int) ((archive.retention + spans[i] - 1) / spans[i]) + 1;
+			starts[i] = new long[blocks];
+			Arrays.fill(starts[i], UNKNOWN);
+			digests[i] = new long[blocks];
+		}
+	}
+
+	/**
+	 * Takes the digests of every block within the retention of each archive
+	 * of file, in one sequential pass over the archives
+	 *
+	 * @param file
+	 * @param blockPoints
+	 *            intervals per block
+	 * @param now
+	 *            seconds since the epoch
+	 */
+	static BlockDigests read(WhisperFile file, int blockPoints, long now)
+			throws CorruptWhisperFile {
+		List<ArchiveInfo> archives = file.getHeader().archiveInfo;
+		BlockDigests result = new BlockDigests(blockPoints, archives);
+		for (int i = 0; i < archives.size(); i++) {
+			ArchiveInfo archive = archives.get(i);
+			long span = result.spans[i];
+			long first = now - archive.retention;
+			first -= Whisper.mod(first, span);
+			long last = now - Whisper.mod(now, span);
+			for (long start = first; start <= last; start += span) {
+				result.set(i, start, 0);
+			}
+			int end = archive.offset + archive.size;
+			for (int offset = archive.offset; offset < end; offset += Point
+					.sizeof()) {
+				long timestamp = file.readTimestamp(offset);
+				if (timestamp != 0) {
+					result.add(i, timestamp, file.readValue(offset));
+				}
+			}
+		}
+		return result;
+	}
+
+	static long span(int blockPoints, ArchiveInfo archive) {
+		return (long) Math.min(blockPoints, archive.points)
+				* archive.secondsPerPoint;
+	}
+
+	/**
+	 * Whether these digests were taken from a file with the given archives
+	 */
+	boolean matches(int blockPoints, List<ArchiveInfo> archives) {
+		if (blockPoints != this.blockPoints || archives.size() != steps.length) {
+			return false;
+		}
+		for (int i = 0; i < steps.length; i++) {
+			ArchiveInfo archive = archives.get(i);
+			if (archive.secondsPerPoint != steps[i]
+					|| span(blockPoints, archive) != spans[i]
+					|| starts[i].length != (int) ((archive.retention
+							+ spans[i] - 1) / spans[i]) + 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getBlockPoints() {
+		return blockPoints;
+	}
+
+	public int getArchiveCount() {
+		return steps.length;
+	}
+
+	/**
+	 * Seconds covered by one block of archive
+	 */
+	public long getSpan(int archive) {
+		return spans[archive];
+	}
+
+	/**
+	 * Whether there is a digest for the block of archive starting at start
+	 */
+	public boolean isKnown(int archive, long start) {
+		return starts[archive][slot(archive, start)] == start;
+	}
+
+	/**
+	 * The digest of the block of archive starting at start, only meaningful
+	 * when {@link #isKnown(int, long)}
+	 */
+	public long get(int archive, long start) {
+		return digests[archive][slot(archive, start)];
+	}
+
+	void set(int archive, long start, long digest) {
+		int slot = slot(archive, start);
+		starts[archive][slot] = start;
+		digests[archive][slot] = digest;
+	}
+
+	/**
+	 * Forgets the block of archive holding interval
+	 */
+	void forget(int archive, long interval) {
+		long start = interval - Whisper.mod(interval, spans[archive]);
+		int slot = slot(archive, start);
+		if (starts[archive][slot] == start) {
+			starts[archive][slot] = UNKNOWN;
+		}
+	}
+
+	/**
+	 * Accounts for a point stored in archive, if its block is known
+	 */
+	void add(int archive, long interval, double value) {
+		long start = interval - Whisper.mod(interval, spans[archive]);
+		int slot = slot(archive, start);
+		if (starts[archive][slot] == start) {
+			digests[archive][slot] += mix(interval, value);
+		}
+	}
+
+	/**
+	 * Accounts for a point overwritten in archive, if its block is known
+	 */
+	void remove(int archive, long interval, double value) {
+		long start = interval - Whisper.mod(interval, spans[archive]);
+		int slot = slot(archive, start);
+		if (starts[archive][slot] == start) {
+			digests[archive][slot] -= mix(interval, value);
+		}
+	}
+
+	private int slot(int archive, long start) {
+		return (int) Whisper.mod(start / spans[archive], starts[archive].length);
+	}
+
+	/**
+	 * Spreads a point over 64 bits, the finalizer of SplitMix64
+	 */
+	static long mix(long interval, double value) {
+		long h = interval * 0x9e3779b97f4a7c15L
+				^ Double.doubleToLongBits(value);
+		h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+		h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+		return h ^ (h >>> 31);
+	}
+}
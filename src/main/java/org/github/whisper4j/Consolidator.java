@@ -0,0 +1,66 @@
+package org.github.whisper4j;
+
+import java.util.Arrays;
+
+/**
+ * Reduces a stream of intervals into buckets of a wider step, one
+ * {@link Aggregate} at a time, as they are read
+ */
+class Consolidator implements PointConsumer {
+	private final AggregationMethod function;
+	private final long bucketStep;
+	private final long firstBucket;
+	private final double[] values;
+	private final Aggregate aggregate = new Aggregate();
+	private int current = -1;
+
+	/**
+	 * @param function
+	 *            how the values of a bucket are combined, not null
+	 * @param firstBucket
+	 *            start of the first bucket
+	 * @param bucketStep
+	 * @param buckets
+	 *            number of buckets
+	 */
+	Consolidator(AggregationMethod function, long firstBucket,
+			long bucketStep, int buckets) {
+		this.function = function;
+		this.firstBucket = firstBucket;
+		this.bucketStep = bucketStep;
+		this.values = new double[buckets];
+		Arrays.fill(values, Double.NaN);
+	}
+
+	public void accept(long timestamp, double value) {
+		int bucket = (int) ((timestamp - firstBucket) / bucketStep);
+		if (bucket != current) {
+			flush();
+			current = bucket;
+		}
+		if (!Double.isNaN(value)) {
+			aggregate.add(value);
+		}
+	}
+
+	private void flush() {
+		if (current >= 0 && current < values.length && aggregate.count > 0) {
+			try {
+				values[current] = aggregate.value(function);
+			} catch (InvalidAggregationMethodException e) {
+				// function is checked to be non null by the caller
+				throw new IllegalStateException(e);
+			}
+		}
+		aggregate.reset();
+	}
+
+	/**
+	 * The value of every bucket, NaN where no interval had a value
+	 */
+	double[] finish() {
+		flush();
+		current = -1;
+		return values;
+	}
+}
@@ -0,0 +1,251 @@
+package org.github.whisper4j;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deferred propagation to lower precision archives.
+ *
+ * When set on a {@link Whisper} with
+ * {@link Whisper#setDeferredRollup(DeferredRollup)}, updates only write the
+ * highest precision archive and record which interval of the next archive
+ * they made dirty. A background thread rolls the dirty intervals up once
+ * they have closed, each interval once however many points were written
+ * into it. A rollup makes an interval of the archive below dirty in turn,
+ * which is held back the same way until it has closed too. Until then
+ * fetches from the lower archives do not see the new points; {@link #flush()}
+ * rolls up everything, closed or not, all the way down.
+ */
+public class DeferredRollup {
+	private final Whisper whisper;
+	private final long period;
+	private final TimeUnit unit;
+	private final ConcurrentHashMap<String, Dirty> dirty = new ConcurrentHashMap<String, Dirty>();
+	private ScheduledExecutorService executor;
+
+	private final AtomicLong rollups = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private volatile Exception lastError;
+
+	/**
+	 * @param whisper
+	 *            used to propagate, normally the one this is set on
+	 * @param period
+	 *            how often closed intervals are rolled up
+	 * @param unit
+	 */
+	public DeferredRollup(Whisper whisper, long period, TimeUnit unit) {
+		this.whisper = whisper;
+		this.period = period;
+		this.unit = unit;
+	}
+
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "whisper-rollup");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				rollup(false);
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Stops the background thread and rolls up everything still dirty
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		ScheduledExecutorService current;
+		synchronized (this) {
+			current = executor;
+			executor = null;
+		}
+		if (current != null) {
+			current.shutdown();
+			current.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		flush();
+	}
+
+	/**
+	 * Rolls up all dirty intervals now, including those still open
+	 */
+	public void flush() {
+		rollup(true);
+	}
+
+	/**
+	 * Records that points were written to archive at the given intervals, so
+	 * the matching intervals of the archive below it need a rollup
+	 */
+	void markDirty(String path, Header header, ArchiveInfo archive,
+			long[] intervals, int count) {
+		int index = header.archiveInfo.indexOf(archive);
+		if (index < 0 || index + 1 >= header.archiveInfo.size()) {
+			return;
+		}
+		int lowerStep = header.archiveInfo.get(index + 1).secondsPerPoint;
+		while (true) {
+			Dirty entry = dirty.get(path);
+			if (entry == null) {
+				Dirty created = new Dirty(header.archiveInfo.size());
+				entry = dirty.putIfAbsent(path, created);
+				if (entry == null) {
+					entry = created;
+				}
+			}
+			synchronized (entry) {
+				if (entry.removed) {
+					// Emptied and removed by a rollup, try again
+					continue;
+				}
+				if (index >= entry.intervals.size()) {
+					// The file was resized since
+					return;
+				}
+				entry.steps[index] = lowerStep;
+				NavigableSet<Long> set = entry.intervals.get(index);
+				for (int i = 0; i < count; i++) {
+					set.add(intervals[i] - Whisper.mod(intervals[i], lowerStep));
+				}
+				return;
+			}
+		}
+	}
+
+	private void rollup(boolean all) {
+		long now = Whisper.time();
+		for (Map.Entry<String, Dirty> e : dirty.entrySet()) {
+			Dirty entry = e.getValue();
+			List<NavigableSet<Long>> batch;
+			synchronized (entry) {
+				batch = entry.take(now, all);
+				if (entry.isEmpty()) {
+					// Files written once must not stay in the map forever
+					entry.removed = true;
+					dirty.remove(e.getKey(), entry);
+				}
+			}
+			if (batch == null) {
+				continue;
+			}
+			try {
+				// A flush cascades right away, otherwise the intervals made
+				// dirty below wait until they close
+				rollups.addAndGet(whisper.rollup(e.getKey(), batch, all ? null
+						: this));
+			} catch (Exception ex) {
+				errors.incrementAndGet();
+				lastError = ex;
+			}
+		}
+	}
+
+	/**
+	 * Number of intervals waiting to be rolled up
+	 */
+	public int getDirtyIntervals() {
+		int count = 0;
+		for (Dirty entry : dirty.values()) {
+			synchronized (entry) {
+				for (NavigableSet<Long> set : entry.intervals) {
+					count += set.size();
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Number of files with intervals waiting to be rolled up
+	 */
+	public int getDirtyFiles() {
+		return dirty.size();
+	}
+
+	/**
+	 * Number of intervals propagated so far, including cascades
+	 */
+	public long getRollups() {
+		return rollups.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public Exception getLastError() {
+		return lastError;
+	}
+
+	private static class Dirty {
+		// Per archive, the dirty intervals of the archive below it
+		final List<NavigableSet<Long>> intervals;
+		final int[] steps;
+		boolean removed;
+
+		Dirty(int archives) {
+			intervals = new ArrayList<NavigableSet<Long>>(archives);
+			for (int i = 0; i < archives; i++) {
+				intervals.add(new TreeSet<Long>());
+			}
+			steps = new int[archives];
+		}
+
+		/**
+		 * Removes and returns the intervals that closed before now, or all of
+		 * them, or null if there are none
+		 */
+		synchronized List<NavigableSet<Long>> take(long now, boolean all) {
+			List<NavigableSet<Long>> batch = null;
+			for (int i = 0; i < intervals.size(); i++) {
+				NavigableSet<Long> set = intervals.get(i);
+				NavigableSet<Long> closed = all ? set : set.headSet(now
+						- steps[i], true);
+				if (closed.isEmpty()) {
+					continue;
+				}
+				if (batch == null) {
+					batch = new ArrayList<NavigableSet<Long>>(intervals.size());
+					for (int j = 0; j < intervals.size(); j++) {
+						batch.add(new TreeSet<Long>());
+					}
+				}
+				for (Iterator<Long> it = closed.iterator(); it.hasNext();) {
+					batch.get(i).add(it.next());
+					it.remove();
+				}
+			}
+			return batch;
+		}
+
+		synchronized boolean isEmpty() {
+			for (NavigableSet<Long> set : intervals) {
+				if (!set.isEmpty()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
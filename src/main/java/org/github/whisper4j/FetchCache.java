@@ -0,0 +1,289 @@
+package org.github.whisper4j;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A read-through cache of fetched ranges, for dashboards that ask for the
+ * same ranges over and over.
+ *
+ * Ranges are cached per path, archive and aligned interval range. An entry
+ * lives for at most the step of its archive, after which the range a
+ * dashboard asks for has moved on anyway. Writes through {@link Whisper},
+ * including propagation to lower archives, do not drop entries but mark
+ * everything from the written interval on as stale; the next fetch of the
+ * range re-reads only that tail from disk. Writes by other processes are
+ * not seen and are picked up when entries expire.
+ *
+ * The cache is bounded by the number of values it holds. Paths are evicted
+ * least recently fetched first, from segments with their own locks. Writes
+ * to paths that are not cached cost a single hash lookup.
+ */
+public class FetchCache {
+	private static final int SEGMENTS = 16;
+	private static final int MAX_RANGES_PER_PATH = 8;
+
+	private final Segment[] segments;
+	private final ConcurrentHashMap<String, Ranges> index = new ConcurrentHashMap<String, Ranges>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder tailReads = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * @param maxValues
+	 *            maximum number of values kept, split evenly over the
+	 *            segments
+	 */
+	public FetchCache(long maxValues) {
+		if (maxValues < 1) {
+			throw new IllegalArgumentException(
+					"maxValues must be at least 1: " + maxValues);
+		}
+		long perSegment = Math.max(1, (maxValues + SEGMENTS - 1) / SEGMENTS);
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(perSegment);
+		}
+	}
+
+	/**
+	 * Returns the cached range, or null if there is none or it expired. The
+	 * values of the range are only valid before {@link Range#getValidUntil()}.
+	 */
+	Range get(String path, long step, long fromInterval, long untilInterval) {
+		Segment segment = segmentFor(path);
+		long now = System.currentTimeMillis();
+		synchronized (segment) {
+			Ranges ranges = segment.get(path);
+			if (ranges != null) {
+				for (Range range : ranges.list) {
+					if (range.matches(step, fromInterval, untilInterval)) {
+						if (range.expires <= now) {
+							ranges.list.remove(range);
+							segment.weight -= range.length;
+							ranges.weight -= range.length;
+						} else if (range.values != null) {
+							if (range.getValidUntil() < untilInterval) {
+								tailReads.increment();
+							} else {
+								hits.increment();
+							}
+							return range;
+						}
+						break;
+					}
+				}
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Registers a range about to be read, replacing any cached one. Writes
+	 * from now on are tracked, so values read after this call and handed to
+	 * {@link #publish(Range, double[])} are never stale past
+	 * {@link Range#getValidUntil()}.
+	 *
+	 * @param replaced
+	 *            the cached range whose stale tail is being re-read, its
+	 *            expiry carries over so a range fetched more often than its
+	 *            step still expires; null for a range read in full
+	 */
+	Range reserve(String path, long step, long fromInterval,
+			long untilInterval, Range replaced) {
+		long expires = replaced != null ? replaced.expires : System
+				.currentTimeMillis() + step * 1000;
+		Range range = new Range(step, fromInterval, untilInterval, expires);
+		Segment segment = segmentFor(path);
+		synchronized (segment) {
+			Ranges ranges = segment.get(path);
+			if (ranges == null) {
+				ranges = new Ranges();
+				segment.put(path, ranges);
+				index.put(path, ranges);
+			}
+			for (Range cached : ranges.list) {
+				if (cached.matches(step, fromInterval, untilInterval)
+						|| ranges.list.size() >= MAX_RANGES_PER_PATH) {
+					ranges.list.remove(cached);
+					segment.weight -= cached.length;
+					ranges.weight -= cached.length;
+					break;
+				}
+			}
+			ranges.list.add(range);
+			segment.weight += range.length;
+			ranges.weight += range.length;
+			segment.evict();
+		}
+		return range;
+	}
+
+	/**
+	 * Makes the values of a reserved range available to {@link #get}
+	 */
+	void publish(Range range, double[] values) {
+		range.values = values;
+	}
+
+	/**
+	 * Marks the ranges of path in the archive with the given step as stale
+	 * from interval on
+	 */
+	void invalidate(String path, long step, long interval) {
+		Ranges ranges = index.get(path);
+		if (ranges == null) {
+			return;
+		}
+		for (Range range : ranges.list) {
+			if (range.step == step && interval >= range.fromInterval
+					&& interval < range.untilInterval) {
+				range.lowerValidUntil(interval);
+				invalidations.increment();
+			}
+		}
+	}
+
+	/**
+	 * Drops every range of path
+	 */
+	public void invalidate(String path) {
+		Segment segment = segmentFor(path);
+		synchronized (segment) {
+			Ranges ranges = segment.remove(path);
+			if (ranges != null) {
+				index.remove(path, ranges);
+				segment.weight -= ranges.weight;
+				invalidations.increment();
+			}
+		}
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				for (String path : segment.keySet()) {
+					index.remove(path);
+				}
+				segment.clear();
+				segment.weight = 0;
+			}
+		}
+	}
+
+	/**
+	 * Number of values cached
+	 */
+	public long getWeight() {
+		long weight = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				weight += segment.weight;
+			}
+		}
+		return weight;
+	}
+
+	/**
+	 * Fetches served entirely from the cache
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Fetches served from the cache after re-reading a stale tail
+	 */
+	public long getTailReads() {
+		return tailReads.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	private Segment segmentFor(String path) {
+		int h = path.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * The values of one interval range of one archive
+	 */
+	static class Range {
+		final long step;
+		final long fromInterval;
+		final long untilInterval;
+		final long length;
+		final long expires;
+		volatile double[] values;
+		private long validUntil;
+
+		Range(long step, long fromInterval, long untilInterval, long expires) {
+			this.step = step;
+			this.fromInterval = fromInterval;
+			this.untilInterval = untilInterval;
+			this.length = (untilInterval - fromInterval) / step;
+			this.expires = expires;
+			this.validUntil = untilInterval;
+		}
+
+		boolean matches(long step, long fromInterval, long untilInterval) {
+			return this.step == step && this.fromInterval == fromInterval
+					&& this.untilInterval == untilInterval;
+		}
+
+		/**
+		 * Values from this interval on may have been written since they
+		 * were read
+		 */
+		synchronized long getValidUntil() {
+			return validUntil;
+		}
+
+		synchronized void lowerValidUntil(long interval) {
+			if (interval < validUntil) {
+				validUntil = interval;
+			}
+		}
+	}
+
+	private static class Ranges {
+		final List<Range> list = new CopyOnWriteArrayList<Range>();
+		long weight;
+	}
+
+	private class Segment extends LinkedHashMap<String, Ranges> {
+		private static final long serialVersionUID = 1L;
+		private final long maxWeight;
+		long weight;
+
+		Segment(long maxWeight) {
+			super(16, 0.75f, true);
+			this.maxWeight = maxWeight;
+		}
+
+		void evict() {
+			Iterator<Map.Entry<String, Ranges>> eldest = entrySet()
+					.iterator();
+			while (weight > maxWeight && eldest.hasNext()) {
+				Map.Entry<String, Ranges> entry = eldest.next();
+				eldest.remove();
+				index.remove(entry.getKey(), entry.getValue());
+				weight -= entry.getValue().weight;
+			}
+		}
+	}
+}
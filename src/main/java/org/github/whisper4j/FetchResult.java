@@ -0,0 +1,21 @@
+package org.github.whisper4j;
+
+/**
+ * The outcome of fetching one path in a batch: either the data or the
+ * exception the fetch failed with
+ */
+public class FetchResult {
+	public final String path;
+	public final TimeInfo timeInfo;
+	public final Exception error;
+
+	public FetchResult(String path, TimeInfo timeInfo, Exception error) {
+		this.path = path;
+		this.timeInfo = timeInfo;
+		this.error = error;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+}
@@ -0,0 +1,214 @@
+package org.github.whisper4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.function.DoubleConsumer;
+
+/**
+ * A lazily read range of one archive, returned by
+ * {@link Whisper#stream(String, int, int)}.
+ *
+ * The archive is read in chunks of a fixed number of points, following the
+ * ring buffer across its end, so memory use does not depend on the length
+ * of the range and consumers that stop early read no further. Intervals are
+ * handed out as primitive (timestamp, value) pairs through
+ * {@link #tryAdvance(PointConsumer)} and
+ * {@link #forEachRemaining(PointConsumer)}, with NaN where nothing is
+ * stored. As a {@link Spliterator.OfDouble} of the values it can back a
+ * parallel {@link java.util.stream.DoubleStream}:
+ *
+ * <pre>
+ * StreamSupport.doubleStream(spliterator, true)
+ * </pre>
+ *
+ * Splits share the file of the spliterator they were split from, which must
+ * be closed once all of them are done. A shared lock is taken for every
+ * chunk rather than for the whole range, so writers are not held up by slow
+ * consumers; intervals written while the range is read may or may not be
+ * seen.
+ */
+public class FetchSpliterator implements Spliterator.OfDouble, Closeable {
+	/** Default number of points read at a time */
+	public static final int CHUNK_POINTS = 4096;
+
+	private final Whisper whisper;
+	private final WhisperFile file;
+	private final boolean owner;
+	private final ArchiveInfo archive;
+	private final long step;
+	private final int chunkPoints;
+	private long next;
+	private final long until;
+	private ByteBuffer chunk;
+	private long chunkStart;
+	private long chunkEnd;
+
+	FetchSpliterator(Whisper whisper, WhisperFile file, boolean owner,
+			ArchiveInfo archive, long fromInterval, long untilInterval,
+			int chunkPoints) {
+		this.whisper = whisper;
+		this.file = file;
+		this.owner = owner;
+		this.archive = archive;
+		this.step = archive.secondsPerPoint;
+		this.chunkPoints = Math.max(1, Math.min(chunkPoints, archive.points));
+		this.next = fromInterval;
+		this.until = untilInterval;
+	}
+
+	/**
+	 * Hands the next interval to action
+	 *
+	 * @return false when the range is exhausted
+	 */
+	public boolean tryAdvance(PointConsumer action) {
+		if (next >= until) {
+			return false;
+		}
+		action.accept(next, valueAt(next));
+		next += step;
+		return true;
+	}
+
+	/**
+	 * Hands all remaining intervals to action, one chunk at a time
+	 */
+	public void forEachRemaining(PointConsumer action) {
+		while (next < until) {
+			load(next);
+			long end = Math.min(until, chunkEnd);
+			for (; next < end; next += step) {
+				action.accept(next, slotValue(next));
+			}
+		}
+	}
+
+	public boolean tryAdvance(DoubleConsumer action) {
+		if (next >= until) {
+			return false;
+		}
+		action.accept(valueAt(next));
+		next += step;
+		return true;
+	}
+
+	public void forEachRemaining(DoubleConsumer action) {
+		while (next < until) {
+			load(next);
+			long end = Math.min(until, chunkEnd);
+			for (; next < end; next += step) {
+				action.accept(slotValue(next));
+			}
+		}
+	}
+
+	/**
+	 * Splits off the first half of the remaining intervals, as long as both
+	 * halves are at least a chunk long
+	 */
+	public FetchSpliterator trySplit() {
+		long remaining = estimateSize();
+		if (remaining < 2L * chunkPoints) {
+			return null;
+		}
+		long middle = next + (remaining / 2) * step;
+		FetchSpliterator prefix = new FetchSpliterator(whisper, file, false,
+				archive, next, middle, chunkPoints);
+		next = middle;
+		return prefix;
+	}
+
+	public long estimateSize() {
+		return next >= until ? 0 : (until - next) / step;
+	}
+
+	public int characteristics() {
+		return ORDERED | SIZED | SUBSIZED;
+	}
+
+	/**
+	 * Timestamp of the next interval handed out
+	 */
+	public long getNextInterval() {
+		return next;
+	}
+
+	public long getUntilInterval() {
+		return until;
+	}
+
+	public long getStep() {
+		return step;
+	}
+
+	/**
+	 * Returns the file to the {@link Whisper} it was opened by. Splits do not
+	 * own the file and closing them does nothing.
+	 */
+	public void close() throws IOException {
+		if (owner) {
+			whisper.close(file);
+		}
+	}
+
+	private double valueAt(long interval) {
+		if (chunk == null || interval < chunkStart || interval >= chunkEnd) {
+			load(interval);
+		}
+		return slotValue(interval);
+	}
+
+	private double slotValue(long interval) {
+		if (chunk == null) {
+			// The archive is empty
+			return Double.NaN;
+		}
+		int position = (int) ((interval - chunkStart) / step) * Point.sizeof();
+		long timestamp = chunk.getInt(position) & 0xffffffffL;
+		return timestamp == interval ? chunk.getDouble(position + 4)
+				: Double.NaN;
+	}
+
+	/**
+	 * Reads the chunk starting at interval under a shared lock
+	 */
+	private void load(long interval) {
+		chunkStart = interval;
+		chunkEnd = interval + chunkPoints * step;
+		try {
+			WhisperLocks.Held lock = whisper.lock(file, false);
+			try {
+				read(interval);
+			} finally {
+				Whisper.unlock(lock);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void read(long interval) {
+		long base = file.readTimestamp(archive.offset);
+		if (base == 0) {
+			chunk = null;
+			return;
+		}
+		if (chunk == null) {
+			chunk = ByteBuffer.allocate(chunkPoints * Point.sizeof());
+		}
+		long distance = (interval - base) / step * Point.sizeof();
+		int fromOffset = archive.offset
+				+ (int) Whisper.mod(distance, archive.size);
+		int untilOffset = archive.offset
+				+ (int) Whisper.mod(distance + chunk.capacity(), archive.size);
+		chunk.clear();
+		int bytes = file.readRange(archive, fromOffset, untilOffset, chunk);
+		WhisperMetrics metrics = whisper.getMetrics();
+		if (metrics != null) {
+			metrics.bytesRead.add(bytes);
+		}
+	}
+}
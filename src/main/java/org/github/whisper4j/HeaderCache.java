@@ -0,0 +1,231 @@
+package org.github.whisper4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe, bounded cache of parsed whisper headers.
+ *
+ * The cache is split into segments, each a small LRU map with its own lock,
+ * so threads working on different files rarely contend. Every entry
+ * remembers the size, the modification time and the identity (inode) of the
+ * file it was read from. Once the revalidation interval has passed since an
+ * entry was last checked, the next lookup compares them with the file on
+ * disk; a file found resized, replaced, as whisper-resize and similar tools
+ * do, or otherwise modified, as by whisper-set-aggregation-method, drops the
+ * entry and reports a miss. Points written since also change the
+ * modification time, which costs an extra header read per interval for
+ * busy files. Within the interval lookups do not touch the file system, so
+ * a file changed by another process may be served from the cache for up to
+ * one interval; call {@link #invalidate(String)} to see such a change
+ * sooner.
+ */
+public class HeaderCache {
+	private static final int SEGMENTS = 16;
+	private static final long DEFAULT_REVALIDATE_MILLIS = 1000;
+
+	private final Segment[] segments;
+	private final long revalidateNanos;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * A cache that checks entries against the file system at most once a
+	 * second
+	 *
+	 * @param maxSize
+	 *            maximum number of headers kept, split evenly over the
+	 *            segments
+	 */
+	public HeaderCache(int maxSize) {
+		this(maxSize, DEFAULT_REVALIDATE_MILLIS);
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum number of headers kept, split evenly over the
+	 *            segments
+	 * @param revalidateMillis
+	 *            how long an entry is trusted before it is checked against
+	 *            the file again, 0 to check on every lookup
+	 */
+	public HeaderCache(int maxSize, long revalidateMillis) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1: "
+					+ maxSize);
+		}
+		if (revalidateMillis < 0) {
+			throw new IllegalArgumentException(
+					"revalidateMillis must not be negative: " + revalidateMillis);
+		}
+		this.revalidateNanos = TimeUnit.MILLISECONDS.toNanos(revalidateMillis);
+		int perSegment = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(perSegment);
+		}
+	}
+
+	/**
+	 * Returns the cached header for path, or null if there is none or the
+	 * file was found changed since it was cached
+	 *
+	 * @param path
+	 * @return
+	 */
+	public Header get(String path) {
+		Segment segment = segmentFor(path);
+		CachedHeader entry;
+		synchronized (segment) {
+			entry = segment.get(path);
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		long now = System.nanoTime();
+		if (now - entry.validatedAt < revalidateNanos) {
+			hits.increment();
+			return entry.header;
+		}
+		CachedHeader current = stat(path, null);
+		if (current == null || current.size != entry.size
+				|| current.lastModifiedTime != entry.lastModifiedTime
+				|| !equal(current.fileKey, entry.fileKey)) {
+			synchronized (segment) {
+				if (segment.get(path) == entry) {
+					segment.remove(path);
+				}
+			}
+			invalidations.increment();
+			misses.increment();
+			return null;
+		}
+		entry.validatedAt = now;
+		hits.increment();
+		return entry.header;
+	}
+
+	/**
+	 * Caches the header read from path
+	 *
+	 * @param path
+	 * @param header
+	 */
+	public void put(String path, Header header) {
+		CachedHeader entry = stat(path, header);
+		if (entry == null) {
+			return;
+		}
+		Segment segment = segmentFor(path);
+		synchronized (segment) {
+			segment.put(path, entry);
+		}
+	}
+
+	public void invalidate(String path) {
+		Segment segment = segmentFor(path);
+		synchronized (segment) {
+			if (segment.remove(path) != null) {
+				invalidations.increment();
+			}
+		}
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	private Segment segmentFor(String path) {
+		int h = path.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (SEGMENTS - 1)];
+	}
+
+	private static CachedHeader stat(String path, Header header) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(
+					Paths.get(path), BasicFileAttributes.class);
+			Object fileKey = attributes.fileKey();
+			if (fileKey == null) {
+				// No inode on this platform, the creation time will have to do
+				fileKey = attributes.creationTime();
+			}
+			return new CachedHeader(header, attributes.size(), attributes
+					.lastModifiedTime().toMillis(), fileKey);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static class CachedHeader {
+		final Header header;
+		final long size;
+		final long lastModifiedTime;
+		final Object fileKey;
+		// System.nanoTime() of the last check against the file
+		volatile long validatedAt = System.nanoTime();
+
+		CachedHeader(Header header, long size, long lastModifiedTime,
+				Object fileKey) {
+			this.header = header;
+			this.size = size;
+			this.lastModifiedTime = lastModifiedTime;
+			this.fileKey = fileKey;
+		}
+	}
+
+	private static class Segment extends
+			LinkedHashMap<String, CachedHeader> {
+		private static final long serialVersionUID = 1L;
+		private final int maxSize;
+
+		Segment(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, CachedHeader> eldest) {
+			return size() > maxSize;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.github.whisper4j;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A lock free latency histogram with power of two buckets: bucket n counts
+ * durations from 2^(n-1) up to 2^n - 1 nanoseconds. Recording is a few striped
+ * additions, so it can stay enabled on the hot path; percentiles are
+ * approximate, reported as the upper bound of their bucket.
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 64;
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	};
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(MAX, 0);
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos
+	 *            duration of one operation
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public double getMeanNanos() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) totalNanos.sum() / n;
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, e.g. 0.99
+	 * @return the upper bound of the bucket holding the quantile, in
+	 *         nanoseconds
+	 */
+	public long getPercentileNanos(double quantile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return Math.min((1L << i) - 1, getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+}
@@ -0,0 +1,530 @@
+package org.github.whisper4j;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory index of the metrics stored below a root directory, to
+ * resolve Graphite patterns such as <code>servers.*.cpu.{user,system}</code>
+ * without listing directories on every query.
+ *
+ * The index is a tree of metric name segments mirroring the directory tree
+ * of .wsp files. Pattern segments support <code>*</code>, <code>?</code>,
+ * character classes like <code>[a-c]</code> or <code>[!0-9]</code> and
+ * alternatives like <code>{user,system}</code>; segments without any of
+ * these are plain lookups.
+ *
+ * Once the index is set with {@link Whisper#setMetricIndex(MetricIndex)},
+ * files created through that Whisper, by {@link Whisper#create},
+ * {@link WhisperCreator} or {@link WhisperFill}, are added with
+ * {@link #addPath(String)}. Whisper never deletes files, so nothing removes
+ * entries on its own: callers deleting files themselves can keep the index
+ * current with {@link #remove(String)}. Files created or deleted by other
+ * processes are picked up by {@link #rescan()}, which can be run
+ * periodically in the background with {@link #startRescan(long, TimeUnit)}.
+ */
+public class MetricIndex {
+	private final MetricPaths metricPaths;
+	private volatile Node root = new Node();
+	// Compiled pattern segments, shared by all queries
+	private final Map<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+	private static final int MAX_PATTERNS = 10000;
+
+	// Changes made while a rescan is running, replayed on the new tree
+	private final Object scanLock = new Object();
+	private List<String[]> changesDuringScan;
+	private ScheduledExecutorService rescanner;
+
+	public MetricIndex(MetricPaths metricPaths) {
+		this.metricPaths = metricPaths;
+	}
+
+	public MetricPaths getMetricPaths() {
+		return metricPaths;
+	}
+
+	/**
+	 * Adds a metric to the index
+	 *
+	 * @param metric
+	 */
+	public void add(String metric) {
+		synchronized (scanLock) {
+			if (changesDuringScan != null) {
+				changesDuringScan.add(new String[] { "+", metric });
+			}
+		}
+		add(root, metric);
+	}
+
+	/**
+	 * Adds the metric stored at the whisper file path, if it is below the
+	 * root directory
+	 *
+	 * @param path
+	 */
+	public void addPath(String path) {
+		String metric = metricPaths.toMetric(path);
+		if (metric != null) {
+			add(metric);
+		}
+	}
+
+	/**
+	 * Removes a metric from the index, together with any branches left empty
+	 *
+	 * @param metric
+	 */
+	public void remove(String metric) {
+		synchronized (scanLock) {
+			if (changesDuringScan != null) {
+				changesDuringScan.add(new String[] { "-", metric });
+			}
+		}
+		remove(root, metric.split("\\."), 0);
+	}
+
+	private static void add(Node node, String metric) {
+		String[] segments = metric.split("\\.");
+		for (String segment : segments) {
+			Node child = node.children.get(segment);
+			if (child == null) {
+				Node created = new Node();
+				child = node.children.putIfAbsent(segment, created);
+				if (child == null) {
+					child = created;
+				}
+			}
+			node = child;
+		}
+		node.leaf = true;
+	}
+
+	private static boolean remove(Node node, String[] segments, int depth) {
+		if (depth == segments.length) {
+			node.leaf = false;
+			return node.children.isEmpty();
+		}
+		Node child = node.children.get(segments[depth]);
+		if (child != null && remove(child, segments, depth + 1)) {
+			node.children.remove(segments[depth], child);
+		}
+		return !node.leaf && node.children.isEmpty();
+	}
+
+	/**
+	 * @param metric
+	 * @return whether metric is in the index as a metric, not just a branch
+	 */
+	public boolean contains(String metric) {
+		Node node = root;
+		for (String segment : metric.split("\\.")) {
+			node = node.children.get(segment);
+			if (node == null) {
+				return false;
+			}
+		}
+		return node.leaf;
+	}
+
+	/**
+	 * Finds the metrics matching a pattern, sorted by name
+	 *
+	 * @param pattern
+	 * @return the matching metrics, without branches
+	 */
+	public List<String> findMetrics(String pattern) {
+		return find(pattern, true);
+	}
+
+	/**
+	 * Finds the metrics and branches matching a pattern, sorted by name, like
+	 * Graphite's find: <code>servers.*</code> returns both the metrics and the
+	 * directories directly below servers
+	 *
+	 * @param pattern
+	 * @return
+	 */
+	public List<String> find(String pattern) {
+		return find(pattern, false);
+	}
+
+	/**
+	 * @param name
+	 * @return whether name is a branch, having metrics below it
+	 */
+	public boolean isBranch(String name) {
+		Node node = root;
+		for (String segment : name.split("\\.")) {
+			node = node.children.get(segment);
+			if (node == null) {
+				return false;
+			}
+		}
+		return !node.children.isEmpty();
+	}
+
+	private List<String> find(String pattern, boolean leavesOnly) {
+		List<String> expanded = expandDottedBraces(pattern);
+		Node current = root;
+		List<String> result = new ArrayList<String>();
+		for (String expansion : expanded) {
+			match(current, splitPattern(expansion), 0, new StringBuilder(),
+					leavesOnly, result);
+		}
+		Collections.sort(result);
+		if (expanded.size() > 1) {
+			// Alternatives may overlap
+			for (int i = result.size() - 1; i > 0; i--) {
+				if (result.get(i).equals(result.get(i - 1))) {
+					result.remove(i);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Expands the brace groups whose alternatives span several segments,
+	 * such as a.{b.c,d}, into separate patterns. Other braces are left to
+	 * the segment matching.
+	 */
+	static List<String> expandDottedBraces(String pattern) {
+		List<String> result = new ArrayList<String>();
+		int open = -1;
+		int depth = 0;
+		boolean dotted = false;
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '{') {
+				if (depth == 0) {
+					open = i;
+					dotted = false;
+				}
+				depth++;
+			} else if (c == '.' && depth > 0) {
+				dotted = true;
+			} else if (c == '}' && depth > 0) {
+				depth--;
+				if (depth == 0 && dotted) {
+					String prefix = pattern.substring(0, open);
+					String suffix = pattern.substring(i + 1);
+					for (String alternative : splitAlternatives(pattern
+							.substring(open + 1, i))) {
+						result.addAll(expandDottedBraces(prefix + alternative
+								+ suffix));
+					}
+					return result;
+				}
+			}
+		}
+		result.add(pattern);
+		return result;
+	}
+
+	private static List<String> splitAlternatives(String group) {
+		List<String> alternatives = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < group.length(); i++) {
+			char c = group.charAt(i);
+			if (c == '{') {
+				depth++;
+			} else if (c == '}' && depth > 0) {
+				depth--;
+			} else if (c == ',' && depth == 0) {
+				alternatives.add(group.substring(start, i));
+				start = i + 1;
+			}
+		}
+		alternatives.add(group.substring(start));
+		return alternatives;
+	}
+
+	private void match(Node node, String[] segments, int depth,
+			StringBuilder name, boolean leavesOnly, List<String> result) {
+		String segment = segments[depth];
+		boolean last = depth == segments.length - 1;
+		int length = name.length();
+		if (!isPattern(segment)) {
+			Node child = node.children.get(segment);
+			if (child != null) {
+				visit(child, segment, segments, depth, name, leavesOnly,
+						result, last);
+			}
+		} else {
+			Pattern compiled = compile(segment);
+			for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+				if (compiled.matcher(entry.getKey()).matches()) {
+					visit(entry.getValue(), entry.getKey(), segments, depth,
+							name, leavesOnly, result, last);
+				}
+			}
+		}
+		name.setLength(length);
+	}
+
+	private void visit(Node child, String segment, String[] segments,
+			int depth, StringBuilder name, boolean leavesOnly,
+			List<String> result, boolean last) {
+		int length = name.length();
+		if (length > 0) {
+			name.append('.');
+		}
+		name.append(segment);
+		if (last) {
+			if (child.leaf || (!leavesOnly && !child.children.isEmpty())) {
+				result.add(name.toString());
+			}
+		} else {
+			match(child, segments, depth + 1, name, leavesOnly, result);
+		}
+		name.setLength(length);
+	}
+
+	/**
+	 * Splits a pattern on dots, except for dots inside braces
+	 */
+	static String[] splitPattern(String pattern) {
+		List<String> segments = new ArrayList<String>();
+		int braces = 0;
+		int start = 0;
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '{') {
+				braces++;
+			} else if (c == '}' && braces > 0) {
+				braces--;
+			} else if (c == '.' && braces == 0) {
+				segments.add(pattern.substring(start, i));
+				start = i + 1;
+			}
+		}
+		segments.add(pattern.substring(start));
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	private static boolean isPattern(String segment) {
+		for (int i = 0; i < segment.length(); i++) {
+			char c = segment.charAt(i);
+			if (c == '*' || c == '?' || c == '[' || c == '{') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Pattern compile(String segment) {
+		Pattern compiled = patterns.get(segment);
+		if (compiled == null) {
+			compiled = Pattern.compile(toRegex(segment));
+			if (patterns.size() >= MAX_PATTERNS) {
+				patterns.clear();
+			}
+			patterns.put(segment, compiled);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Translates one glob segment into a regular expression
+	 */
+	static String toRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int braces = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			switch (c) {
+			case '*':
+				regex.append(".*");
+				break;
+			case '?':
+				regex.append('.');
+				break;
+			case '[': {
+				int close = glob.indexOf(']', i + 2);
+				if (close < 0) {
+					regex.append("\\[");
+					break;
+				}
+				regex.append('[');
+				int j = i + 1;
+				if (glob.charAt(j) == '!' || glob.charAt(j) == '^') {
+					regex.append('^');
+					j++;
+				}
+				for (; j < close; j++) {
+					char d = glob.charAt(j);
+					if (d == '\\' || d == '[' || d == '&' || d == '^') {
+						regex.append('\\');
+					}
+					regex.append(d);
+				}
+				regex.append(']');
+				i = close;
+				break;
+			}
+			case '{':
+				braces++;
+				regex.append("(?:");
+				break;
+			case '}':
+				if (braces > 0) {
+					braces--;
+					regex.append(')');
+				} else {
+					regex.append("\\}");
+				}
+				break;
+			case ',':
+				regex.append(braces > 0 ? "|" : ",");
+				break;
+			case '.':
+				// Only inside braces, as in {a.b,c}
+				regex.append("\\.");
+				break;
+			default:
+				if ("\\^$|+()".indexOf(c) >= 0) {
+					regex.append('\\');
+				}
+				regex.append(c);
+			}
+		}
+		while (braces-- > 0) {
+			regex.append(')');
+		}
+		return regex.toString();
+	}
+
+	/**
+	 * Rebuilds the index from the files on disk. Queries keep using the old
+	 * tree until the new one is complete; metrics added or removed in the
+	 * meantime are applied to the new tree as well.
+	 *
+	 * @throws IOException
+	 */
+	public void rescan() throws IOException {
+		synchronized (scanLock) {
+			if (changesDuringScan != null) {
+				// Another scan is running
+				return;
+			}
+			changesDuringScan = new ArrayList<String[]>();
+		}
+		try {
+			final Node scanned = new Node();
+			for (String root : metricPaths.getRoots()) {
+				Path rootPath = Paths.get(root);
+				if (!Files.isDirectory(rootPath)) {
+					continue;
+				}
+				Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+					public FileVisitResult visitFile(Path file,
+							BasicFileAttributes attrs) {
+						if (attrs.isRegularFile()) {
+							String metric = metricPaths.toMetric(file
+									.toString());
+							if (metric != null) {
+								add(scanned, metric);
+							}
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					public FileVisitResult visitFileFailed(Path file,
+							IOException e) {
+						// Removed while scanning, or not readable
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+			synchronized (scanLock) {
+				for (String[] change : changesDuringScan) {
+					if ("+".equals(change[0])) {
+						add(scanned, change[1]);
+					} else {
+						remove(scanned, change[1].split("\\."), 0);
+					}
+				}
+				root = scanned;
+			}
+		} finally {
+			synchronized (scanLock) {
+				changesDuringScan = null;
+			}
+		}
+	}
+
+	/**
+	 * Runs {@link #rescan()} on a background thread, first right away and
+	 * then every interval
+	 *
+	 * @param interval
+	 * @param unit
+	 */
+	public synchronized void startRescan(long interval, TimeUnit unit) {
+		if (rescanner != null) {
+			return;
+		}
+		rescanner = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "whisper-index-rescan");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		rescanner.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					rescan();
+				} catch (Exception e) {
+					// Try again next time
+				}
+			}
+		}, 0, interval, unit);
+	}
+
+	public synchronized void stopRescan() {
+		if (rescanner != null) {
+			rescanner.shutdownNow();
+			rescanner = null;
+		}
+	}
+
+	/**
+	 * Number of metrics in the index
+	 */
+	public int size() {
+		return count(root);
+	}
+
+	private static int count(Node node) {
+		int count = node.leaf ? 1 : 0;
+		for (Node child : node.children.values()) {
+			count += count(child);
+		}
+		return count;
+	}
+
+	private static class Node {
+		final ConcurrentSkipListMap<String, Node> children = new ConcurrentSkipListMap<String, Node>();
+		volatile boolean leaf;
+	}
+}
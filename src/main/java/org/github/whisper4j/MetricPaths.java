@@ -0,0 +1,94 @@
+package org.github.whisper4j;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps Graphite metric names to whisper files below a root directory, the
+ * way carbon does: every dot in the name becomes a directory separator and
+ * the file gets a .wsp extension, so servers.web1.cpu is stored as
+ * root/servers/web1/cpu.wsp.
+ */
+public class MetricPaths {
+	public static final String EXTENSION = ".wsp";
+
+	private final String root;
+
+	public MetricPaths(String root) {
+		String normalized = new File(root).getAbsolutePath();
+		if (normalized.endsWith(File.separator) && normalized.length() > 1) {
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+		this.root = normalized;
+	}
+
+	public String getRoot() {
+		return root;
+	}
+
+	/**
+	 * Every directory metrics are stored below, to be walked when looking
+	 * for all of them
+	 */
+	public List<String> getRoots() {
+		return Collections.singletonList(root);
+	}
+
+	/**
+	 * @param metric
+	 * @return the path of the whisper file for metric
+	 * @throws IllegalArgumentException
+	 *             if metric is not a valid metric name
+	 */
+	public String toPath(String metric) {
+		if (!isValidMetric(metric)) {
+			throw new IllegalArgumentException("Invalid metric name: "
+					+ metric);
+		}
+		return root + File.separatorChar
+				+ metric.replace('.', File.separatorChar) + EXTENSION;
+	}
+
+	/**
+	 * @param path
+	 * @return the metric stored at path, or null if path is not a whisper file
+	 *         below the root
+	 */
+	public String toMetric(String path) {
+		String absolute = new File(path).getAbsolutePath();
+		if (!absolute.startsWith(root + File.separator)
+				|| !absolute.endsWith(EXTENSION)) {
+			return null;
+		}
+		String relative = absolute.substring(root.length() + 1,
+				absolute.length() - EXTENSION.length());
+		return relative.replace(File.separatorChar, '.');
+	}
+
+	/**
+	 * A metric name is valid if it has no empty segments and contains no
+	 * path separators or control characters, so it can never point outside
+	 * the root directory
+	 *
+	 * @param metric
+	 * @return
+	 */
+	public static boolean isValidMetric(String metric) {
+		if (metric == null || metric.length() == 0) {
+			return false;
+		}
+		char previous = '.';
+		for (int i = 0; i < metric.length(); i++) {
+			char c = metric.charAt(i);
+			if (c <= ' ' || c == '/' || c == '\\' || c == 0x7f) {
+				return false;
+			}
+			if (c == '.' && previous == '.') {
+				return false;
+			}
+			previous = c;
+		}
+		return previous != '.';
+	}
+}
@@ -0,0 +1,18 @@
+package org.github.whisper4j;
+
+import java.util.Map;
+
+/**
+ * Receives periodic snapshots of {@link WhisperMetrics}, e.g. to log them or
+ * to write them back into whisper files
+ */
+public interface MetricsReporter {
+	/**
+	 * @param timestamp
+	 *            seconds since the epoch when the snapshot was taken
+	 * @param metrics
+	 *            metric names like update.p99Micros mapped to their values,
+	 *            in a stable order
+	 */
+	void report(long timestamp, Map<String, Number> metrics);
+}
@@ -0,0 +1,131 @@
+package org.github.whisper4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches many whisper files concurrently, for render queries whose
+ * wildcards expand to thousands of paths.
+ *
+ * Reads run on a fixed pool of threads, so at most parallelism files are
+ * read at the same time however many paths are asked for. Results come back
+ * in the order of the paths; a path that cannot be read, for instance
+ * because it is missing or a {@link CorruptWhisperFile}, gets a
+ * {@link FetchResult} carrying the exception and does not fail the others.
+ */
+public class ParallelFetcher {
+	private final Whisper whisper;
+	private final int parallelism;
+	private final ExecutorService executor;
+
+	/**
+	 * @param whisper
+	 *            used for the reads, ideally with a file pool and header cache
+	 * @param parallelism
+	 *            maximum number of files read at the same time
+	 */
+	public ParallelFetcher(Whisper whisper, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					"parallelism must be at least 1");
+		}
+		this.whisper = whisper;
+		this.parallelism = parallelism;
+		final AtomicInteger threads = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(parallelism, parallelism, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "whisper-fetch-"
+								+ threads.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Fetches the same time range from every path
+	 *
+	 * @param paths
+	 * @param fromTime
+	 *            epoch time in seconds
+	 * @param untilTime
+	 *            epoch time in seconds
+	 * @return one result per path, in the order of paths
+	 * @throws InterruptedException
+	 */
+	public List<FetchResult> fetchMany(Collection<String> paths,
+			final int fromTime, final int untilTime)
+			throws InterruptedException {
+		List<Future<TimeInfo>> futures = new ArrayList<Future<TimeInfo>>(
+				paths.size());
+		try {
+			for (String path : paths) {
+				futures.add(submit(path, fromTime, untilTime));
+			}
+			List<FetchResult> results = new ArrayList<FetchResult>(
+					paths.size());
+			int i = 0;
+			for (String path : paths) {
+				results.add(result(path, futures.get(i++)));
+			}
+			return results;
+		} catch (InterruptedException e) {
+			for (Future<TimeInfo> future : futures) {
+				future.cancel(true);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Queues the fetch of one path
+	 */
+	Future<TimeInfo> submit(final String path, final int fromTime,
+			final int untilTime) {
+		return executor.submit(new Callable<TimeInfo>() {
+			public TimeInfo call() throws Exception {
+				return whisper.fetch(path, fromTime, untilTime);
+			}
+		});
+	}
+
+	/**
+	 * Waits for a fetch queued with {@link #submit(String, int, int)}
+	 */
+	static FetchResult result(String path, Future<TimeInfo> future)
+			throws InterruptedException {
+		try {
+			return new FetchResult(path, future.get(), null);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				return new FetchResult(path, null, (Exception) cause);
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Stops the reader threads once running fetches are done
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+}
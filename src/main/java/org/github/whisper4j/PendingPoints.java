@@ -0,0 +1,17 @@
+package org.github.whisper4j;
+
+import java.util.List;
+
+/**
+ * Something that holds points not yet written to their whisper files, such
+ * as a {@link WriteBehindCache}, for {@link Whisper} to merge into fetches
+ */
+public interface PendingPoints {
+	/**
+	 * @param path
+	 *            the whisper file
+	 * @return a copy of the points for path that may not be on disk yet, in
+	 *         the order they were added, empty if there are none
+	 */
+	List<Point> pendingPoints(String path);
+}
@@ -0,0 +1,543 @@
+package org.github.whisper4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives points in the Graphite plaintext protocol,
+ * <code>metric.path value timestamp\n</code>, over TCP and UDP and hands
+ * them to a {@link PointSink}, normally a {@link WriteBehindCache} which
+ * batches them per file.
+ *
+ * One selector thread serves all connections. Lines are parsed in place in
+ * the receive buffers; the only allocation per line is the Point created by
+ * the sink. Metric names are mapped to file paths through
+ * {@link MetricPaths} once and then looked up by their bytes in a small
+ * open addressing table, so names seen before cost no String either.
+ * Malformed lines and invalid metric names are counted and skipped, and so
+ * are points the sink fails on with a runtime exception, for example a
+ * cache that was shut down; the receiver keeps serving.
+ *
+ * The sink is called on the selector thread. A sink that blocks when it is
+ * full, such as a {@link WriteBehindCache} with
+ * {@link WriteBehindCache.OverflowPolicy#BLOCK}, stalls every connection
+ * until it has room again, which pushes back on TCP senders and loses UDP
+ * datagrams; with {@link WriteBehindCache.OverflowPolicy#DROP} the
+ * receiver keeps reading and counts the dropped points instead.
+ */
+public class PlaintextReceiver {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int NAME_CACHE_SIZE = 1 << 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+
+	private final MetricPaths metricPaths;
+	private final PointSink sink;
+	private final Selector selector;
+	private final ServerSocketChannel tcp;
+	private final DatagramChannel udp;
+	private final ByteBuffer datagram = ByteBuffer.allocate(BUFFER_SIZE);
+	private final NameCache names = new NameCache(NAME_CACHE_SIZE);
+	private Thread thread;
+	private volatile boolean running;
+
+	private final AtomicLong lines = new AtomicLong();
+	private final AtomicLong badLines = new AtomicLong();
+	private final AtomicLong droppedPoints = new AtomicLong();
+	private final AtomicLong sinkErrors = new AtomicLong();
+	private volatile RuntimeException lastSinkError;
+
+	/**
+	 * @param metricPaths
+	 *            maps metric names to whisper files
+	 * @param sink
+	 *            receives the points
+	 * @param tcpAddress
+	 *            address to accept TCP connections on, or null
+	 * @param udpAddress
+	 *            address to receive datagrams on, or null
+	 * @throws IOException
+	 */
+	public PlaintextReceiver(MetricPaths metricPaths, PointSink sink,
+			InetSocketAddress tcpAddress, InetSocketAddress udpAddress)
+			throws IOException {
+		this.metricPaths = metricPaths;
+		this.sink = sink;
+		this.selector = Selector.open();
+		if (tcpAddress != null) {
+			tcp = ServerSocketChannel.open();
+			tcp.socket().setReuseAddress(true);
+			tcp.socket().bind(tcpAddress);
+			tcp.configureBlocking(false);
+			tcp.register(selector, SelectionKey.OP_ACCEPT);
+		} else {
+			tcp = null;
+		}
+		if (udpAddress != null) {
+			udp = DatagramChannel.open();
+			udp.socket().bind(udpAddress);
+			udp.configureBlocking(false);
+			udp.register(selector, SelectionKey.OP_READ);
+		} else {
+			udp = null;
+		}
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}, "whisper-plaintext-receiver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the selector thread and closes all sockets
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public synchronized void close() throws IOException, InterruptedException {
+		running = false;
+		selector.wakeup();
+		if (thread != null) {
+			thread.join();
+			thread = null;
+		}
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+	}
+
+	/**
+	 * The local TCP port, useful when bound to port 0
+	 */
+	public int getTcpPort() {
+		return tcp == null ? -1 : tcp.socket().getLocalPort();
+	}
+
+	/**
+	 * The local UDP port, useful when bound to port 0
+	 */
+	public int getUdpPort() {
+		return udp == null ? -1 : udp.socket().getLocalPort();
+	}
+
+	public long getLines() {
+		return lines.get();
+	}
+
+	public long getBadLines() {
+		return badLines.get();
+	}
+
+	/**
+	 * Points refused by the sink
+	 */
+	public long getDroppedPoints() {
+		return droppedPoints.get();
+	}
+
+	/**
+	 * Points the sink threw a runtime exception for, those are dropped too
+	 */
+	public long getSinkErrors() {
+		return sinkErrors.get();
+	}
+
+	/**
+	 * The last runtime exception thrown by the sink, or null
+	 */
+	public RuntimeException getLastSinkError() {
+		return lastSinkError;
+	}
+
+	private void serve() {
+		while (running) {
+			try {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.channel() == udp) {
+						receive();
+					} else {
+						read(key);
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				if (!running) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = tcp.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ,
+					new Connection());
+		}
+	}
+
+	private void read(SelectionKey key) throws InterruptedException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		ByteBuffer buffer = connection.buffer;
+		int read;
+		try {
+			read = channel.read(buffer);
+		} catch (IOException e) {
+			read = -1;
+		}
+		if (read < 0) {
+			// Whatever is left is the last line
+			parse(connection, true);
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing left to do with it
+			}
+			return;
+		}
+		parse(connection, false);
+	}
+
+	private void receive() throws IOException, InterruptedException {
+		while (true) {
+			datagram.clear();
+			if (udp.receive(datagram) == null) {
+				return;
+			}
+			byte[] data = datagram.array();
+			int end = datagram.position();
+			int start = 0;
+			while (start < end) {
+				int newline = indexOf(data, start, end, (byte) '\n');
+				int lineEnd = newline < 0 ? end : newline;
+				handleLine(data, start, lineEnd);
+				start = lineEnd + 1;
+			}
+		}
+	}
+
+	/**
+	 * Handles all complete lines in the connection's buffer and moves the
+	 * incomplete rest to the front
+	 */
+	private void parse(Connection connection, boolean endOfInput)
+			throws InterruptedException {
+		ByteBuffer buffer = connection.buffer;
+		byte[] data = buffer.array();
+		int end = buffer.position();
+		int start = 0;
+		while (start < end) {
+			int newline = indexOf(data, start, end, (byte) '\n');
+			if (newline < 0) {
+				break;
+			}
+			if (connection.skipping) {
+				connection.skipping = false;
+			} else {
+				handleLine(data, start, newline);
+			}
+			start = newline + 1;
+		}
+		if (start < end && endOfInput && !connection.skipping) {
+			handleLine(data, start, end);
+			start = end;
+		}
+		if (start == 0 && end == data.length) {
+			// A line longer than the buffer, drop it up to the next newline
+			badLines.incrementAndGet();
+			connection.skipping = true;
+			start = end;
+		}
+		System.arraycopy(data, start, data, 0, end - start);
+		buffer.position(end - start);
+	}
+
+	private void handleLine(byte[] data, int start, int end)
+			throws InterruptedException {
+		// Trim whitespace, including the \r of \r\n line endings
+		while (start < end && isSpace(data[start])) {
+			start++;
+		}
+		while (end > start && isSpace(data[end - 1])) {
+			end--;
+		}
+		if (start == end) {
+			return;
+		}
+		lines.incrementAndGet();
+
+		int metricEnd = start;
+		while (metricEnd < end && !isSpace(data[metricEnd])) {
+			metricEnd++;
+		}
+		int valueStart = skipSpaces(data, metricEnd, end);
+		int valueEnd = valueStart;
+		while (valueEnd < end && !isSpace(data[valueEnd])) {
+			valueEnd++;
+		}
+		int timestampStart = skipSpaces(data, valueEnd, end);
+		if (valueStart == valueEnd || timestampStart == end) {
+			badLines.incrementAndGet();
+			return;
+		}
+
+		double value = parseDouble(data, valueStart, valueEnd);
+		long timestamp = parseTimestamp(data, timestampStart, end);
+		if (Double.isNaN(value) || timestamp == Long.MIN_VALUE) {
+			badLines.incrementAndGet();
+			return;
+		}
+		if (timestamp < 0) {
+			// Graphite senders use -1 for "now"
+			timestamp = Whisper.time();
+		}
+
+		String path = names.get(data, start, metricEnd);
+		if (path == null) {
+			String metric = new String(data, start, metricEnd - start, UTF8);
+			if (!MetricPaths.isValidMetric(metric)) {
+				badLines.incrementAndGet();
+				return;
+			}
+			path = metricPaths.toPath(metric);
+			names.put(data, start, metricEnd, path);
+		}
+		try {
+			if (!sink.add(path, timestamp, (float) value)) {
+				droppedPoints.incrementAndGet();
+			}
+		} catch (RuntimeException e) {
+			// Must not take the selector thread, and every connection, down
+			sinkErrors.incrementAndGet();
+			lastSinkError = e;
+		}
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private static int skipSpaces(byte[] data, int start, int end) {
+		while (start < end && isSpace(data[start])) {
+			start++;
+		}
+		return start;
+	}
+
+	private static int indexOf(byte[] data, int start, int end, byte b) {
+		for (int i = start; i < end; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses a decimal number without creating a String. Numbers with more
+	 * than 15 significant digits or an exponent are handed to
+	 * {@link Double#parseDouble(String)}, which also handles nan and inf.
+	 *
+	 * @return the value, or NaN if the bytes are not a number
+	 */
+	static double parseDouble(byte[] data, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (data[i] == '-' || data[i] == '+')) {
+			negative = data[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		boolean anyDigit = false;
+		int digits = 0;
+		int scale = 0;
+		boolean fraction = false;
+		for (; i < end; i++) {
+			byte b = data[i];
+			if (b >= '0' && b <= '9') {
+				anyDigit = true;
+				if (mantissa != 0 || b != '0') {
+					digits++;
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				if (fraction) {
+					scale++;
+				}
+				if (digits > 15) {
+					return parseSlow(data, start, end);
+				}
+			} else if (b == '.' && !fraction) {
+				fraction = true;
+			} else {
+				return parseSlow(data, start, end);
+			}
+		}
+		if (!anyDigit) {
+			return Double.NaN;
+		}
+		if (scale >= POW10.length) {
+			return parseSlow(data, start, end);
+		}
+		// Exact, because mantissa < 2^53 and 10^scale <= 10^22
+		double value = mantissa / POW10[scale];
+		return negative ? -value : value;
+	}
+
+	private static double parseSlow(byte[] data, int start, int end) {
+		try {
+			return Double.parseDouble(new String(data, start, end - start,
+					UTF8));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Parses an epoch timestamp, ignoring any fractional seconds
+	 *
+	 * @return the timestamp, or Long.MIN_VALUE if the bytes are not a number
+	 */
+	static long parseTimestamp(byte[] data, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && data[i] == '-') {
+			negative = true;
+			i++;
+		}
+		long result = 0;
+		int digits = 0;
+		for (; i < end && data[i] != '.'; i++) {
+			byte b = data[i];
+			if (b < '0' || b > '9' || digits == 18) {
+				return Long.MIN_VALUE;
+			}
+			result = result * 10 + (b - '0');
+			digits++;
+		}
+		for (i = i + 1; i < end; i++) {
+			if (data[i] < '0' || data[i] > '9') {
+				return Long.MIN_VALUE;
+			}
+		}
+		if (digits == 0) {
+			return Long.MIN_VALUE;
+		}
+		return negative ? -result : result;
+	}
+
+	private static class Connection {
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		// Dropping the rest of an overlong line
+		boolean skipping;
+	}
+
+	/**
+	 * Metric name bytes to file path, only used by the selector thread. When
+	 * it fills up it is simply cleared.
+	 */
+	private static class NameCache {
+		private final byte[][] names;
+		private final int[] hashes;
+		private final String[] paths;
+		private final int mask;
+		private int count;
+
+		NameCache(int size) {
+			names = new byte[size][];
+			hashes = new int[size];
+			paths = new String[size];
+			mask = size - 1;
+		}
+
+		String get(byte[] data, int start, int end) {
+			int hash = hash(data, start, end);
+			for (int i = hash & mask;; i = (i + 1) & mask) {
+				byte[] name = names[i];
+				if (name == null) {
+					return null;
+				}
+				if (hashes[i] == hash && equal(name, data, start, end)) {
+					return paths[i];
+				}
+			}
+		}
+
+		void put(byte[] data, int start, int end, String path) {
+			if (count >= (names.length * 3) / 4) {
+				Arrays.fill(names, null);
+				Arrays.fill(paths, null);
+				count = 0;
+			}
+			int hash = hash(data, start, end);
+			int i = hash & mask;
+			while (names[i] != null) {
+				i = (i + 1) & mask;
+			}
+			names[i] = Arrays.copyOfRange(data, start, end);
+			hashes[i] = hash;
+			paths[i] = path;
+			count++;
+		}
+
+		private static int hash(byte[] data, int start, int end) {
+			int h = 0;
+			for (int i = start; i < end; i++) {
+				h = 31 * h + data[i];
+			}
+			return h ^ (h >>> 16);
+		}
+
+		private static boolean equal(byte[] name, byte[] data, int start,
+				int end) {
+			if (name.length != end - start) {
+				return false;
+			}
+			for (int i = 0; i < name.length; i++) {
+				if (name[i] != data[start + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
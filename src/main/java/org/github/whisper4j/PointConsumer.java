@@ -0,0 +1,14 @@
+package org.github.whisper4j;
+
+/**
+ * Receives the intervals of a {@link FetchSpliterator} as primitives
+ */
+public interface PointConsumer {
+	/**
+	 * @param timestamp
+	 *            start of the interval, seconds since the epoch
+	 * @param value
+	 *            NaN when no value is stored for the interval
+	 */
+	void accept(long timestamp, double value);
+}
@@ -0,0 +1,19 @@
+package org.github.whisper4j;
+
+/**
+ * Something that accepts points for whisper files, such as a
+ * {@link WriteBehindCache}
+ */
+public interface PointSink {
+	/**
+	 * @param path
+	 *            the whisper file the point belongs to
+	 * @param timestamp
+	 *            seconds since the epoch
+	 * @param value
+	 * @return false if the point was dropped
+	 * @throws InterruptedException
+	 */
+	boolean add(String path, long timestamp, float value)
+			throws InterruptedException;
+}
@@ -22,49 +22,85 @@ public class RetentionDef {
 		// points = points * UnitMultipliers[pointsUnit] / precision
 	}
 
-	// public static RetentionDef parseRetentionDef(String retentionDef) {
-	// if (retentionDef == null) {
-	// return null;
-	// }
-	// int colon = retentionDef.indexOf(':');
-	// String precisionStr = retentionDef.substring(0, colon);
-	// String pointsStr = retentionDef.substring(colon + 1);
-	//
-	// int precision;
-	// UnitMultipliers precisionUnit;
-	// int point;
-	// UnitMultipliers pointUnit;
-	//
-	// throw new IllegalArgumentException("not implemented");
-
-	// if precision.isdigit():
-	// precisionUnit = 's'
-	// precision = int(precision)
+	/**
+	 * Parses a retention definition like the ones in storage-schemas.conf:
+	 * precision:points, where either part may have a unit. 60:1440 is 1440
+	 * points of 60 seconds, 1m:1d is a day of one minute points.
+	 * 
+	 * @param retentionDef
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if retentionDef cannot be parsed
+	 */
+	public static RetentionDef parseRetentionDef(String retentionDef) {
+		if (retentionDef == null) {
+			return null;
+		}
+		int colon = retentionDef.indexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("Invalid retention definition: '"
+					+ retentionDef + "'");
+		}
+		String precisionStr = retentionDef.substring(0, colon).trim();
+		String pointsStr = retentionDef.substring(colon + 1).trim();
 
-	// else:
-	// precisionUnit = precision[-1]
-	// precision = int( precision[:-1] )
+		int precisionEnd = digits(precisionStr);
+		int pointsEnd = digits(pointsStr);
+		if (precisionEnd == 0 || pointsEnd == 0) {
+			throw new IllegalArgumentException("Invalid retention definition: '"
+					+ retentionDef + "'");
+		}
+		int precision = Integer.parseInt(precisionStr.substring(0, precisionEnd));
+		int points = Integer.parseInt(pointsStr.substring(0, pointsEnd));
 
-	// if points.isdigit():
-	// pointsUnit = None
-	// points = int(points)
+		UnitMultipliers precisionUnit = UnitMultipliers.s;
+		if (precisionEnd < precisionStr.length()) {
+			precisionUnit = UnitMultipliers.fromString(precisionStr
+					.substring(precisionEnd));
+			if (precisionUnit == null) {
+				throw new IllegalArgumentException("Invalid unit: '"
+						+ precisionStr.substring(precisionEnd) + "'");
+			}
+		}
+		UnitMultipliers pointsUnit = null;
+		if (pointsEnd < pointsStr.length()) {
+			pointsUnit = UnitMultipliers.fromString(pointsStr
+					.substring(pointsEnd));
+			if (pointsUnit == null) {
+				throw new IllegalArgumentException("Invalid unit: '"
+						+ pointsStr.substring(pointsEnd) + "'");
+			}
+		}
+		return calc(precision, precisionUnit, points, pointsUnit);
+	}
 
-	// else:
-	// pointsUnit = points[-1]
-	// points = int( points[:-1] )
-	//
-	// if precisionUnit not in UnitMultipliers:
-	// raise ValueError("Invalid unit: '%s'" % precisionUnit)
-	//
-	// if pointsUnit not in UnitMultipliers and pointsUnit is not None:
-	// raise ValueError("Invalid unit: '%s'" % pointsUnit)
-	//
-	// precision = precision * UnitMultipliers[precisionUnit]
-	//
-	// if pointsUnit:
-	// points = points * UnitMultipliers[pointsUnit] / precision
+	/**
+	 * Parses a comma separated list of retention definitions, like
+	 * 10s:1d,1m:7d,10m:5y
+	 * 
+	 * @param retentionDefs
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a definition cannot be parsed
+	 */
+	public static RetentionDef[] parseRetentionDefs(String retentionDefs) {
+		String[] parts = retentionDefs.split(",");
+		RetentionDef[] defs = new RetentionDef[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			defs[i] = parseRetentionDef(parts[i]);
+		}
+		return defs;
+	}
 
-	// return (precision, points);
-	// }
+	private static int digits(String s) {
+		int i = 0;
+		while (i < s.length() && Character.isDigit(s.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
 
+	public String toString() {
+		return secondsPerPoint + ":" + point;
+	}
 }
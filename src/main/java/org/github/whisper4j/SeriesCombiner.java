@@ -0,0 +1,316 @@
+package org.github.whisper4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Combines many fetched series into one, like the sumSeries, averageSeries,
+ * minSeries, maxSeries, countSeries and percentileOfSeries functions of
+ * graphite-web.
+ *
+ * Series with different steps are first brought to the least common
+ * multiple of their steps, averaging the values that fall into each wider
+ * interval, and to a common time range. They are then combined one series
+ * at a time over plain double arrays, inner loops running over consecutive
+ * intervals, which the JIT can unroll and vectorize. Missing values, NaN or
+ * the empty points of a fetched Point[], are skipped; an interval where
+ * every series is missing is NaN in the result, except for
+ * {@link #count(List)} which gives 0.
+ *
+ * A combiner created with a parallelism above one splits long ranges into
+ * chunks of {@link #CHUNK_POINTS} intervals and combines them on its own
+ * pool of threads.
+ */
+public class SeriesCombiner {
+	/** Intervals combined per task when running in parallel */
+	public static final int CHUNK_POINTS = 8192;
+
+	private enum Function {
+		SUM, AVERAGE, MIN, MAX, COUNT, PERCENTILE
+	}
+
+	private final ExecutorService executor;
+
+	/**
+	 * A combiner that runs in the calling thread
+	 */
+	public SeriesCombiner() {
+		this(1);
+	}
+
+	/**
+	 * @param parallelism
+	 *            number of threads combining chunks of long ranges
+	 */
+	public SeriesCombiner(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					"parallelism must be at least 1");
+		}
+		if (parallelism == 1) {
+			this.executor = null;
+			return;
+		}
+		final AtomicInteger threads = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(parallelism, parallelism, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "whisper-combine-"
+								+ threads.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Sum of the known values of every interval
+	 */
+	public TimeInfo sum(List<TimeInfo> series) throws InterruptedException {
+		return combine(series, Function.SUM, 0);
+	}
+
+	/**
+	 * Average of the known values of every interval
+	 */
+	public TimeInfo average(List<TimeInfo> series)
+			throws InterruptedException {
+		return combine(series, Function.AVERAGE, 0);
+	}
+
+	public TimeInfo min(List<TimeInfo> series) throws InterruptedException {
+		return combine(series, Function.MIN, 0);
+	}
+
+	public TimeInfo max(List<TimeInfo> series) throws InterruptedException {
+		return combine(series, Function.MAX, 0);
+	}
+
+	/**
+	 * Number of series with a known value in every interval
+	 */
+	public TimeInfo count(List<TimeInfo> series) throws InterruptedException {
+		return combine(series, Function.COUNT, 0);
+	}
+
+	/**
+	 * Nearest rank percentile of the known values of every interval
+	 *
+	 * @param series
+	 * @param percentile
+	 *            between 0 and 100
+	 */
+	public TimeInfo percentile(List<TimeInfo> series, double percentile)
+			throws InterruptedException {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException(
+					"percentile must be between 0 and 100");
+		}
+		return combine(series, Function.PERCENTILE, percentile);
+	}
+
+	/**
+	 * Stops the threads of a parallel combiner
+	 */
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	private TimeInfo combine(List<TimeInfo> series, final Function function,
+			final double percentile) throws InterruptedException {
+		if (series.isEmpty()) {
+			throw new IllegalArgumentException("No series to combine");
+		}
+		long step = 0;
+		long from = Long.MAX_VALUE;
+		long until = Long.MIN_VALUE;
+		for (TimeInfo timeInfo : series) {
+			step = step == 0 ? timeInfo.step : lcm(step, timeInfo.step);
+		}
+		for (TimeInfo timeInfo : series) {
+			from = Math.min(from, timeInfo.fromInterval
+					- Whisper.mod(timeInfo.fromInterval, step));
+			long last = timeInfo.untilInterval - timeInfo.step;
+			until = Math.max(until, last - Whisper.mod(last, step) + step);
+		}
+		final int length = (int) Math.max(0, (until - from) / step);
+		final double[][] aligned = new double[series.size()][];
+		for (int i = 0; i < aligned.length; i++) {
+			aligned[i] = normalize(series.get(i), from, step, length);
+		}
+
+		final double[] result = new double[length];
+		if (executor == null || length <= CHUNK_POINTS) {
+			combine(aligned, function, percentile, result, 0, length);
+		} else {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			try {
+				for (int lo = 0; lo < length; lo += CHUNK_POINTS) {
+					final int start = lo;
+					final int end = Math.min(length, lo + CHUNK_POINTS);
+					futures.add(executor.submit(new Callable<Void>() {
+						public Void call() {
+							combine(aligned, function, percentile, result,
+									start, end);
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			} finally {
+				for (Future<Void> future : futures) {
+					future.cancel(true);
+				}
+			}
+		}
+		TimeInfo combined = new TimeInfo(from, until, step);
+		combined.values = result;
+		return combined;
+	}
+
+	/**
+	 * Values of timeInfo on length intervals of step starting at from,
+	 * averaging the values that fall into the same interval
+	 */
+	static double[] normalize(TimeInfo timeInfo, long from, long step,
+			int length) {
+		double[] values = new double[length];
+		int points = timeInfo.values != null ? timeInfo.values.length
+				: timeInfo.points.length;
+		if (timeInfo.step == step && timeInfo.values != null) {
+			// Already on the grid, only shifted
+			int offset = (int) ((timeInfo.fromInterval - from) / step);
+			Arrays.fill(values, Double.NaN);
+			System.arraycopy(timeInfo.values, 0, values, offset,
+					Math.min(points, length - offset));
+			return values;
+		}
+		int[] counts = new int[length];
+		for (int i = 0; i < points; i++) {
+			double value = valueAt(timeInfo, i);
+			if (value != value) {
+				continue;
+			}
+			long timestamp = timeInfo.fromInterval + i * timeInfo.step;
+			int index = (int) ((timestamp - from) / step);
+			if (index >= 0 && index < length) {
+				values[index] += value;
+				counts[index]++;
+			}
+		}
+		for (int i = 0; i < length; i++) {
+			values[i] = counts[i] == 0 ? Double.NaN : values[i] / counts[i];
+		}
+		return values;
+	}
+
+	private static double valueAt(TimeInfo timeInfo, int i) {
+		if (timeInfo.values != null) {
+			return timeInfo.values[i];
+		}
+		Point point = timeInfo.points[i];
+		// Empty slots come back from fetch as points with timestamp 0
+		return point == null || point.timestamp == 0 ? Double.NaN
+				: point.value;
+	}
+
+	/**
+	 * Combines the intervals from lo (inclusive) to hi (exclusive) of every
+	 * series into result
+	 */
+	private static void combine(double[][] series, Function function,
+			double percentile, double[] result, int lo, int hi) {
+		switch (function) {
+		case SUM:
+		case AVERAGE:
+		case COUNT:
+			double[] sums = new double[hi - lo];
+			int[] counts = new int[hi - lo];
+			for (double[] values : series) {
+				for (int t = lo; t < hi; t++) {
+					double value = values[t];
+					if (value == value) {
+						sums[t - lo] += value;
+						counts[t - lo]++;
+					}
+				}
+			}
+			for (int t = lo; t < hi; t++) {
+				int count = counts[t - lo];
+				if (function == Function.COUNT) {
+					result[t] = count;
+				} else if (count == 0) {
+					result[t] = Double.NaN;
+				} else {
+					result[t] = function == Function.SUM ? sums[t - lo]
+							: sums[t - lo] / count;
+				}
+			}
+			break;
+		case MIN:
+		case MAX:
+			boolean min = function == Function.MIN;
+			Arrays.fill(result, lo, hi, Double.NaN);
+			for (double[] values : series) {
+				for (int t = lo; t < hi; t++) {
+					double value = values[t];
+					double current = result[t];
+					if (value == value
+							&& (current != current || (min ? value < current
+									: value > current))) {
+						result[t] = value;
+					}
+				}
+			}
+			break;
+		case PERCENTILE:
+			double[] column = new double[series.length];
+			for (int t = lo; t < hi; t++) {
+				int known = 0;
+				for (double[] values : series) {
+					double value = values[t];
+					if (value == value) {
+						column[known++] = value;
+					}
+				}
+				if (known == 0) {
+					result[t] = Double.NaN;
+					continue;
+				}
+				Arrays.sort(column, 0, known);
+				int rank = (int) Math.ceil(percentile / 100 * known);
+				result[t] = column[Math.max(0, Math.min(known, rank) - 1)];
+			}
+			break;
+		}
+	}
+
+	static long lcm(long a, long b) {
+		long x = a;
+		long y = b;
+		while (y != 0) {
+			long r = x % y;
+			x = y;
+			y = r;
+		}
+		return a / x * b;
+	}
+}
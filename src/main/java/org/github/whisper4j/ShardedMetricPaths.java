@@ -0,0 +1,111 @@
+package org.github.whisper4j;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps metric names to whisper files spread over several root directories,
+ * typically one per disk.
+ *
+ * The root of a metric is chosen by a jump consistent hash of a 64 bit
+ * FNV-1a hash of its name, so it is the same on every run and every
+ * machine, and adding a root moves only the share of metrics that lands on
+ * the new root. Below its root a metric is stored the way
+ * {@link MetricPaths} stores it.
+ */
+public class ShardedMetricPaths extends MetricPaths {
+	private final MetricPaths[] shards;
+	private final List<String> roots;
+
+	/**
+	 * @param roots
+	 *            the data directories, in a fixed order; metrics move when
+	 *            the order changes
+	 */
+	public ShardedMetricPaths(List<String> roots) {
+		super(roots.get(0));
+		this.shards = new MetricPaths[roots.size()];
+		List<String> normalized = new ArrayList<String>();
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new MetricPaths(roots.get(i));
+			normalized.add(shards[i].getRoot());
+		}
+		this.roots = Collections.unmodifiableList(normalized);
+	}
+
+	/**
+	 * @param metric
+	 * @return the path of the whisper file for metric, below the root of its
+	 *         shard
+	 */
+	@Override
+	public String toPath(String metric) {
+		return shards[shardFor(metric)].toPath(metric);
+	}
+
+	/**
+	 * @param path
+	 * @return the metric stored at path, or null if path is not a whisper file
+	 *         below one of the roots
+	 */
+	@Override
+	public String toMetric(String path) {
+		int shard = shardOf(path);
+		return shard < 0 ? null : shards[shard].toMetric(path);
+	}
+
+	@Override
+	public List<String> getRoots() {
+		return roots;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * The shard metric is stored on
+	 */
+	public int shardFor(String metric) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < metric.length(); i++) {
+			hash = (hash ^ metric.charAt(i)) * 0x100000001b3L;
+		}
+		return jumpConsistentHash(hash, shards.length);
+	}
+
+	/**
+	 * The shard whose root path is below, or -1
+	 */
+	public int shardOf(String path) {
+		for (int i = 0; i < shards.length; i++) {
+			String root = shards[i].getRoot();
+			if (path.startsWith(root)
+					&& path.length() > root.length()
+					&& path.charAt(root.length()) == File.separatorChar) {
+				return i;
+			}
+		}
+		String absolute = new File(path).getAbsolutePath();
+		if (!absolute.equals(path)) {
+			return shardOf(absolute);
+		}
+		return -1;
+	}
+
+	/**
+	 * Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm"
+	 */
+	static int jumpConsistentHash(long key, int buckets) {
+		long b = -1;
+		long j = 0;
+		while (j < buckets) {
+			b = j;
+			key = key * 2862933555777941757L + 1;
+			j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+		}
+		return (int) b;
+	}
+}
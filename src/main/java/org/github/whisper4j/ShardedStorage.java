@@ -0,0 +1,183 @@
+package org.github.whisper4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores metrics spread over several data directories, one per disk, as
+ * laid out by a {@link ShardedMetricPaths}.
+ *
+ * Every shard gets its own {@link WriteBehindCache}, with its own bounded
+ * buffer and writer threads, and its own {@link ParallelFetcher} for reads,
+ * so a slow or busy disk only holds up the metrics stored on it. Points are
+ * routed by their path, so a {@link PlaintextReceiver} given the same
+ * ShardedMetricPaths can feed this storage directly.
+ *
+ * Fetches go to the shard of the metric. To see points that are still
+ * buffered, give this storage to the {@link Whisper} it writes with through
+ * {@link Whisper#setPendingPoints(PendingPoints)}.
+ */
+public class ShardedStorage implements PointSink, PendingPoints {
+	private final ShardedMetricPaths paths;
+	private final Whisper whisper;
+	private final WriteBehindCache[] caches;
+	private final ParallelFetcher[] fetchers;
+
+	/**
+	 * @param paths
+	 *            where metrics are stored
+	 * @param whisper
+	 *            used for all reads and writes
+	 * @param maxPointsPerShard
+	 *            maximum number of points buffered for each shard
+	 * @param writerThreadsPerShard
+	 * @param readThreadsPerShard
+	 *            maximum number of files of one shard read at the same time
+	 * @param policy
+	 *            what to do when the buffer of a shard is full
+	 */
+	public ShardedStorage(ShardedMetricPaths paths, Whisper whisper,
+			int maxPointsPerShard, int writerThreadsPerShard,
+			int readThreadsPerShard, WriteBehindCache.OverflowPolicy policy) {
+		this.paths = paths;
+		this.whisper = whisper;
+		int shards = paths.getShardCount();
+		this.caches = new WriteBehindCache[shards];
+		this.fetchers = new ParallelFetcher[shards];
+		for (int i = 0; i < shards; i++) {
+			caches[i] = new WriteBehindCache(whisper, maxPointsPerShard,
+					writerThreadsPerShard, policy);
+			fetchers[i] = new ParallelFetcher(whisper, readThreadsPerShard);
+		}
+	}
+
+	public void start() {
+		for (WriteBehindCache cache : caches) {
+			cache.start();
+		}
+	}
+
+	/**
+	 * Buffers a point for the whisper file at path, in the cache of the
+	 * shard path is on
+	 *
+	 * @throws IllegalArgumentException
+	 *             if path is not below one of the roots
+	 */
+	public boolean add(String path, long timestamp, float value)
+			throws InterruptedException {
+		return cacheFor(path).add(path, timestamp, value);
+	}
+
+	/**
+	 * Buffers a point for metric
+	 */
+	public boolean addMetric(String metric, long timestamp, float value)
+			throws InterruptedException {
+		return caches[paths.shardFor(metric)].add(paths.toPath(metric),
+				timestamp, value);
+	}
+
+	public List<Point> pendingPoints(String path) {
+		int shard = paths.shardOf(path);
+		if (shard < 0) {
+			return new ArrayList<Point>(0);
+		}
+		return caches[shard].pendingPoints(path);
+	}
+
+	/**
+	 * {@link Whisper#fetch(String, int, int)} of the file of metric
+	 */
+	public TimeInfo fetch(String metric, int fromTime, int untilTime)
+			throws Exception {
+		return whisper.fetch(paths.toPath(metric), fromTime, untilTime);
+	}
+
+	/**
+	 * {@link Whisper#fetchValues(String, int, int)} of the file of metric
+	 */
+	public TimeInfo fetchValues(String metric, int fromTime, int untilTime)
+			throws Exception {
+		return whisper.fetchValues(paths.toPath(metric), fromTime, untilTime);
+	}
+
+	/**
+	 * Fetches many metrics, each shard reading its files on its own threads
+	 *
+	 * @return one result per metric, in the order of metrics, with the path
+	 *         of its file
+	 * @throws InterruptedException
+	 */
+	public List<FetchResult> fetchMany(Collection<String> metrics,
+			int fromTime, int untilTime) throws InterruptedException {
+		List<String> metricPaths = new ArrayList<String>(metrics.size());
+		List<Future<TimeInfo>> futures = new ArrayList<Future<TimeInfo>>(
+				metrics.size());
+		try {
+			// Queue everything first so all shards read at the same time
+			for (String metric : metrics) {
+				String path = paths.toPath(metric);
+				metricPaths.add(path);
+				futures.add(fetchers[paths.shardFor(metric)].submit(path,
+						fromTime, untilTime));
+			}
+			List<FetchResult> results = new ArrayList<FetchResult>(
+					futures.size());
+			for (int i = 0; i < futures.size(); i++) {
+				results.add(ParallelFetcher.result(metricPaths.get(i),
+						futures.get(i)));
+			}
+			return results;
+		} catch (InterruptedException e) {
+			for (Future<TimeInfo> future : futures) {
+				future.cancel(true);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes everything buffered in every shard and stops the writer and
+	 * reader threads
+	 *
+	 * @return true if every shard was written within the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean drained = true;
+		for (WriteBehindCache cache : caches) {
+			long remaining = Math.max(0, deadline - System.nanoTime());
+			drained &= cache.shutdown(remaining, TimeUnit.NANOSECONDS);
+		}
+		for (ParallelFetcher fetcher : fetchers) {
+			fetcher.close();
+		}
+		return drained;
+	}
+
+	public ShardedMetricPaths getPaths() {
+		return paths;
+	}
+
+	/**
+	 * The write cache of one shard, for its statistics
+	 */
+	public WriteBehindCache getCache(int shard) {
+		return caches[shard];
+	}
+
+	private WriteBehindCache cacheFor(String path) {
+		int shard = paths.shardOf(path);
+		if (shard < 0) {
+			throw new IllegalArgumentException(path
+					+ " is not below any of the data directories");
+		}
+		return caches[shard];
+	}
+}
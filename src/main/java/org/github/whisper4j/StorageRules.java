@@ -0,0 +1,331 @@
+package org.github.whisper4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The rules of Graphite's storage-schemas.conf and storage-aggregation.conf,
+ * deciding how the whisper file of a new metric is laid out.
+ *
+ * Rules are tried in file order and the first one whose pattern is found in
+ * the metric name wins. Patterns that are a plain prefix such as
+ * <code>^carbon\.</code>, or that match everything, are checked without a
+ * regular expression, and the result of every lookup is remembered, so
+ * matching stays cheap during a storm of new metrics. Metrics without an
+ * aggregation rule get an xFilesFactor of 0.5 and average.
+ *
+ * Set on a {@link Whisper} with {@link Whisper#setStorageRules}, the rules
+ * are used to create missing files on their first update.
+ */
+public class StorageRules {
+	private static final int MAX_CACHED = 100000;
+	private static final float DEFAULT_XFF = 0.5f;
+
+	private final MetricPaths metricPaths;
+	private final List<Rule> schemas;
+	private final List<Rule> aggregations;
+	private final Map<String, StorageSchema> cache = new ConcurrentHashMap<String, StorageSchema>();
+	// Not found is cached as well
+	private static final StorageSchema NONE = new StorageSchema(null, null,
+			0, null);
+	private final Object[] createLocks = new Object[64];
+
+	private StorageRules(MetricPaths metricPaths, List<Rule> schemas,
+			List<Rule> aggregations) {
+		this.metricPaths = metricPaths;
+		this.schemas = schemas;
+		this.aggregations = aggregations;
+		for (int i = 0; i < createLocks.length; i++) {
+			createLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @param metricPaths
+	 *            where the whisper files of metrics live
+	 * @param schemas
+	 *            storage-schemas.conf
+	 * @param aggregation
+	 *            storage-aggregation.conf, or null to use the defaults
+	 * @return
+	 * @throws IOException
+	 * @throws InvalidConfigurationException
+	 */
+	public static StorageRules load(MetricPaths metricPaths, File schemas,
+			File aggregation) throws IOException,
+			InvalidConfigurationException {
+		Reader schemasReader = new InputStreamReader(new FileInputStream(
+				schemas), "UTF-8");
+		try {
+			if (aggregation == null) {
+				return parse(metricPaths, schemasReader, null);
+			}
+			Reader aggregationReader = new InputStreamReader(
+					new FileInputStream(aggregation), "UTF-8");
+			try {
+				return parse(metricPaths, schemasReader, aggregationReader);
+			} finally {
+				aggregationReader.close();
+			}
+		} finally {
+			schemasReader.close();
+		}
+	}
+
+	/**
+	 * Like {@link #load(MetricPaths, File, File)}, from readers
+	 */
+	public static StorageRules parse(MetricPaths metricPaths, Reader schemas,
+			Reader aggregation) throws IOException,
+			InvalidConfigurationException {
+		List<Rule> schemaRules = new ArrayList<Rule>();
+		for (Map.Entry<String, Map<String, String>> section : parseSections(
+				schemas).entrySet()) {
+			Map<String, String> values = section.getValue();
+			String retentions = values.get("retentions");
+			if (retentions == null) {
+				throw new InvalidConfigurationException("Schema "
+						+ section.getKey() + " has no retentions");
+			}
+			Rule rule = rule(section.getKey(), values);
+			try {
+				rule.archives = RetentionDef.parseRetentionDefs(retentions);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidConfigurationException("Schema "
+						+ section.getKey() + ": " + e.getMessage());
+			}
+			schemaRules.add(rule);
+		}
+
+		List<Rule> aggregationRules = new ArrayList<Rule>();
+		if (aggregation != null) {
+			for (Map.Entry<String, Map<String, String>> section : parseSections(
+					aggregation).entrySet()) {
+				Map<String, String> values = section.getValue();
+				Rule rule = rule(section.getKey(), values);
+				String xff = values.get("xfilesfactor");
+				try {
+					rule.xFilesFactor = xff == null ? DEFAULT_XFF : Float
+							.parseFloat(xff);
+				} catch (NumberFormatException e) {
+					throw new InvalidConfigurationException("Aggregation "
+							+ section.getKey() + ": invalid xFilesFactor "
+							+ xff);
+				}
+				String method = values.get("aggregationmethod");
+				rule.aggregationMethod = method == null ? AggregationMethod.Average
+						: methodFromName(section.getKey(), method);
+				aggregationRules.add(rule);
+			}
+		}
+		return new StorageRules(metricPaths, schemaRules, aggregationRules);
+	}
+
+	private static AggregationMethod methodFromName(String section,
+			String name) throws InvalidConfigurationException {
+		for (AggregationMethod method : AggregationMethod.values()) {
+			if (method.name().equalsIgnoreCase(name)) {
+				return method;
+			}
+		}
+		throw new InvalidConfigurationException("Aggregation " + section
+				+ ": unknown aggregationMethod " + name);
+	}
+
+	private static Rule rule(String section, Map<String, String> values)
+			throws InvalidConfigurationException {
+		String pattern = values.get("pattern");
+		if (pattern == null) {
+			throw new InvalidConfigurationException("Section " + section
+					+ " has no pattern");
+		}
+		Rule rule = new Rule();
+		rule.name = section;
+		if (pattern.length() == 0 || pattern.equals(".*")
+				|| pattern.equals("^.*")) {
+			rule.matchAll = true;
+		} else if (pattern.startsWith("^") && isLiteral(pattern.substring(1))) {
+			rule.prefix = unescape(pattern.substring(1));
+		} else {
+			try {
+				rule.regex = Pattern.compile(pattern);
+			} catch (PatternSyntaxException e) {
+				throw new InvalidConfigurationException("Section " + section
+						+ ": invalid pattern " + pattern);
+			}
+		}
+		return rule;
+	}
+
+	/**
+	 * Whether a regular expression matches only its own characters, with
+	 * dots escaped
+	 */
+	private static boolean isLiteral(String regex) {
+		for (int i = 0; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				if (i + 1 == regex.length() || regex.charAt(i + 1) != '.') {
+					return false;
+				}
+				i++;
+			} else if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String unescape(String literal) {
+		return literal.replace("\\.", ".");
+	}
+
+	/**
+	 * Reads an ini style file: [section] headers followed by key = value
+	 * lines. Keys are lower cased, # and ; start comments.
+	 */
+	static Map<String, Map<String, String>> parseSections(Reader reader)
+			throws IOException, InvalidConfigurationException {
+		Map<String, Map<String, String>> sections = new LinkedHashMap<String, Map<String, String>>();
+		BufferedReader lines = new BufferedReader(reader);
+		Map<String, String> current = null;
+		String line;
+		int number = 0;
+		while ((line = lines.readLine()) != null) {
+			number++;
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")
+					|| line.startsWith(";")) {
+				continue;
+			}
+			if (line.startsWith("[") && line.endsWith("]")) {
+				current = new LinkedHashMap<String, String>();
+				sections.put(line.substring(1, line.length() - 1).trim(),
+						current);
+				continue;
+			}
+			int equals = line.indexOf('=');
+			if (equals < 0 || current == null) {
+				throw new InvalidConfigurationException("Invalid line "
+						+ number + ": " + line);
+			}
+			current.put(line.substring(0, equals).trim().toLowerCase(), line
+					.substring(equals + 1).trim());
+		}
+		return sections;
+	}
+
+	/**
+	 * @param metric
+	 * @return the schema for metric, or null if no storage schema matches
+	 */
+	public StorageSchema match(String metric) {
+		StorageSchema schema = cache.get(metric);
+		if (schema == null) {
+			schema = lookup(metric);
+			if (cache.size() >= MAX_CACHED) {
+				cache.clear();
+			}
+			cache.put(metric, schema);
+		}
+		return schema == NONE ? null : schema;
+	}
+
+	private StorageSchema lookup(String metric) {
+		Rule schema = first(schemas, metric);
+		if (schema == null) {
+			return NONE;
+		}
+		Rule aggregation = first(aggregations, metric);
+		if (aggregation == null) {
+			return new StorageSchema(schema.name, schema.archives,
+					DEFAULT_XFF, AggregationMethod.Average);
+		}
+		return new StorageSchema(schema.name, schema.archives,
+				aggregation.xFilesFactor, aggregation.aggregationMethod);
+	}
+
+	private static Rule first(List<Rule> rules, String metric) {
+		for (Rule rule : rules) {
+			if (rule.matches(metric)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the whisper file at path if it does not exist, using the
+	 * schema of its metric
+	 *
+	 * @param whisper
+	 *            used to create the file
+	 * @param path
+	 * @return false if path is not a metric below the root or no schema
+	 *         matches it
+	 * @throws IOException
+	 * @throws InvalidConfigurationException
+	 *             if the schema is not a valid archive layout
+	 */
+	public boolean createIfMissing(Whisper whisper, String path)
+			throws IOException, InvalidConfigurationException {
+		String metric = metricPaths.toMetric(path);
+		if (metric == null) {
+			return false;
+		}
+		StorageSchema schema = match(metric);
+		if (schema == null) {
+			return false;
+		}
+		File file = new File(path);
+		int h = path.hashCode();
+		synchronized (createLocks[(h ^ (h >>> 16)) & (createLocks.length - 1)]) {
+			if (file.exists()) {
+				return true;
+			}
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()
+					&& !parent.isDirectory()) {
+				throw new IOException("Cannot create directory " + parent);
+			}
+			whisper.create(path, schema.archives, schema.xFilesFactor,
+					schema.aggregationMethod);
+		}
+		return true;
+	}
+
+	public MetricPaths getMetricPaths() {
+		return metricPaths;
+	}
+
+	private static class Rule {
+		String name;
+		boolean matchAll;
+		String prefix;
+		Pattern regex;
+		RetentionDef[] archives;
+		float xFilesFactor;
+		AggregationMethod aggregationMethod;
+
+		boolean matches(String metric) {
+			if (matchAll) {
+				return true;
+			}
+			if (prefix != null) {
+				return metric.startsWith(prefix);
+			}
+			return regex.matcher(metric).find();
+		}
+	}
+}
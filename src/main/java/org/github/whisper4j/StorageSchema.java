@@ -0,0 +1,22 @@
+package org.github.whisper4j;
+
+/**
+ * Everything needed to create the whisper file for a metric: the archives
+ * from storage-schemas.conf and the xFilesFactor and aggregation method from
+ * storage-aggregation.conf
+ */
+public class StorageSchema {
+	/** Name of the storage-schemas.conf section */
+	public final String name;
+	public final RetentionDef[] archives;
+	public final float xFilesFactor;
+	public final AggregationMethod aggregationMethod;
+
+	public StorageSchema(String name, RetentionDef[] archives,
+			float xFilesFactor, AggregationMethod aggregationMethod) {
+		this.name = name;
+		this.archives = archives;
+		this.xFilesFactor = xFilesFactor;
+		this.aggregationMethod = aggregationMethod;
+	}
+}
@@ -5,6 +5,11 @@ public class TimeInfo {
 	public long untilInterval;
 	public long step;
 	public Point[] points;
+	/**
+	 * Set instead of points by the fetchValues methods: one value per step
+	 * starting at fromInterval, NaN where no value was stored
+	 */
+	public double[] values;
 
 	public TimeInfo(long fromInterval, long untilInterval, long step) {
 		this.fromInterval = fromInterval;
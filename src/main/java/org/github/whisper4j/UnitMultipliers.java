@@ -17,8 +17,13 @@ public enum UnitMultipliers {
 	
 	d(60*60*24),
 	
+	w(60*60*24*7),
+	
 	y(60 * 60 * 24 * 365);
 	
+	private static final String[] NAMES = { "seconds", "minutes", "hours",
+			"days", "weeks", "years" };
+	
 	private final int i;
 	
 	private UnitMultipliers(int i){
@@ -28,4 +33,24 @@ public enum UnitMultipliers {
 	public int getSeconds(){
 		return i;
 	}
+	
+	/**
+	 * Looks up a unit by its letter or a prefix of its name, as in
+	 * storage-schemas.conf: m, min and minutes are all minutes
+	 * 
+	 * @param unit
+	 * @return the unit, or null if unit is not known
+	 */
+	public static UnitMultipliers fromString(String unit) {
+		if (unit == null || unit.length() == 0) {
+			return null;
+		}
+		String lower = unit.toLowerCase();
+		for (int j = 0; j < NAMES.length; j++) {
+			if (NAMES[j].startsWith(lower)) {
+				return valueOf(NAMES[j].substring(0, 1));
+			}
+		}
+		return null;
+	}
 }
@@ -0,0 +1,90 @@
+package org.github.whisper4j;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases file mappings right away instead of when the garbage collector
+ * gets to them.
+ *
+ * Java has no public API for this. On Java 8 the buffer's cleaner is run,
+ * on later versions sun.misc.Unsafe#invokeCleaner is used; both are looked
+ * up reflectively once. When neither is available, mappings are left to the
+ * garbage collector as before.
+ *
+ * A buffer must not be touched, not even through a duplicate, after it has
+ * been unmapped: the JVM would crash.
+ */
+final class Unmapper {
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	private static final Method CLEANER;
+	private static final Method CLEAN;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		Method cleaner = null;
+		Method clean = null;
+		try {
+			if (System.getProperty("java.specification.version").startsWith(
+					"1.")) {
+				cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod(
+						"cleaner");
+				clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			} else {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafe = theUnsafe.get(null);
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+						java.nio.ByteBuffer.class);
+			}
+		} catch (Exception e) {
+			unsafe = null;
+			invokeCleaner = null;
+			cleaner = null;
+			clean = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+		CLEANER = cleaner;
+		CLEAN = clean;
+	}
+
+	private Unmapper() {
+	}
+
+	/**
+	 * Whether {@link #unmap(MappedByteBuffer)} releases mappings on this JVM
+	 */
+	static boolean isSupported() {
+		return INVOKE_CLEANER != null || CLEAN != null;
+	}
+
+	/**
+	 * Unmaps buffer if this JVM allows it
+	 *
+	 * @param buffer
+	 * @return true if the mapping was released
+	 */
+	static boolean unmap(MappedByteBuffer buffer) {
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+				return true;
+			}
+			if (CLEAN != null) {
+				Object cleaner = CLEANER.invoke(buffer);
+				if (cleaner != null) {
+					CLEAN.invoke(cleaner);
+				}
+				return true;
+			}
+		} catch (Exception e) {
+			// Left to the garbage collector
+		}
+		return false;
+	}
+}
@@ -6,11 +6,18 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 /**
  * This module is an implementation of the Whisper database API
@@ -26,29 +33,254 @@ import java.util.Map;
  * 
  */
 public class Whisper {
-	private boolean LOCK = false;
-	private boolean CACHE_HEADERS = false;
+	private WhisperLocks locks;
 	private boolean AUTOFLUSH = false;
-	private Map<String, Header> __headerCache = new HashMap<String, Header>();
-	private static int METADATA_BYTE_SIZE = 16;
-	private static int ARCHIVEINFO_BYTE_SIZE = 12;
+	private HeaderCache headerCache;
+	private FetchCache fetchCache;
+	private WhisperFilePool filePool;
+	private MetricIndex metricIndex;
+	private WhisperMetrics metrics;
+	private DeferredRollup deferredRollup;
+	private PendingPoints pendingPoints;
+	private boolean preallocate = false;
+	private StorageRules storageRules;
+	// Source of zeros for preallocation, never written to
+	private static final ByteBuffer ZEROES = ByteBuffer.allocateDirect(64 * 1024);
+	static final int METADATA_BYTE_SIZE = 16;
+	static final int ARCHIVEINFO_BYTE_SIZE = 12;
+	// Ranges up to this size are read into a per-thread buffer that is reused
+	private static final int SCRATCH_MAX_BYTES = 1024 * 1024;
+	private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>();
 
-	private MetaData readMetaData(String path, RandomAccessFile fh)
-			throws CorruptWhisperFile {
+	/**
+	 * Runs update, update_many, fetch, info and setAggregationMethod on
+	 * handles from the given pool instead of opening and closing the file on
+	 * every call.
+	 * 
+	 * @param filePool
+	 *            the pool to use, or null to open a file per call
+	 */
+	public void setFilePool(WhisperFilePool filePool) {
+		this.filePool = filePool;
+	}
+
+	public WhisperFilePool getFilePool() {
+		return filePool;
+	}
+
+	/**
+	 * Caches parsed headers across calls. Entries are dropped when the file
+	 * is resized or replaced.
+	 * 
+	 * @param headerCache
+	 *            the cache to use, or null to read the header on every call
+	 */
+	public void setHeaderCache(HeaderCache headerCache) {
+		this.headerCache = headerCache;
+	}
+
+	public HeaderCache getHeaderCache() {
+		return headerCache;
+	}
+
+	/**
+	 * Caches fetched ranges across calls. Updates and propagation made
+	 * through this instance mark the written part of cached ranges as stale.
+	 * 
+	 * @param fetchCache
+	 *            the cache to use, or null to read every range from disk
+	 */
+	public void setFetchCache(FetchCache fetchCache) {
+		this.fetchCache = fetchCache;
+	}
+
+	public FetchCache getFetchCache() {
+		return fetchCache;
+	}
+
+	/**
+	 * Locks files while they are read or written: updates and propagation
+	 * take an exclusive lock, fetch and info a shared one.
+	 * 
+	 * @param locks
+	 *            the locks to use, or null for no locking
+	 */
+	public void setLocks(WhisperLocks locks) {
+		this.locks = locks;
+	}
+
+	public WhisperLocks getLocks() {
+		return locks;
+	}
+
+	/**
+	 * Adds files made by {@link #create}, {@link WhisperCreator} and
+	 * {@link WhisperFill} to the given index
+	 * 
+	 * @param metricIndex
+	 *            the index to update, or null
+	 */
+	public void setMetricIndex(MetricIndex metricIndex) {
+		this.metricIndex = metricIndex;
+	}
+
+	public MetricIndex getMetricIndex() {
+		return metricIndex;
+	}
+
+	/**
+	 * Records latencies, I/O and propagation counts into the given metrics,
+	 * which may be shared with other instances
+	 * 
+	 * @param metrics
+	 *            the metrics to record into, or null to record nothing
+	 */
+	public synchronized void setMetrics(WhisperMetrics metrics) {
+		WhisperMetrics previous = this.metrics;
+		if (previous != null && previous != metrics) {
+			previous.detach(this);
+		}
+		if (metrics != null) {
+			metrics.attach(this);
+		}
+		this.metrics = metrics;
+	}
+
+	public WhisperMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Leaves propagation to lower precision archives to the given
+	 * {@link DeferredRollup} instead of doing it on every update
+	 * 
+	 * @param deferredRollup
+	 *            the rollup to record dirty intervals in, or null to propagate
+	 *            inline
+	 */
+	public void setDeferredRollup(DeferredRollup deferredRollup) {
+		this.deferredRollup = deferredRollup;
+	}
+
+	public DeferredRollup getDeferredRollup() {
+		return deferredRollup;
+	}
+
+	/**
+	 * Merges the points still buffered in the given cache into fetch
+	 * results, so data that is not yet on disk is not missing from graphs.
+	 * Buffered points show in the archive they will be written to; ranges
+	 * served by a lower archive show them once they are written and
+	 * propagated.
+	 * 
+	 * @param writeBehindCache
+	 *            the cache writing to this instance, or null
+	 */
+	public void setWriteBehindCache(WriteBehindCache writeBehindCache) {
+		setPendingPoints(writeBehindCache);
+	}
+
+	/**
+	 * Like {@link #setWriteBehindCache(WriteBehindCache)}, for any holder of
+	 * buffered points, such as a {@link ShardedStorage}
+	 * 
+	 * @param pendingPoints
+	 *            the points to merge into fetch results, or null
+	 */
+	public void setPendingPoints(PendingPoints pendingPoints) {
+		this.pendingPoints = pendingPoints;
+	}
+
+	public PendingPoints getPendingPoints() {
+		return pendingPoints;
+	}
+
+	/**
+	 * How {@link #create} sizes new files. By default the file is only
+	 * extended after the header, which leaves a sparse file on most file
+	 * systems. With preallocation the data section is written out as zeros,
+	 * so the blocks are allocated up front.
+	 * 
+	 * @param preallocate
+	 */
+	public void setPreallocate(boolean preallocate) {
+		this.preallocate = preallocate;
+	}
+
+	public boolean isPreallocate() {
+		return preallocate;
+	}
+
+	/**
+	 * Makes {@link #update(String, float, long)} and
+	 * {@link #update_many(String, List)} create missing files, laid out by
+	 * the storage schema of their metric
+	 * 
+	 * @param storageRules
+	 *            the rules to create files with, or null to fail on missing
+	 *            files
+	 */
+	public void setStorageRules(StorageRules storageRules) {
+		this.storageRules = storageRules;
+	}
+
+	public StorageRules getStorageRules() {
+		return storageRules;
+	}
+
+	WhisperLocks.Held lock(WhisperFile file, boolean exclusive)
+			throws IOException {
+		WhisperLocks current = locks;
+		if (current == null) {
+			return null;
+		}
+		return exclusive ? current.lockExclusive(file) : current
+				.lockShared(file);
+	}
+
+	static void unlock(WhisperLocks.Held lock) throws IOException {
+		if (lock != null) {
+			lock.release();
+		}
+	}
+
+	private WhisperFile open(String path, boolean writable) throws IOException {
+		if (filePool != null) {
+			return filePool.acquire(path, writable);
+		}
+		return new WhisperFile(path, writable);
+	}
+
+	/**
+	 * Opens path for an update, creating it first when it is missing and
+	 * storage rules are set. The file is only looked for when opening fails,
+	 * so existing files cost nothing extra.
+	 */
+	private WhisperFile openForUpdate(String path) throws IOException {
 		try {
-			// MetaData is 16 bytes
-			MetaData metaData = new MetaData();
-			metaData.aggregationType = fh.readInt();
-			metaData.maxRetention = fh.readInt();
-			metaData.xFileFactor = fh.readFloat();
-			metaData.archiveCount = fh.readInt();
-			return metaData;
-			// (aggregationType,maxRetention,xff,archiveCount) =
-			// struct.unpack(metadataFormat,packedMetadata);
-		} catch (Exception e) {
-			throw new CorruptWhisperFile("Unable to read header " + path, e);
+			return open(path, true);
+		} catch (FileNotFoundException e) {
+			StorageRules rules = storageRules;
+			if (rules == null) {
+				throw e;
+			}
+			try {
+				if (!rules.createIfMissing(this, path)) {
+					throw e;
+				}
+			} catch (InvalidConfigurationException invalid) {
+				throw new IOException("Cannot create " + path, invalid);
+			}
+			return open(path, true);
 		}
+	}
 
+	void close(WhisperFile file) throws IOException {
+		if (filePool != null) {
+			filePool.release(file);
+		} else {
+			file.close();
+		}
 	}
 
 	private int writeHeader(RandomAccessFile fh, Header header)
@@ -72,66 +304,36 @@ public class Whisper {
 	/**
 	 * Reads the header part of a whisper file
 	 * 
-	 * @param fh
+	 * @param file
 	 * @return
 	 * @throws CorruptWhisperFile
-	 * @throws IOException
 	 */
-	private Header readHeader(String path, RandomAccessFile fh)
-			throws CorruptWhisperFile, IOException {
-		Header info = __headerCache.get(path);
+	private Header readHeader(WhisperFile file) throws CorruptWhisperFile {
+		HeaderCache cache = headerCache;
+		if (cache == null) {
+			return file.getHeader();
+		}
+
+		Header info = cache.get(file.getPath());
 		if (info != null) {
 			return info;
 		}
 
-		long originalOffset = fh.getFilePointer();
-		fh.seek(0);
-
-		MetaData metaData = readMetaData(path, fh);
-
-		List<ArchiveInfo> archiveInfos = new ArrayList<ArchiveInfo>();
-
-		for (long i = 0; i < metaData.archiveCount; i++) {
-			// byte[] packedArchiveInfo = fh.read(archiveInfoSize);
-			try {
-				ArchiveInfo archiveInfo = readArchiveInfo(fh);
-
-				// (offset,secondsPerPoint,points) =
-				// struct.unpack(archiveInfoFormat,packedArchiveInfo);
-				archiveInfos.add(archiveInfo);
-			} catch (Exception e) {
-				throw new CorruptWhisperFile("Unable to read archive metadata "
-						+ i + " of " + metaData.archiveCount + ", at position "
-						+ fh.getFilePointer(), e);
+		info = file.getHeader();
+		WhisperFilePool pool = filePool;
+		try {
+			if (pool != null && !pool.isCurrent(file)) {
+				// A pooled handle on a file replaced since, good for this
+				// call only
+				return info;
 			}
-
-		}
-
-		// Go back to where we were
-		fh.seek(originalOffset);
-
-		info = new Header();
-		info.metadata = metaData;
-		info.archiveInfo = archiveInfos;
-
-		if (CACHE_HEADERS) {
-			__headerCache.put(path, info);
+		} catch (IOException e) {
+			return info;
 		}
-
+		cache.put(file.getPath(), info);
 		return info;
 	}
 
-	private ArchiveInfo readArchiveInfo(RandomAccessFile fh) throws IOException {
-		ArchiveInfo archiveInfo = new ArchiveInfo();
-		archiveInfo.offset = fh.readInt();
-		archiveInfo.secondsPerPoint = fh.readInt();
-		archiveInfo.points = fh.readInt();
-		archiveInfo.retention = archiveInfo.secondsPerPoint
-				* archiveInfo.points;
-		archiveInfo.size = archiveInfo.points * Point.sizeof();
-		return archiveInfo;
-	}
-
 	/**
 	 * 
 	 * @param path
@@ -145,31 +347,37 @@ public class Whisper {
 			AggregationMethod aggregationMethod)
 			throws InvalidAggregationMethodException, CorruptWhisperFile,
 			IOException {
-		RandomAccessFile fh = new RandomAccessFile(path, "rw");// "r+b"
-		if (LOCK) {
-			// fcntl.flock( fh.fileno(), fcntl.LOCK_EX );
-		}
-
 		if (aggregationMethod == null) {
 			throw new InvalidAggregationMethodException(
 					"Unrecognized aggregation method");
 		}
-		MetaData metaData = readMetaData(path, fh);
-		metaData.aggregationType = aggregationMethod.getIntValue();
-
-		fh.seek(0);
-		fh.writeLong(metaData.aggregationType);
+		WhisperFile file = open(path, true);// "r+b"
+		WhisperLocks.Held lock = null;
+		try {
+			lock = lock(file, true);
 
-		if (AUTOFLUSH) {
-			// fh.flush();
-			// os.fsync(fh.fileno());
-		}
-		if (CACHE_HEADERS && __headerCache.containsKey(path)) {
-			__headerCache.remove(path);
+			MetaData metaData = new MetaData();
+			MetaData current = file.getHeader().metadata;
+			metaData.aggregationType = aggregationMethod.getIntValue();
+			metaData.maxRetention = current.maxRetention;
+			metaData.xFileFactor = current.xFileFactor;
+			metaData.archiveCount = current.archiveCount;
+			file.writeMetaData(metaData);
+
+			if (AUTOFLUSH) {
+				file.force();
+			}
+			if (headerCache != null) {
+				headerCache.invalidate(path);
+			}
+		} finally {
+			try {
+				unlock(lock);
+			} finally {
+				close(file);
+			}
 		}
 
-		fh.close();
-
 		// return
 		// aggregationMethod;//aggregationTypeToMethod.get(aggregationType,
 		// 'average');
@@ -194,6 +402,8 @@ public class Whisper {
 	public void create(String path, RetentionDef[] archiveList,
 			float xFilesFactor, AggregationMethod aggregationMethod)
 			throws IOException, InvalidConfigurationException {
+		WhisperMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
 		// Validate archive configurations...
 		if (archiveList == null) {
 			throw new InvalidConfigurationException(
@@ -239,11 +449,6 @@ public class Whisper {
 					+ " already exists!");
 		}
 
-		RandomAccessFile fh = new RandomAccessFile(path, "rw");
-		if (LOCK) {
-			// fcntl.flock( fh.fileno(), fcntl.LOCK_EX )
-		}
-
 		Header header = new Header();
 		header.metadata = new MetaData();
 		header.metadata.aggregationType = aggregationMethod.getIntValue();
@@ -271,18 +476,138 @@ public class Whisper {
 			archiveOffsetPointer += (retentionDef.point * Point.sizeof());
 		}
 
-		writeHeader(fh, header);
-		// zeroes = '\x00' * (archiveOffsetPointer - headerSize)
-		byte[] zeroes = new byte[(archiveOffsetPointer - headerSize)];
-		fh.write(zeroes);
+		// Written under a temporary name, so nobody sees a half written
+		// header and a concurrent create never truncates a live file
+		File temporary = temporaryFile(path);
+		RandomAccessFile fh = new RandomAccessFile(temporary, "rw");
+		boolean written = false;
+		try {
+			writeHeader(fh, header);
+			// zeroes = '\x00' * (archiveOffsetPointer - headerSize)
+			if (preallocate) {
+				FileChannel channel = fh.getChannel();
+				long position = headerSize;
+				while (position < archiveOffsetPointer) {
+					ByteBuffer zeroes = ZEROES.duplicate();
+					zeroes.limit((int) Math.min(zeroes.capacity(),
+							archiveOffsetPointer - position));
+					position += channel.write(zeroes, position);
+				}
+			} else {
+				fh.setLength(archiveOffsetPointer);
+			}
 
-		if (AUTOFLUSH) {
-			fh.getFD().sync();
-			// fh.flush()
-			// os.fsync(fh.fileno())
+			if (AUTOFLUSH) {
+				fh.getFD().sync();
+				// fh.flush()
+				// os.fsync(fh.fileno())
+			}
+			written = true;
+		} finally {
+			fh.close();
+			if (!written) {
+				temporary.delete();
+			}
+		}
+		try {
+			publish(temporary, path);
+		} catch (FileAlreadyExistsException e) {
+			throw new InvalidConfigurationException("File " + path
+					+ " already exists!");
+		}
+		created(path, preallocate ? archiveOffsetPointer : headerSize, start);
+	}
+
+	/**
+	 * A new, hidden file next to path, to write a whisper file into before
+	 * {@link #publish(File, String)} gives it its name
+	 */
+	static File temporaryFile(String path) throws IOException {
+		File target = new File(path).getAbsoluteFile();
+		return File.createTempFile("." + target.getName() + ".", ".tmp",
+				target.getParentFile());
+	}
+
+	/**
+	 * Gives a completely written temporary file the name path in one step.
+	 * The file is hard linked to path, which fails if path exists, so an
+	 * existing file is never replaced; where hard links are not supported
+	 * it is renamed instead, after checking path does not exist.
+	 * 
+	 * @param temporary
+	 *            removed in any case
+	 * @param path
+	 * @throws FileAlreadyExistsException
+	 *             if there already is a file at path
+	 * @throws IOException
+	 */
+	static void publish(File temporary, String path) throws IOException {
+		Path target = Paths.get(path);
+		try {
+			try {
+				Files.createLink(target, temporary.toPath());
+			} catch (FileAlreadyExistsException e) {
+				throw e;
+			} catch (UnsupportedOperationException e) {
+				move(temporary, target);
+			} catch (IOException e) {
+				// Some file systems refuse links with a plain IOException
+				move(temporary, target);
+			}
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	private static void move(File temporary, Path target) throws IOException {
+		if (Files.exists(target)) {
+			throw new FileAlreadyExistsException(target.toString());
+		}
+		Files.move(temporary.toPath(), target, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Updates the caches, index and metrics for a file that was just created
+	 * at path, here or by {@link WhisperCreator}
+	 * 
+	 * @param bytesWritten
+	 * @param start
+	 *            System.nanoTime() when the creation started
+	 */
+	void created(String path, long bytesWritten, long start)
+			throws IOException {
+		replaced(path, bytesWritten);
+		if (metricIndex != null) {
+			metricIndex.addPath(path);
+		}
+		WhisperMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.create.record(System.nanoTime() - start);
 		}
+	}
 
-		fh.close();
+	/**
+	 * Updates the caches and metrics for a file that was just put in place
+	 * of an older one at path, by {@link WhisperResizer} for example. Unlike
+	 * {@link #created(String, long, long)} this is not timed as a create.
+	 * 
+	 * @param bytesWritten
+	 */
+	void replaced(String path, long bytesWritten) throws IOException {
+		if (filePool != null) {
+			// Drop any handle left over from a previous file at this path
+			filePool.invalidate(path);
+		}
+		if (headerCache != null) {
+			headerCache.invalidate(path);
+		}
+		if (fetchCache != null) {
+			fetchCache.invalidate(path);
+		}
+		WhisperMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.bytesWritten.add(bytesWritten);
+		}
 	}
 
 	private int getOldest(RetentionDef[] archiveList) {
@@ -303,24 +628,57 @@ public class Whisper {
 
 	public void update(String path, float value, long timestamp)
 			throws InvalidAggregationMethodException, CorruptWhisperFile, TimestampNotCoveredException, IOException {
-		RandomAccessFile fh = new RandomAccessFile(path, "rw");
-		file_update(path,fh, value, timestamp);
+		WhisperFile file = openForUpdate(path);
+		try {
+			file_update(file, value, timestamp);
+		} finally {
+			close(file);
+		}
 	}
 
 	public void file_update(String path,RandomAccessFile fh, float value, long timestamp) throws InvalidAggregationMethodException, IOException, CorruptWhisperFile, TimestampNotCoveredException {
-		if (LOCK) {
-			// fcntl.flock( fh.fileno(), fcntl.LOCK_EX )
+		WhisperFile file = new WhisperFile(path, fh, true);
+		try {
+			file_update(file, value, timestamp);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Writes a single point through an open file handle. The handle is left
+	 * open.
+	 * 
+	 * @param file
+	 * @param value
+	 * @param timestamp
+	 *            seconds since the epoch
+	 */
+	public void file_update(WhisperFile file, float value, long timestamp) throws InvalidAggregationMethodException, CorruptWhisperFile, TimestampNotCoveredException, IOException {
+		WhisperMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		WhisperLocks.Held lock = lock(file, true);
+		try {
+			__update(file, value, timestamp);
+		} finally {
+			unlock(lock);
 		}
+		if (metrics != null) {
+			metrics.pointsWritten.increment();
+			metrics.update.record(System.nanoTime() - start);
+		}
+	}
 
-		Header header = readHeader(path,fh);
-		long now = System.currentTimeMillis();
+	private void __update(WhisperFile file, float value, long timestamp) throws InvalidAggregationMethodException, CorruptWhisperFile, TimestampNotCoveredException {
+		Header header = readHeader(file);
+		long now = time();
 		if (timestamp == Long.MAX_VALUE || timestamp == Long.MIN_VALUE || timestamp == Integer.MIN_VALUE || timestamp == Integer.MAX_VALUE) {
 			timestamp = now;
 		}
 
 		// timestamp = int(timestamp)
 		long diff = now - timestamp;
-		if (((diff < header.metadata.maxRetention) ==false && diff >= 0)) {
+		if (diff >= header.metadata.maxRetention) {
 			throw new TimestampNotCoveredException(
 					"Timestamp not covered by any archives in this database.");
 		}
@@ -330,7 +688,7 @@ public class Whisper {
 
 		for (int i = 0; i < header.archiveInfo.size(); i++) {// i,archive in
 																// enumerate(header['archives']){
-			archive = header.archiveInfo.get(0);
+			archive = header.archiveInfo.get(i);
 			// Find the highest-precision archive that covers timestamp
 			if (archive.retention < diff) {
 				continue;
@@ -342,33 +700,33 @@ public class Whisper {
 		}
 
 		// First we update the highest-precision archive
-		int myInterval = (int) (timestamp - (timestamp % archive.secondsPerPoint));
-		// myPackedPoint = struct.pack(pointFormat,myInterval,value)
-		// fh.seek(archive['offset']);
-		// packedPoint = fh.read(pointSize);
-		// (baseInterval,baseValue) = struct.unpack(pointFormat,packedPoint);
-		Point basePoint = readPoint(fh, archive.offset);
-
-		if (basePoint.timestamp == 0) { // This file's first update
-			// fh.seek(archive['offset'])
-			// fh.write(myPackedPoint)
-			writePoint(fh, archive.offset, basePoint);
-			// baseInterval,baseValue = myInterval,value;
-			basePoint.timestamp = myInterval;
-			basePoint.value = value;
+		long myInterval = timestamp - mod(timestamp, archive.secondsPerPoint);
+		long baseInterval = file.readTimestamp(archive.offset);
+
+		if (baseInterval == 0) { // This file's first update
+			file.writePoint(archive.offset, myInterval, value);
 		} else { // Not our first update
-			int timeDistance = (int) (myInterval - basePoint.timestamp);
-			int pointDistance = timeDistance / archive.secondsPerPoint;
-			int byteDistance = pointDistance * Point.sizeof();
-			int myOffset = archive.offset + (byteDistance % archive.size);
-			// fh.seek(myOffset);
-			// fh.write(myPackedPoint);
-			writePoint(fh, myOffset, basePoint);
+			long timeDistance = myInterval - baseInterval;
+			long pointDistance = timeDistance / archive.secondsPerPoint;
+			long byteDistance = pointDistance * Point.sizeof();
+			int myOffset = archive.offset + (int) mod(byteDistance, archive.size);
+			file.writePoint(myOffset, myInterval, value);
+		}
+		written(file.getPath(), archive.secondsPerPoint, myInterval);
+		WhisperMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.bytesWritten.add(Point.sizeof());
 		}
 		// Now we propagate the update to lower-precision archives
+		DeferredRollup rollup = deferredRollup;
+		if (rollup != null) {
+			rollup.markDirty(file.getPath(), header, archive,
+					new long[] { myInterval }, 1);
+			lowerArchives = Collections.emptyList();
+		}
 		ArchiveInfo higher = archive;
 		for (ArchiveInfo lowerArchive : lowerArchives) {
-			boolean proagate = Propagation.__propagate(fh, header, myInterval,
+			boolean proagate = propagate(file, header, myInterval,
 					higher, lowerArchive);
 			if (proagate == false) {
 				break;
@@ -382,148 +740,636 @@ public class Whisper {
 		// higher = lower
 
 		if (AUTOFLUSH) {
-			// fh.flush()
-			// os.fsync(fh.fileno())
-		}
-		fh.close();
-	}
-
-	// public void update_many(String path,List<Point> points){
-	// // """update_many(path,points)
-	// //
-	// // path is a string
-	// // points is a list of (timestamp,value) points
-	// // """
-	// if (points == null){
-	// return;
-	// }
-	// //points = [ (int(t),float(v)) for (t,v) in points]
-	// //TODO: sort
-	// //points.sort(key=lambda p: p[0],reverse=True) //order points by
-	// timestamp, newest first
-	// RandomAccesFile fh = new RandomAccessFile(path,'r+b');
-	// file_update_many(fh, points);
-	// }
-	
-	
-	
-	
-	// public void file_update_many(RandomAccessFile fh, List<Point> points){
-	// if( LOCK){
-	// //fcntl.flock( fh.fileno(), fcntl.LOCK_EX )
-	// }
-	//
-	// Header header = __readHeader(fh);
-	// long now = System.currentTimeMillis();
-	// archives = header.archiveInfo;iter( header['archives'] );
-	// currentArchive = archives.next();
-	// currentPoints = [];
-	//
-	// for(Point point : points){
-	// age = now - point[0];
-	//
-	// while currentArchive['retention'] < age: #we can't fit any more points in
-	// this archive
-	// if currentPoints: #commit all the points we've found that it can fit
-	// currentPoints.reverse() #put points in chronological order
-	// __archive_update_many(fh,header,currentArchive,currentPoints)
-	// currentPoints = []
-	// try:
-	// currentArchive = archives.next()
-	// except StopIteration:
-	// currentArchive = None
-	// break
-	//
-	// if not currentArchive:
-	// break //drop remaining points that don't fit in the database
-	//
-	// currentPoints.append(point);
-	// }
-	//
-	// if( currentArchive != null && currentPoints != null){ //don't forget to
-	// commit after we've checked all the archives
-	// currentPoints.reverse();
-	// __archive_update_many(fh,header,currentArchive,currentPoints);
-	// }
-	//
-	// if( AUTOFLUSH){
-	// //fh.flush()
-	// //os.fsync(fh.fileno())
-	// }
-	// fh.close();
-	// }
-
-	public Point[] getAlignedPoints(Point[] points,int step){
-		//alignedPoints = [ (timestamp - (timestamp % step), value)  for (timestamp,value) in points ]
-		Point[] alignedPoints = new Point[points.length];
-		int i=0;
-		for(Point point:points){
-			Point aligned = new Point();
-			aligned.timestamp = point.timestamp - mod(point.timestamp,step);
-			aligned.value = point.value;
-			alignedPoints[i] = aligned;
-					i++;
+			file.force();
 		}
-		return alignedPoints;
 	}
-	
-
 
 	/**
-	 * Like a subString for Lists
+	 * Writes a batch of points to a whisper file with a single open and header
+	 * read.
 	 * 
-	 * @param archiveInfo
-	 * @param i
-	 * @return
+	 * @param path
+	 * @param points
+	 *            list of (timestamp,value) points, timestamps in seconds. The
+	 *            list does not need to be sorted; when several points fall
+	 *            into the same interval the last one in the list wins.
+	 * @throws IOException
+	 * @throws CorruptWhisperFile
+	 * @throws InvalidAggregationMethodException
 	 */
-	private List<ArchiveInfo> subList(List<ArchiveInfo> archiveInfo, int i) {
-		List<ArchiveInfo> result = new ArrayList<ArchiveInfo>();
-		for (int j = i; j < archiveInfo.size(); j++) {
-			result.add(archiveInfo.get(j));
+	public void update_many(String path, List<Point> points)
+			throws IOException, CorruptWhisperFile,
+			InvalidAggregationMethodException {
+		if (points == null || points.isEmpty()) {
+			return;
+		}
+		WhisperFile file = openForUpdate(path);
+		try {
+			file_update_many(file, points);
+		} finally {
+			close(file);
 		}
-		return result;
 	}
 
-	public Header info(String path) throws Exception {
-		// """info(path)
-		//
-		// path is a string
-		// """
-		RandomAccessFile fh = new RandomAccessFile(path, "rw");
-		Header info = readHeader(path, fh);
-		fh.close();
-		return info;
+	public void file_update_many(String path, RandomAccessFile fh,
+			List<Point> points) throws IOException, CorruptWhisperFile,
+			InvalidAggregationMethodException {
+		WhisperFile file = new WhisperFile(path, fh, true);
+		try {
+			file_update_many(file, points);
+		} finally {
+			file.close();
+		}
 	}
 
 	/**
+	 * Writes a batch of points through an open file handle. The handle is
+	 * left open.
 	 * 
-	 * @param path
-	 * @param fromTime
-	 *            epoch time in seconds
-	 * @param untilTime
-	 *            epoch time in seconds, but defaults to now
-	 * @return
-	 * @throws Exception
+	 * @param file
+	 * @param points
 	 */
-	public TimeInfo fetch(String path, int fromTime, int untilTime)
-			throws Exception {
-		RandomAccessFile fh = new RandomAccessFile(path, "r");
-		return file_fetch(path, fh, fromTime, untilTime);
+	public void file_update_many(WhisperFile file, List<Point> points)
+			throws CorruptWhisperFile, InvalidAggregationMethodException,
+			IOException {
+		if (points == null || points.isEmpty()) {
+			return;
+		}
+		WhisperMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		WhisperLocks.Held lock = lock(file, true);
+		try {
+			__update_many(file, points);
+		} finally {
+			unlock(lock);
+		}
+		if (metrics != null) {
+			metrics.pointsWritten.add(points.size());
+			metrics.update.record(System.nanoTime() - start);
+		}
 	}
 
-	/**
-	 * Seconds since the epoch
-	 * 
-	 * @return
-	 */
-	public static int time() {
-		long fromTime = System.currentTimeMillis();
-		int i = (int) (fromTime / 1000l);
-		return i;
-	}
+	private void __update_many(WhisperFile file, List<Point> points)
+			throws CorruptWhisperFile, InvalidAggregationMethodException {
+		Header header = readHeader(file);
+		int now = time();
 
-	/**
-	 * Negative-safe modulus
+		// Oldest first; the sort is stable so the last submitted point for a
+		// timestamp stays last
+		List<Point> sorted = new ArrayList<Point>(points);
+		Collections.sort(sorted, TIMESTAMP_ORDER);
+
+		// Walk back from the newest point, handing each archive the run of
+		// points it is the highest-precision archive for
+		int end = sorted.size();
+		int i = end - 1;
+		for (ArchiveInfo archive : header.archiveInfo) {
+			while (i >= 0 && now - sorted.get(i).timestamp <= archive.retention) {
+				i--;
+			}
+			if (i + 1 < end) {
+				__archive_update_many(file, header, archive,
+						sorted.subList(i + 1, end));
+				end = i + 1;
+			}
+			if (end == 0) {
+				break;
+			}
+		}
+		// Whatever is left is older than maxRetention and is dropped
+
+		if (AUTOFLUSH) {
+			file.force();
+		}
+	}
+
+	/**
+	 * Writes chronologically ordered points to one archive. Consecutive
+	 * intervals are packed into a single buffer and written with one write,
+	 * or two when the run wraps around the end of the archive. Every lower
+	 * interval touched by the batch is then propagated exactly once.
+	 */
+	private void __archive_update_many(WhisperFile file, Header header,
+			ArchiveInfo archive, List<Point> points)
+			throws InvalidAggregationMethodException {
+		int step = archive.secondsPerPoint;
+
+		// Align to the archive and keep the last value for each interval
+		long[] intervals = new long[points.size()];
+		double[] values = new double[points.size()];
+		int count = 0;
+		for (Point point : points) {
+			long interval = point.timestamp - mod(point.timestamp, step);
+			if (count > 0 && intervals[count - 1] == interval) {
+				values[count - 1] = point.value;
+			} else {
+				intervals[count] = interval;
+				values[count] = point.value;
+				count++;
+			}
+		}
+
+		// Read base point and determine where our writes will start
+		long baseInterval = file.readTimestamp(archive.offset);
+		if (baseInterval == 0) { // This file's first update
+			baseInterval = intervals[0];
+		}
+
+		byte[] packed = new byte[count * Point.sizeof()];
+		ByteBuffer run = ByteBuffer.wrap(packed);
+		int runStart = 0;
+		for (int j = 0; j <= count; j++) {
+			if (j == count
+					|| (j > runStart && intervals[j] != intervals[j - 1] + step)) {
+				writeRun(file, archive, baseInterval, intervals[runStart], packed,
+						run.position());
+				run.clear();
+				runStart = j;
+			}
+			if (j < count) {
+				run.putInt((int) intervals[j]);
+				run.putDouble(values[j]);
+			}
+		}
+		written(file.getPath(), step, intervals[0]);
+
+		DeferredRollup rollup = deferredRollup;
+		if (rollup != null) {
+			rollup.markDirty(file.getPath(), header, archive, intervals, count);
+			return;
+		}
+
+		// Now we propagate the updates to lower-precision archives. The
+		// intervals are sorted, so equal lower intervals are adjacent.
+		ArchiveInfo higher = archive;
+		for (ArchiveInfo lower : header.archiveInfo) {
+			if (lower.secondsPerPoint <= archive.secondsPerPoint) {
+				continue;
+			}
+			boolean propagateFurther = false;
+			long previous = -1;
+			for (int j = 0; j < count; j++) {
+				long lowerInterval = intervals[j]
+						- mod(intervals[j], lower.secondsPerPoint);
+				if (lowerInterval == previous) {
+					continue;
+				}
+				previous = lowerInterval;
+				if (propagate(file, header, lowerInterval, higher, lower)) {
+					propagateFurther = true;
+				}
+			}
+			if (!propagateFurther) {
+				break;
+			}
+			higher = lower;
+		}
+	}
+
+	/**
+	 * Writes a packed run of consecutive points starting at startInterval,
+	 * splitting it in two when it runs past the end of the archive.
+	 */
+	private void writeRun(WhisperFile file, ArchiveInfo archive,
+			long baseInterval, long startInterval, byte[] run, int length) {
+		int skip = 0;
+		if (length > archive.size) {
+			// Only the newest archive.points points survive a full lap
+			skip = length - archive.size;
+			startInterval += (skip / Point.sizeof()) * archive.secondsPerPoint;
+			length = archive.size;
+		}
+		long pointDistance = (startInterval - baseInterval)
+				/ archive.secondsPerPoint;
+		int myOffset = archive.offset
+				+ (int) mod(pointDistance * Point.sizeof(), archive.size);
+		int archiveEnd = archive.offset + archive.size;
+		int bytesBeyond = (myOffset + length) - archiveEnd;
+
+		if (bytesBeyond > 0) {
+			file.write(myOffset, run, skip, length - bytesBeyond);
+			file.write(archive.offset, run, skip + length - bytesBeyond,
+					bytesBeyond);
+		} else {
+			file.write(myOffset, run, skip, length);
+		}
+		WhisperMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.bytesWritten.add(length);
+		}
+	}
+
+	/**
+	 * Propagates the intervals collected by a {@link DeferredRollup}: entry i
+	 * holds the intervals of archive i + 1 to aggregate from archive i. Every
+	 * interval that propagates makes its interval in the next archive dirty.
+	 * 
+	 * @param later
+	 *            where those are marked dirty, to be rolled up once they have
+	 *            closed, or null to handle them in the same pass
+	 * @return the number of intervals propagated
+	 */
+	int rollup(String path, List<? extends Set<Long>> dirty,
+			DeferredRollup later) throws IOException, CorruptWhisperFile,
+			InvalidAggregationMethodException {
+		WhisperFile file = open(path, true);
+		try {
+			WhisperLocks.Held lock = lock(file, true);
+			try {
+				Header header = readHeader(file);
+				List<ArchiveInfo> archives = header.archiveInfo;
+				int propagated = 0;
+				for (int i = 0; i + 1 < archives.size() && i < dirty.size(); i++) {
+					ArchiveInfo higher = archives.get(i);
+					ArchiveInfo lower = archives.get(i + 1);
+					Set<Long> next = i + 1 < dirty.size() ? dirty.get(i + 1)
+							: null;
+					ArchiveInfo lowest = i + 2 < archives.size() ? archives
+							.get(i + 2) : null;
+					for (Long interval : dirty.get(i)) {
+						if (!propagate(file, header, interval, higher, lower)) {
+							continue;
+						}
+						propagated++;
+						if (lowest == null) {
+							continue;
+						}
+						if (later != null) {
+							later.markDirty(path, header, lower,
+									new long[] { interval }, 1);
+						} else if (next != null) {
+							next.add(interval
+									- mod(interval, lowest.secondsPerPoint));
+						}
+					}
+				}
+				if (AUTOFLUSH) {
+					file.force();
+				}
+				return propagated;
+			} finally {
+				unlock(lock);
+			}
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Tells the fetch cache that the archive with the given step of path
+	 * changed from interval on
+	 */
+	void written(String path, long step, long interval) {
+		FetchCache cache = fetchCache;
+		if (cache != null) {
+			cache.invalidate(path, step, interval);
+		}
+	}
+
+	/**
+	 * {@link Propagation#__propagate}, timed and counted when metrics are set
+	 */
+	private boolean propagate(WhisperFile file, Header header, long timestamp,
+			ArchiveInfo higher, ArchiveInfo lower)
+			throws InvalidAggregationMethodException {
+		WhisperMetrics metrics = this.metrics;
+		if (metrics == null) {
+			boolean propagated = Propagation.__propagate(file, header,
+					timestamp, higher, lower);
+			if (propagated) {
+				written(file.getPath(), lower.secondsPerPoint, timestamp
+						- mod(timestamp, lower.secondsPerPoint));
+			}
+			return propagated;
+		}
+		long start = System.nanoTime();
+		boolean propagated = Propagation.__propagate(file, header, timestamp,
+				higher, lower);
+		metrics.propagate.record(System.nanoTime() - start);
+		metrics.propagations.increment();
+		metrics.bytesRead.add((lower.secondsPerPoint / higher.secondsPerPoint)
+				* Point.sizeof());
+		if (propagated) {
+			written(file.getPath(), lower.secondsPerPoint, timestamp
+					- mod(timestamp, lower.secondsPerPoint));
+			metrics.bytesWritten.add(Point.sizeof());
+		} else {
+			metrics.propagationsSkipped.increment();
+		}
+		return propagated;
+	}
+
+	private static final Comparator<Point> TIMESTAMP_ORDER = new Comparator<Point>() {
+		public int compare(Point a, Point b) {
+			return a.timestamp < b.timestamp ? -1
+					: (a.timestamp == b.timestamp ? 0 : 1);
+		}
+	};
+
+	public Point[] getAlignedPoints(Point[] points,int step){
+		//alignedPoints = [ (timestamp - (timestamp % step), value)  for (timestamp,value) in points ]
+		Point[] alignedPoints = new Point[points.length];
+		int i=0;
+		for(Point point:points){
+			Point aligned = new Point();
+			aligned.timestamp = point.timestamp - mod(point.timestamp,step);
+			aligned.value = point.value;
+			alignedPoints[i] = aligned;
+					i++;
+		}
+		return alignedPoints;
+	}
+	
+
+
+	/**
+	 * Like a subString for Lists
+	 * 
+	 * @param archiveInfo
+	 * @param i
+	 * @return
+	 */
+	private List<ArchiveInfo> subList(List<ArchiveInfo> archiveInfo, int i) {
+		List<ArchiveInfo> result = new ArrayList<ArchiveInfo>();
+		for (int j = i; j < archiveInfo.size(); j++) {
+			result.add(archiveInfo.get(j));
+		}
+		return result;
+	}
+
+	public Header info(String path) throws Exception {
+		// """info(path)
+		//
+		// path is a string
+		// """
+		WhisperFile file = open(path, false);
+		try {
+			WhisperLocks.Held lock = lock(file, false);
+			try {
+				return readHeader(file);
+			} finally {
+				unlock(lock);
+			}
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * 
+	 * @param path
+	 * @param fromTime
+	 *            epoch time in seconds
+	 * @param untilTime
+	 *            epoch time in seconds, but defaults to now
+	 * @return
+	 * @throws Exception
+	 */
+	public TimeInfo fetch(String path, int fromTime, int untilTime)
+			throws Exception {
+		WhisperFile file = open(path, false);
+		try {
+			return file_fetch(file, fromTime, untilTime);
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Like {@link #fetch(String, int, int)}, but returns the values as a
+	 * primitive array in {@link TimeInfo#values} instead of a Point per slot.
+	 * 
+	 * @param path
+	 * @param fromTime
+	 *            epoch time in seconds
+	 * @param untilTime
+	 *            epoch time in seconds, but defaults to now
+	 * @return
+	 * @throws Exception
+	 */
+	public TimeInfo fetchValues(String path, int fromTime, int untilTime)
+			throws Exception {
+		WhisperFile file = open(path, false);
+		try {
+			return file_fetchValues(file, fromTime, untilTime);
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Like {@link #fetch(String, int, int)}, but reads the range lazily in
+	 * chunks of {@link FetchSpliterator#CHUNK_POINTS} points instead of all at
+	 * once. The returned spliterator keeps the file open and must be closed.
+	 * 
+	 * @param path
+	 * @param fromTime
+	 *            epoch time in seconds
+	 * @param untilTime
+	 *            epoch time in seconds
+	 * @return
+	 * @throws IOException
+	 * @throws CorruptWhisperFile
+	 * @throws InvalidTimeIntervalException
+	 */
+	public FetchSpliterator stream(String path, int fromTime, int untilTime)
+			throws IOException, CorruptWhisperFile,
+			InvalidTimeIntervalException {
+		return stream(path, fromTime, untilTime, FetchSpliterator.CHUNK_POINTS);
+	}
+
+	/**
+	 * Like {@link #stream(String, int, int)}, reading chunkPoints points at a
+	 * time
+	 */
+	public FetchSpliterator stream(String path, int fromTime, int untilTime,
+			int chunkPoints) throws IOException, CorruptWhisperFile,
+			InvalidTimeIntervalException {
+		return stream(path, fromTime, untilTime, chunkPoints, 0, null);
+	}
+
+	/**
+	 * Fetches a range reduced to at most maxDataPoints values, for graphs
+	 * that cannot show more. Intervals are combined with function into
+	 * buckets aligned to a multiple of the archive step while the archive is
+	 * read, without materializing the range.
+	 * 
+	 * When function is the aggregation method of the file, a lower archive
+	 * that still has at least maxDataPoints points in the range is read
+	 * instead of the one {@link #fetch(String, int, int)} would use; its
+	 * points already hold the same aggregate over wider intervals.
+	 * 
+	 * @param path
+	 * @param fromTime
+	 *            epoch time in seconds
+	 * @param untilTime
+	 *            epoch time in seconds
+	 * @param maxDataPoints
+	 *            at least 1
+	 * @param function
+	 *            how the intervals of a bucket are combined
+	 * @return a TimeInfo with {@link TimeInfo#values} set, step is the
+	 *         bucket width
+	 * @throws IOException
+	 * @throws CorruptWhisperFile
+	 * @throws InvalidTimeIntervalException
+	 * @throws InvalidAggregationMethodException
+	 */
+	public TimeInfo fetchConsolidated(String path, int fromTime,
+			int untilTime, int maxDataPoints, AggregationMethod function)
+			throws IOException, CorruptWhisperFile,
+			InvalidTimeIntervalException, InvalidAggregationMethodException {
+		if (function == null) {
+			throw new InvalidAggregationMethodException(
+					"No consolidation function");
+		}
+		if (maxDataPoints < 1) {
+			throw new IllegalArgumentException(
+					"maxDataPoints must be at least 1");
+		}
+		WhisperMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		FetchSpliterator points = stream(path, fromTime, untilTime,
+				FetchSpliterator.CHUNK_POINTS, maxDataPoints, function);
+		try {
+			long step = points.getStep();
+			long fromInterval = points.getNextInterval();
+			long lastInterval = points.getUntilInterval() - step;
+			long valuesPerPoint = Math.max(1,
+					(points.estimateSize() + maxDataPoints - 1) / maxDataPoints);
+			long bucketStep;
+			long firstBucket;
+			long lastBucket;
+			while (true) {
+				// Buckets are aligned to their width so they stay put as the
+				// range moves
+				bucketStep = step * valuesPerPoint;
+				firstBucket = fromInterval - mod(fromInterval, bucketStep);
+				lastBucket = lastInterval - mod(lastInterval, bucketStep);
+				if ((lastBucket - firstBucket) / bucketStep < maxDataPoints) {
+					break;
+				}
+				valuesPerPoint++;
+			}
+			int buckets = (int) ((lastBucket - firstBucket) / bucketStep) + 1;
+			Consolidator consolidator = new Consolidator(function,
+					firstBucket, bucketStep, buckets);
+			points.forEachRemaining(consolidator);
+			TimeInfo timeInfo = new TimeInfo(firstBucket, lastBucket
+					+ bucketStep, bucketStep);
+			timeInfo.values = consolidator.finish();
+			return timeInfo;
+		} finally {
+			points.close();
+			if (metrics != null) {
+				metrics.fetch.record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Opens a stream on the archive for the range, or on a lower one with at
+	 * least maxDataPoints points in the range when function is the
+	 * aggregation method of the file
+	 */
+	private FetchSpliterator stream(String path, int fromTime, int untilTime,
+			int chunkPoints, int maxDataPoints, AggregationMethod function)
+			throws IOException, CorruptWhisperFile,
+			InvalidTimeIntervalException {
+		WhisperFile file = open(path, false);
+		boolean opened = false;
+		try {
+			Header header = readHeader(file);
+			int now = time();
+			int oldestTime = now - header.metadata.maxRetention;
+			if (fromTime < oldestTime) {
+				fromTime = oldestTime;
+			}
+			if ((fromTime < untilTime) == false) {
+				throw new InvalidTimeIntervalException("Invalid time interval "
+						+ fromTime + " " + untilTime);
+			}
+			if (untilTime > now) {
+				untilTime = now;
+			}
+			if (untilTime < fromTime) {
+				untilTime = now;
+			}
+			ArchiveInfo archive = archiveFor(header, now - fromTime);
+			if (maxDataPoints > 0
+					&& function != null
+					&& function.getIntValue() == header.metadata.aggregationType) {
+				List<ArchiveInfo> archives = header.archiveInfo;
+				for (int i = archives.size() - 1; archives.get(i) != archive; i--) {
+					ArchiveInfo lower = archives.get(i);
+					if (lower.retention >= now - fromTime
+							&& (untilTime - fromTime) / lower.secondsPerPoint >= maxDataPoints) {
+						archive = lower;
+						break;
+					}
+				}
+			}
+			long step = archive.secondsPerPoint;
+			long fromInterval = fromTime - mod(fromTime, step) + step;
+			long untilInterval = untilTime - mod(untilTime, step) + step;
+			FetchSpliterator spliterator = new FetchSpliterator(this, file,
+					true, archive, fromInterval, untilInterval, chunkPoints);
+			opened = true;
+			return spliterator;
+		} finally {
+			if (!opened) {
+				close(file);
+			}
+		}
+	}
+
+	/**
+	 * The highest precision archive that retains diff seconds
+	 */
+	private static ArchiveInfo archiveFor(Header header, int diff) {
+		for (ArchiveInfo currentArchive : header.archiveInfo) {
+			if (currentArchive.retention >= diff) {
+				return currentArchive;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Seconds since the epoch
+	 * 
+	 * @return
+	 */
+	public static int time() {
+		long fromTime = System.currentTimeMillis();
+		int i = (int) (fromTime / 1000l);
+		return i;
+	}
+
+	/**
+	 * Returns an empty buffer of at least capacity bytes. Buffers up to
+	 * SCRATCH_MAX_BYTES are kept per thread and handed out again on the next
+	 * call, so the contents are only valid until then.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	static ByteBuffer scratch(int capacity) {
+		if (capacity > SCRATCH_MAX_BYTES) {
+			return ByteBuffer.allocate(capacity);
+		}
+		ByteBuffer buffer = SCRATCH.get();
+		if (buffer == null || buffer.capacity() < capacity) {
+			buffer = ByteBuffer.allocate(Math.max(capacity, 4096));
+			SCRATCH.set(buffer);
+		}
+		buffer.clear();
+		buffer.limit(capacity);
+		return buffer;
+	}
+
+	/**
+	 * Negative-safe modulus
 	 * 
 	 * @param x
 	 * @param y
@@ -537,10 +1383,133 @@ public class Whisper {
 		return result;
 	}
 
+	/**
+	 * Fetches a range through a file the caller opened. fh is left open,
+	 * only the mapping made for this call is released.
+	 */
 	public TimeInfo file_fetch(String path, RandomAccessFile fh, int fromTime,
 			int untilTime) throws IOException, CorruptWhisperFile,
 			InvalidTimeIntervalException {
-		Header header = readHeader(path, fh);
+		WhisperFile file = new WhisperFile(path, fh, false, false);
+		try {
+			return file_fetch(file, fromTime, untilTime);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Fetches a range through an open file handle. The handle is left open.
+	 * 
+	 * @param file
+	 * @param fromTime
+	 *            epoch time in seconds
+	 * @param untilTime
+	 *            epoch time in seconds
+	 * @return
+	 * @throws CorruptWhisperFile
+	 * @throws InvalidTimeIntervalException
+	 */
+	public TimeInfo file_fetch(WhisperFile file, int fromTime, int untilTime)
+			throws CorruptWhisperFile, InvalidTimeIntervalException,
+			IOException {
+		WhisperMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		WhisperLocks.Held lock = lock(file, false);
+		try {
+			return __fetch(file, fromTime, untilTime, false);
+		} finally {
+			unlock(lock);
+			if (metrics != null) {
+				metrics.fetch.record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Fetches a range as a primitive array through an open file handle. The
+	 * handle is left open.
+	 * 
+	 * @param file
+	 * @param fromTime
+	 *            epoch time in seconds
+	 * @param untilTime
+	 *            epoch time in seconds
+	 * @return a TimeInfo with {@link TimeInfo#values} set
+	 * @throws CorruptWhisperFile
+	 * @throws InvalidTimeIntervalException
+	 */
+	public TimeInfo file_fetchValues(WhisperFile file, int fromTime,
+			int untilTime) throws CorruptWhisperFile,
+			InvalidTimeIntervalException, IOException {
+		WhisperMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		WhisperLocks.Held lock = lock(file, false);
+		try {
+			return __fetch(file, fromTime, untilTime, true);
+		} finally {
+			unlock(lock);
+			if (metrics != null) {
+				metrics.fetch.record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	private TimeInfo __fetch(WhisperFile file, int fromTime, int untilTime,
+			boolean columnar) throws CorruptWhisperFile,
+			InvalidTimeIntervalException {
+		PendingPoints cache = pendingPoints;
+		if (cache == null) {
+			return __fetchArchive(file, fromTime, untilTime, columnar);
+		}
+		// Taken before reading, points written meanwhile are still in it
+		List<Point> pending = cache.pendingPoints(file.getPath());
+		TimeInfo timeInfo = __fetchArchive(file, fromTime, untilTime,
+				columnar);
+		if (!pending.isEmpty()) {
+			overlay(readHeader(file), timeInfo, pending);
+		}
+		return timeInfo;
+	}
+
+	/**
+	 * Puts the pending points that update_many would write to the archive
+	 * of timeInfo into it, aligned the same way, the last point of an
+	 * interval winning
+	 */
+	private static void overlay(Header header, TimeInfo timeInfo,
+			List<Point> pending) {
+		List<Point> points = new ArrayList<Point>(pending);
+		Collections.sort(points, TIMESTAMP_ORDER);
+		long now = time();
+		int length = timeInfo.values != null ? timeInfo.values.length
+				: timeInfo.points.length;
+		for (Point point : points) {
+			ArchiveInfo archive = archiveFor(header,
+					(int) (now - point.timestamp));
+			if (archive == null || archive.secondsPerPoint != timeInfo.step) {
+				continue;
+			}
+			long interval = point.timestamp - mod(point.timestamp, timeInfo.step);
+			long index = (interval - timeInfo.fromInterval) / timeInfo.step;
+			if (interval < timeInfo.fromInterval || index >= length) {
+				continue;
+			}
+			if (timeInfo.values != null) {
+				timeInfo.values[(int) index] = point.value;
+			} else {
+				Point aligned = new Point();
+				aligned.timestamp = interval;
+				aligned.value = point.value;
+				timeInfo.points[(int) index] = aligned;
+			}
+		}
+	}
+
+	private TimeInfo __fetchArchive(WhisperFile file, int fromTime,
+			int untilTime, boolean columnar) throws CorruptWhisperFile,
+			InvalidTimeIntervalException {
+		Header header = readHeader(file);
 		int now = time();
 		if (untilTime == Long.MAX_VALUE || untilTime == Long.MIN_VALUE) {
 			untilTime = now;
@@ -564,83 +1533,47 @@ public class Whisper {
 			untilTime = now;
 		}
 
-		int diff = now - fromTime;
-		ArchiveInfo archive = null;
-		for (ArchiveInfo currentArchive : header.archiveInfo) {
-			if (currentArchive.retention >= diff) {
-				archive = currentArchive;
-				break;
-			}
-		}
+		ArchiveInfo archive = archiveFor(header, now - fromTime);
 
 		int fromInterval = (fromTime - (fromTime % archive.secondsPerPoint))
 				+ archive.secondsPerPoint;
 		int untilInterval = (untilTime - (untilTime % archive.secondsPerPoint))
 				+ archive.secondsPerPoint;
-		fh.seek(archive.offset);
-
-		// long pointer = fh.getFilePointer();
-		// packedPoint = fh.read(pointSize)
-		// (baseInterval,baseValue) = struct.unpack(pointFormat,packedPoint)
-
 		// See http://jwinblad.com/resources/unsignedtojava.html
-
-		long baseInterval = fh.readInt() & 0xffffffffL;// Remove the sign
-		// int baseInterval = fh.readInt() & 0xffff;//Remove the sign
-		// double baseValue =
-		// fh.readFloat();//Float.intBitsToFloat(fh.readInt());
-		// double d = fh.readDouble();
-		float baseValue = (float) fh.readDouble();
+		long baseInterval = file.readTimestamp(archive.offset);
 
 		if (baseInterval == 0) {
 			long step = archive.secondsPerPoint;
 			int points = (int) ((untilInterval - fromInterval) / step);
 			TimeInfo timeInfo = new TimeInfo(fromInterval, untilInterval, step);
-			Point[] valueList = new Point[points];
-			timeInfo.points = valueList;
+			if (columnar) {
+				timeInfo.values = new double[points];
+				Arrays.fill(timeInfo.values, Double.NaN);
+			} else {
+				Point[] valueList = new Point[points];
+				timeInfo.points = valueList;
+			}
 			return timeInfo;
 		}
 
-		// Determine fromOffset
-		long timeDistance = ((long) fromInterval) - baseInterval;
-		long pointDistance = timeDistance / archive.secondsPerPoint;
-		long byteDistance = pointDistance * Point.sizeof();
-
-		long temp = mod(byteDistance, archive.size);
-		long fromOffset = archive.offset + temp;
-
-		// Determine untilOffset
-		timeDistance = untilInterval - baseInterval;
-		pointDistance = timeDistance / archive.secondsPerPoint;
-		byteDistance = pointDistance * Point.sizeof();
-		int untilOffset = (int) (archive.offset + mod(byteDistance,
-				archive.size));
-
-		// Read all the points in the interval
-		fh.seek(fromOffset);
-		byte[] seriesString;
-		if (fromOffset < untilOffset) {
-			// If we don't wrap around the archive
-			seriesString = new byte[((int) untilOffset - (int) fromOffset)];
-			int read = fh.read(seriesString);
-			if (read != seriesString.length) {
-				throw new CorruptWhisperFile("read " + read + " != "
-						+ seriesString.length);
+		FetchCache cache = fetchCache;
+		if (cache != null) {
+			double[] values = cachedValues(cache, file, archive, baseInterval,
+					fromInterval, untilInterval);
+			TimeInfo timeInfo = new TimeInfo(fromInterval, untilInterval,
+					archive.secondsPerPoint);
+			if (columnar) {
+				timeInfo.values = values;
+			} else {
+				timeInfo.points = toPoints(values, fromInterval,
+						archive.secondsPerPoint);
 			}
-		} else {
-			// We do wrap around the archive, so we need two reads
-			long archiveEnd = archive.offset + archive.size;
-			int firstpart = ((int) archiveEnd - (int) fromOffset);
-			int secondpart = untilOffset - archive.offset;
-			seriesString = new byte[firstpart];
-			fh.read(seriesString, 0, firstpart);
-			fh.seek(archive.offset);
-			byte[] newb = new byte[secondpart];
-			fh.read(newb);
-			// TODO: is there a way to read directly in the existing array with
-			// an offset?
-			seriesString = concat(seriesString, newb);
+			return timeInfo;
 		}
+
+		// Read all the points in the interval
+		ByteBuffer seriesString = readSeries(file, archive, baseInterval,
+				fromInterval, untilInterval);
 		// System.out.println("Points size: " + seriesString.length);
 		// System.out.println("Points count: " + seriesString.length
 		// / Point.sizeof());
@@ -657,6 +1590,11 @@ public class Whisper {
 		// valueList = [None] * points //pre-allocate entire list for speed
 		int currentInterval = fromInterval;
 		int step = archive.secondsPerPoint;
+		if (columnar) {
+			TimeInfo timeInfo = new TimeInfo(fromInterval, untilInterval, step);
+			timeInfo.values = unpackValues(seriesString, currentInterval, step);
+			return timeInfo;
+		}
 		Point[] points = unpackPoints(seriesString, currentInterval, step);
 
 		//
@@ -683,27 +1621,132 @@ public class Whisper {
 		return C;
 	}
 
+	/**
+	 * Reads the slots of archive from fromInterval (inclusive) to
+	 * untilInterval (exclusive) into a scratch buffer, ready to be unpacked
+	 */
+	private ByteBuffer readSeries(WhisperFile file, ArchiveInfo archive,
+			long baseInterval, long fromInterval, long untilInterval) {
+		// Determine fromOffset
+		long timeDistance = fromInterval - baseInterval;
+		long pointDistance = timeDistance / archive.secondsPerPoint;
+		long byteDistance = pointDistance * Point.sizeof();
+		int fromOffset = (int) (archive.offset + mod(byteDistance,
+				archive.size));
+
+		// Determine untilOffset
+		timeDistance = untilInterval - baseInterval;
+		pointDistance = timeDistance / archive.secondsPerPoint;
+		byteDistance = pointDistance * Point.sizeof();
+		int untilOffset = (int) (archive.offset + mod(byteDistance,
+				archive.size));
+
+		ByteBuffer series = scratch(WhisperFile.rangeLength(archive,
+				fromOffset, untilOffset));
+		int bytes = file.readRange(archive, fromOffset, untilOffset, series);
+		WhisperMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.bytesRead.add(bytes);
+		}
+		series.flip();
+		return series;
+	}
+
+	/**
+	 * The values of a range from the fetch cache, reading from disk only
+	 * what is not cached or was written since it was cached. Returns a copy
+	 * the caller may keep. Only a miss or a stale tail registers a new
+	 * range; a plain hit leaves the cached one, and its expiry, alone.
+	 */
+	private double[] cachedValues(FetchCache cache, WhisperFile file,
+			ArchiveInfo archive, long baseInterval, int fromInterval,
+			int untilInterval) {
+		String path = file.getPath();
+		int step = archive.secondsPerPoint;
+		FetchCache.Range cached = cache.get(path, step, fromInterval,
+				untilInterval);
+		double[] values;
+		if (cached != null) {
+			if (cached.getValidUntil() >= untilInterval) {
+				return cached.values.clone();
+			}
+			// Registered before reading, so writes during the read are
+			// tracked, and the stale point taken after it, so no write
+			// falls in between
+			FetchCache.Range range = cache.reserve(path, step, fromInterval,
+					untilInterval, cached);
+			long validUntil = cached.getValidUntil();
+			values = cached.values.clone();
+			ByteBuffer tail = readSeries(file, archive, baseInterval,
+					validUntil, untilInterval);
+			double[] fresh = unpackValues(tail, (int) validUntil, step);
+			System.arraycopy(fresh, 0, values,
+					(int) ((validUntil - fromInterval) / step), fresh.length);
+			cache.publish(range, values.clone());
+			return values;
+		}
+		FetchCache.Range range = cache.reserve(path, step, fromInterval,
+				untilInterval, null);
+		ByteBuffer series = readSeries(file, archive, baseInterval,
+				fromInterval, untilInterval);
+		values = unpackValues(series, fromInterval, step);
+		cache.publish(range, values.clone());
+		return values;
+	}
+
+	/**
+	 * Points as {@link #unpackPoints(ByteBuffer, int, int)} makes them from
+	 * unpacked values
+	 */
+	private static Point[] toPoints(double[] values, long fromInterval,
+			int step) {
+		Point[] points = new Point[values.length];
+		long interval = fromInterval;
+		for (int i = 0; i < values.length; i++, interval += step) {
+			Point p = new Point();
+			if (!Double.isNaN(values[i])) {
+				p.timestamp = interval;
+				p.value = (float) values[i];
+			}
+			points[i] = p;
+		}
+		return points;
+	}
+
 	public static Point[] unpackPoints(byte[] series, int currentInterval,
 			int step) {
+		return unpackPoints(ByteBuffer.wrap(series), currentInterval, step);
+	}
+
+	/**
+	 * Decodes the points between the position and the limit of series
+	 * 
+	 * @param series
+	 * @param currentInterval
+	 *            interval of the first slot
+	 * @param step
+	 * @return
+	 */
+	public static Point[] unpackPoints(ByteBuffer series, int currentInterval,
+			int step) {
 		int pointsize = Point.sizeof();
-		int count = series.length / pointsize;
+		int count = series.remaining() / pointsize;
 
 		Point[] points = new Point[count];
 
-		ByteBuffer buf = ByteBuffer.wrap(series);
+		ByteBuffer buf = series;
+		int base = series.position();
 		// System.out.println(new String(series));
 		for (int i = 0; i < count; i += 1) {
-			currentInterval += step;
-
 			// byte[] dst = new byte[8];
 			// buf.get(dst, i, 2);
 			// System.out.println(buf );
-			long timestamp = buf.getInt(i * pointsize) & 0xffffffffL;// Remove
+			long timestamp = buf.getInt(base + i * pointsize) & 0xffffffffL;// Remove
 																		// the
 																		// sign
 
 			// long timestamp = buf.getInt();
-			double value = buf.getDouble((i * pointsize) + 4);
+			double value = buf.getDouble(base + (i * pointsize) + 4);
 
 			if (timestamp == currentInterval) {
 				//System.out.println(i + " " + currentInterval + " --- -" + i
@@ -726,10 +1769,57 @@ public class Whisper {
 				p.value = 0;
 				points[i] = p;
 			}
+			currentInterval += step;
 		}
 		return points;
 	}
 
+	/**
+	 * Decodes a packed series into one value per slot, NaN where the slot
+	 * does not hold the expected interval
+	 * 
+	 * @param series
+	 * @param currentInterval
+	 *            interval of the first slot
+	 * @param step
+	 * @return
+	 */
+	public static double[] unpackValues(byte[] series, int currentInterval,
+			int step) {
+		return unpackValues(ByteBuffer.wrap(series), currentInterval, step);
+	}
+
+	/**
+	 * Decodes the points between the position and the limit of series into
+	 * one value per slot, NaN where the slot does not hold the expected
+	 * interval
+	 * 
+	 * @param series
+	 * @param currentInterval
+	 *            interval of the first slot
+	 * @param step
+	 * @return
+	 */
+	public static double[] unpackValues(ByteBuffer series,
+			int currentInterval, int step) {
+		int pointsize = Point.sizeof();
+		int count = series.remaining() / pointsize;
+		double[] values = new double[count];
+
+		int position = series.position();
+		long interval = currentInterval & 0xffffffffL;
+		for (int i = 0; i < count; i++, position += pointsize) {
+			long timestamp = series.getInt(position) & 0xffffffffL;
+			if (timestamp == interval) {
+				values[i] = series.getDouble(position + 4);
+			} else {
+				values[i] = Double.NaN;
+			}
+			interval += step;
+		}
+		return values;
+	}
+
 	/**
 	 * @see java.nio.Bits#makeInt()
 	 * @param b3
@@ -755,15 +1845,16 @@ public class Whisper {
 			throws IOException {
 		// int pointsize = Point.sizeof();
 		byte[] buf = new byte[Point.sizeof()];
-		fh.read(buf);
+		fh.seek(offset);
+		fh.readFully(buf);
 		// ByteBuffer buf2 = ByteBuffer.wrap(buf);
-		long timestamp = makeInt(buf[3], buf[2], buf[1], buf[0]) & 0xffffffffL;
+		long timestamp = makeInt(buf[0], buf[1], buf[2], buf[3]) & 0xffffffffL;
 		// Remove // the
 		// sign
 
 		// long timestamp = buf.getInt();
-		double value = Double.longBitsToDouble(makeLong(buf[11], buf[10],
-				buf[9], buf[8], buf[7], buf[6], buf[5], buf[4]));
+		double value = Double.longBitsToDouble(makeLong(buf[4], buf[5],
+				buf[6], buf[7], buf[8], buf[9], buf[10], buf[11]));
 
 		Point p = new Point();
 		p.value = (float) value;
@@ -0,0 +1,283 @@
+package org.github.whisper4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates whisper files in bulk, for when thousands of new metrics show up
+ * at once.
+ *
+ * Files are created on a pool of threads, at most filesPerSecond per second
+ * so a burst of new metrics does not starve the writers of disk bandwidth.
+ * Missing parent directories are created and files that already exist are
+ * skipped. When files are preallocated (see
+ * {@link Whisper#setPreallocate(boolean)}) and a template directory is
+ * given, the first file of every archive layout is created as a template
+ * there and later files are copied from it with
+ * {@link FileChannel#transferTo}, which stays in the kernel. A copy writes
+ * every byte, so sparse files, which {@link Whisper#create} makes with a
+ * single write of the header, are always created from scratch. Both ways a
+ * file only appears under its name once it is complete.
+ */
+public class WhisperCreator {
+	private final Whisper whisper;
+	private final File templateDir;
+	private final ExecutorService executor;
+	private final long nanosPerFile;
+	private long nextSlot;
+	private final Map<String, File> templates = new LinkedHashMap<String, File>();
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong cloned = new AtomicLong();
+
+	/**
+	 * @param whisper
+	 *            used to create files, and templates if templateDir is set
+	 * @param threads
+	 *            number of files created at the same time
+	 * @param filesPerSecond
+	 *            maximum rate, or 0 for no limit
+	 * @param templateDir
+	 *            directory for template files, or null to create every file
+	 *            from scratch; only used when whisper preallocates files
+	 */
+	public WhisperCreator(Whisper whisper, int threads, double filesPerSecond,
+			File templateDir) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.whisper = whisper;
+		this.templateDir = templateDir;
+		this.nanosPerFile = filesPerSecond > 0 ? (long) (1e9 / filesPerSecond)
+				: 0;
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "whisper-create-"
+								+ count.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Creates a file with the given layout at every path that does not exist
+	 * yet, and waits until all are done
+	 *
+	 * @param paths
+	 * @param archiveList
+	 * @param xFilesFactor
+	 * @param aggregationMethod
+	 * @return the paths that could not be created, with the reason
+	 * @throws InterruptedException
+	 */
+	public Map<String, Exception> createAll(Collection<String> paths,
+			final RetentionDef[] archiveList, final float xFilesFactor,
+			final AggregationMethod aggregationMethod)
+			throws InterruptedException {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(paths.size());
+		try {
+			for (final String path : paths) {
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						create(path, archiveList, xFilesFactor,
+								aggregationMethod);
+						return null;
+					}
+				}));
+			}
+		} catch (RuntimeException e) {
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+			throw e;
+		}
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		int i = 0;
+		for (String path : paths) {
+			try {
+				futures.get(i++).get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				failures.put(path, cause instanceof Exception ? (Exception) cause
+						: new RuntimeException(cause));
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Creates one file on the calling thread, subject to the rate limit
+	 *
+	 * @return false if the file already existed
+	 */
+	public boolean create(String path, RetentionDef[] archiveList,
+			float xFilesFactor, AggregationMethod aggregationMethod)
+			throws IOException, InvalidConfigurationException,
+			InterruptedException {
+		File file = new File(path);
+		if (file.exists()) {
+			skipped.incrementAndGet();
+			return false;
+		}
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()
+				&& !parent.isDirectory()) {
+			throw new IOException("Cannot create directory " + parent);
+		}
+		throttle();
+		try {
+			if (templateDir == null || !whisper.isPreallocate()) {
+				whisper.create(path, archiveList, xFilesFactor,
+						aggregationMethod);
+			} else {
+				long start = System.nanoTime();
+				File template = template(archiveList, xFilesFactor,
+						aggregationMethod);
+				long size = copy(template, file);
+				whisper.created(path, size, start);
+				cloned.incrementAndGet();
+			}
+		} catch (FileAlreadyExistsException e) {
+			// Created by someone else in the meantime
+			skipped.incrementAndGet();
+			return false;
+		} catch (InvalidConfigurationException e) {
+			if (file.exists()) {
+				skipped.incrementAndGet();
+				return false;
+			}
+			throw e;
+		}
+		created.incrementAndGet();
+		return true;
+	}
+
+	private void throttle() throws InterruptedException {
+		if (nanosPerFile == 0) {
+			return;
+		}
+		long slot;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (nextSlot - now < 0) {
+				nextSlot = now;
+			}
+			slot = nextSlot;
+			nextSlot += nanosPerFile;
+		}
+		long wait = slot - System.nanoTime();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	private File template(RetentionDef[] archiveList, float xFilesFactor,
+			AggregationMethod aggregationMethod) throws IOException,
+			InvalidConfigurationException {
+		StringBuilder key = new StringBuilder("template");
+		for (RetentionDef def : archiveList) {
+			key.append('-').append(def.secondsPerPoint).append('x')
+					.append(def.point);
+		}
+		key.append('-').append(Float.floatToIntBits(xFilesFactor))
+				.append('-').append(aggregationMethod.name())
+				.append(MetricPaths.EXTENSION);
+		String name = key.toString();
+		synchronized (templates) {
+			File template = templates.get(name);
+			if (template == null) {
+				template = new File(templateDir, name);
+				if (!templateDir.isDirectory()) {
+					templateDir.mkdirs();
+				}
+				// Left over templates may be from a crashed run
+				template.delete();
+				// Not through whisper, so the template stays out of its index
+				Whisper plain = new Whisper();
+				plain.setPreallocate(true);
+				plain.create(template.getPath(), archiveList, xFilesFactor,
+						aggregationMethod);
+				templates.put(name, template);
+			}
+			return template;
+		}
+	}
+
+	private long copy(File template, File target) throws IOException {
+		// Copied under a temporary name, so nobody sees a truncated file
+		File temporary = Whisper.temporaryFile(target.getPath());
+		long size;
+		FileChannel source = FileChannel.open(template.toPath(),
+				StandardOpenOption.READ);
+		try {
+			FileChannel destination = FileChannel.open(temporary.toPath(),
+					StandardOpenOption.WRITE);
+			try {
+				size = source.size();
+				long position = 0;
+				while (position < size) {
+					position += source.transferTo(position, size - position,
+							destination);
+				}
+			} finally {
+				destination.close();
+			}
+		} catch (IOException e) {
+			temporary.delete();
+			throw e;
+		} finally {
+			source.close();
+		}
+		Whisper.publish(temporary, target.getPath());
+		return size;
+	}
+
+	/**
+	 * Stops the creator threads once pending files are done
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+
+	public long getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * Number of files that already existed
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Number of files copied from a template
+	 */
+	public long getCloned() {
+		return cloned.get();
+	}
+}
@@ -0,0 +1,355 @@
+package org.github.whisper4j;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An open whisper file.
+ *
+ * The file is opened once and mapped into memory with
+ * {@link FileChannel#map}, so header parsing, point reads and writes and
+ * archive range reads are plain memory accesses instead of a seek plus a
+ * read or write syscall each. A handle can be kept open across many updates
+ * and fetches; it must be closed when no longer needed. Closing also
+ * releases the mapping right away where the JVM allows it, rather than
+ * when the garbage collector finds the buffer, so opening many files one
+ * after the other does not pile up mappings against the vm.max_map_count
+ * limit. Using a handle after it was closed throws an
+ * IllegalStateException; closing it while another thread still reads or
+ * writes through it is not allowed.
+ *
+ * Single point reads and writes use absolute positions and may be issued
+ * from several threads, but callers are responsible for serializing
+ * concurrent writers to the same slots.
+ */
+public class WhisperFile {
+	private final String path;
+	private final RandomAccessFile fh;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final boolean writable;
+	private final boolean ownsFile;
+	private volatile Header header;
+	// Checked before every access: touching the buffer once it is unmapped
+	// would crash the JVM
+	private volatile boolean closed;
+
+	// Bookkeeping for WhisperFilePool, guarded by the pool
+	int references;
+	boolean retired;
+	Object fileKey;
+	long validatedAt;
+
+	/**
+	 * Opens and maps the file at path
+	 *
+	 * @param path
+	 * @param writable
+	 *            false maps the file read-only
+	 * @throws FileNotFoundException
+	 *             if there is no file at path
+	 * @throws IOException
+	 */
+	public WhisperFile(String path, boolean writable) throws IOException {
+		this(path, openExisting(path, writable), writable);
+	}
+
+	/**
+	 * Like Python's r+b mode: unlike a plain rw RandomAccessFile this never
+	 * leaves an empty file behind for a missing path
+	 */
+	private static RandomAccessFile openExisting(String path, boolean writable)
+			throws FileNotFoundException {
+		if (writable && !new File(path).isFile()) {
+			throw new FileNotFoundException(path);
+		}
+		return new RandomAccessFile(path, writable ? "rw" : "r");
+	}
+
+	/**
+	 * Maps an already opened file. The handle takes ownership of fh and
+	 * closes it in {@link #close()}.
+	 *
+	 * @param path
+	 * @param fh
+	 * @param writable
+	 *            must be false if fh was opened read-only
+	 * @throws IOException
+	 */
+	public WhisperFile(String path, RandomAccessFile fh, boolean writable)
+			throws IOException {
+		this(path, fh, writable, true);
+	}
+
+	/**
+	 * Maps an already opened file, closing fh in {@link #close()} only if
+	 * ownsFile
+	 */
+	WhisperFile(String path, RandomAccessFile fh, boolean writable,
+			boolean ownsFile) throws IOException {
+		this.path = path;
+		this.fh = fh;
+		this.writable = writable;
+		this.ownsFile = ownsFile;
+		this.channel = fh.getChannel();
+		try {
+			this.buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE
+					: FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			if (ownsFile) {
+				fh.close();
+			}
+			throw e;
+		}
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * Size of the mapped region in bytes
+	 */
+	public int size() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * The header of this file, parsed on first use
+	 *
+	 * @return
+	 * @throws CorruptWhisperFile
+	 */
+	public Header getHeader() throws CorruptWhisperFile {
+		Header result = header;
+		if (result == null) {
+			result = readHeader();
+			header = result;
+		}
+		return result;
+	}
+
+	private Header readHeader() throws CorruptWhisperFile {
+		ensureOpen();
+		MetaData metaData = new MetaData();
+		try {
+			// MetaData is 16 bytes
+			metaData.aggregationType = buffer.getInt(0);
+			metaData.maxRetention = buffer.getInt(4);
+			metaData.xFileFactor = buffer.getFloat(8);
+			metaData.archiveCount = buffer.getInt(12);
+		} catch (IndexOutOfBoundsException e) {
+			throw new CorruptWhisperFile("Unable to read header " + path, e);
+		}
+
+		List<ArchiveInfo> archiveInfos = new ArrayList<ArchiveInfo>();
+		for (int i = 0; i < metaData.archiveCount; i++) {
+			int position = Whisper.METADATA_BYTE_SIZE
+					+ (i * Whisper.ARCHIVEINFO_BYTE_SIZE);
+			try {
+				ArchiveInfo archiveInfo = new ArchiveInfo();
+				archiveInfo.offset = buffer.getInt(position);
+				archiveInfo.secondsPerPoint = buffer.getInt(position + 4);
+				archiveInfo.points = buffer.getInt(position + 8);
+				archiveInfo.retention = archiveInfo.secondsPerPoint
+						* archiveInfo.points;
+				archiveInfo.size = archiveInfo.points * Point.sizeof();
+				archiveInfos.add(archiveInfo);
+			} catch (IndexOutOfBoundsException e) {
+				throw new CorruptWhisperFile("Unable to read archive metadata "
+						+ i + " of " + metaData.archiveCount + ", at position "
+						+ position, e);
+			}
+		}
+
+		Header info = new Header();
+		info.metadata = metaData;
+		info.archiveInfo = archiveInfos;
+		return info;
+	}
+
+	/**
+	 * Writes the metadata part of the header and drops the parsed header
+	 *
+	 * @param metaData
+	 */
+	public void writeMetaData(MetaData metaData) {
+		ensureOpen();
+		buffer.putInt(0, metaData.aggregationType);
+		buffer.putInt(4, metaData.maxRetention);
+		buffer.putFloat(8, metaData.xFileFactor);
+		buffer.putInt(12, metaData.archiveCount);
+		header = null;
+	}
+
+	/**
+	 * Unsigned timestamp of the point at offset
+	 */
+	public long readTimestamp(int offset) {
+		ensureOpen();
+		return buffer.getInt(offset) & 0xffffffffL;
+	}
+
+	public double readValue(int offset) {
+		ensureOpen();
+		return buffer.getDouble(offset + 4);
+	}
+
+	public Point readPoint(int offset) {
+		Point p = new Point();
+		p.timestamp = readTimestamp(offset);
+		p.value = (float) readValue(offset);
+		return p;
+	}
+
+	public void writePoint(int offset, long timestamp, double value) {
+		ensureOpen();
+		buffer.putInt(offset, (int) timestamp);
+		buffer.putDouble(offset + 4, value);
+	}
+
+	/**
+	 * Copies length bytes starting at offset into dst
+	 */
+	public void read(int offset, byte[] dst, int dstOffset, int length) {
+		ensureOpen();
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(dst, dstOffset, length);
+	}
+
+	/**
+	 * Copies length bytes from src to the file starting at offset
+	 */
+	public void write(int offset, byte[] src, int srcOffset, int length) {
+		ensureOpen();
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.put(src, srcOffset, length);
+	}
+
+	/**
+	 * Reads the points of archive between fromOffset (inclusive) and
+	 * untilOffset (exclusive), wrapping around the end of the archive when
+	 * untilOffset is not after fromOffset.
+	 *
+	 * @param archive
+	 * @param fromOffset
+	 *            absolute file offset
+	 * @param untilOffset
+	 *            absolute file offset
+	 * @return
+	 */
+	public byte[] readRange(ArchiveInfo archive, int fromOffset,
+			int untilOffset) {
+		byte[] series = new byte[rangeLength(archive, fromOffset, untilOffset)];
+		readRange(archive, fromOffset, untilOffset, ByteBuffer.wrap(series));
+		return series;
+	}
+
+	/**
+	 * Copies the points of archive between fromOffset (inclusive) and
+	 * untilOffset (exclusive) into dst, starting at its position. A range
+	 * that wraps around the end of the archive is copied as two segments
+	 * into the same buffer, so no intermediate arrays are needed. dst may be
+	 * a heap or a direct buffer and must have
+	 * {@link #rangeLength(ArchiveInfo, int, int)} bytes remaining.
+	 *
+	 * @param archive
+	 * @param fromOffset
+	 *            absolute file offset
+	 * @param untilOffset
+	 *            absolute file offset
+	 * @param dst
+	 * @return the number of bytes copied
+	 */
+	public int readRange(ArchiveInfo archive, int fromOffset,
+			int untilOffset, ByteBuffer dst) {
+		if (fromOffset < untilOffset) {
+			// If we don't wrap around the archive
+			copy(fromOffset, dst, untilOffset - fromOffset);
+			return untilOffset - fromOffset;
+		}
+		// We do wrap around the archive, so we need two copies
+		int archiveEnd = archive.offset + archive.size;
+		int firstpart = archiveEnd - fromOffset;
+		int secondpart = untilOffset - archive.offset;
+		copy(fromOffset, dst, firstpart);
+		copy(archive.offset, dst, secondpart);
+		return firstpart + secondpart;
+	}
+
+	/**
+	 * Number of bytes between fromOffset and untilOffset in archive, taking
+	 * wraparound into account
+	 */
+	public static int rangeLength(ArchiveInfo archive, int fromOffset,
+			int untilOffset) {
+		if (fromOffset < untilOffset) {
+			return untilOffset - fromOffset;
+		}
+		return archive.size - (fromOffset - untilOffset);
+	}
+
+	private void copy(int offset, ByteBuffer dst, int length) {
+		ensureOpen();
+		// A view of its own, so concurrent readers don't move each other's
+		// positions
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		dst.put(view);
+	}
+
+	/**
+	 * Flushes changes to the storage device
+	 */
+	public void force() {
+		if (writable) {
+			ensureOpen();
+			buffer.force();
+		}
+	}
+
+	private void ensureOpen() {
+		if (closed) {
+			throw new IllegalStateException(path + " is closed");
+		}
+	}
+
+	/**
+	 * Closes the file and unmaps it. Closing twice does nothing.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		try {
+			if (ownsFile) {
+				fh.close();
+			}
+		} finally {
+			Unmapper.unmap(buffer);
+		}
+	}
+}
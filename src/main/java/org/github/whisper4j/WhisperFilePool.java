@@ -0,0 +1,320 @@
+package org.github.whisper4j;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of open {@link WhisperFile} handles.
+ *
+ * At most maxOpen handles are kept open; when the pool is full the least
+ * recently used handle is evicted. Handles are reference counted: an evicted
+ * handle that is still in use by an update or fetch is closed when its last
+ * user releases it, not when it is evicted.
+ *
+ * Handles are opened read-only for reads and read-write for writes; a
+ * writable handle serves reads too, a read-only one is replaced by a
+ * writable one on the first write. A pooled handle is checked against the
+ * file system, by file key and size, once its revalidation interval has
+ * passed, so a file replaced by another process, for example by
+ * whisper-resize.py, is reopened rather than served from the old handle.
+ *
+ * Every {@link #acquire(String, boolean)} must be paired with a
+ * {@link #release(WhisperFile)}.
+ */
+public class WhisperFilePool {
+	private static final long DEFAULT_REVALIDATE_MILLIS = 1000;
+
+	private final int maxOpen;
+	private final long revalidateNanos;
+	private final LinkedHashMap<String, WhisperFile> handles;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param maxOpen
+	 *            maximum number of handles kept open, should stay well below
+	 *            the file descriptor limit of the process
+	 */
+	public WhisperFilePool(int maxOpen) {
+		this(maxOpen, DEFAULT_REVALIDATE_MILLIS);
+	}
+
+	/**
+	 * @param maxOpen
+	 *            maximum number of handles kept open, should stay well below
+	 *            the file descriptor limit of the process
+	 * @param revalidateMillis
+	 *            how long a handle is trusted before it is checked against
+	 *            the file system again, 0 to check on every acquire
+	 */
+	public WhisperFilePool(int maxOpen, long revalidateMillis) {
+		if (maxOpen < 1) {
+			throw new IllegalArgumentException("maxOpen must be at least 1: "
+					+ maxOpen);
+		}
+		if (revalidateMillis < 0) {
+			throw new IllegalArgumentException(
+					"revalidateMillis must not be negative: " + revalidateMillis);
+		}
+		this.maxOpen = maxOpen;
+		this.revalidateNanos = TimeUnit.MILLISECONDS.toNanos(revalidateMillis);
+		// access order, so iteration starts at the least recently used
+		this.handles = new LinkedHashMap<String, WhisperFile>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns an open, writable handle for path, opening it if it is not in
+	 * the pool yet
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public WhisperFile acquire(String path) throws IOException {
+		return acquire(path, true);
+	}
+
+	/**
+	 * Returns an open handle for path, opening it if it is not in the pool
+	 * yet or the pooled one no longer matches the file
+	 *
+	 * @param path
+	 * @param writable
+	 *            false if a read-only handle will do
+	 * @return
+	 * @throws FileNotFoundException
+	 *             if there is no file at path
+	 * @throws IOException
+	 */
+	public WhisperFile acquire(String path, boolean writable)
+			throws IOException {
+		long now = System.nanoTime();
+		synchronized (this) {
+			WhisperFile file = handles.get(path);
+			if (file != null && (file.isWritable() || !writable)
+					&& now - file.validatedAt < revalidateNanos) {
+				file.references++;
+				hits++;
+				return file;
+			}
+		}
+
+		// Stat before opening: a file replaced in between then only costs
+		// an extra reopen later, never a stale handle
+		Object fileKey;
+		long size;
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(
+					Paths.get(path), BasicFileAttributes.class);
+			fileKey = fileKey(attributes);
+			size = attributes.size();
+		} catch (NoSuchFileException e) {
+			invalidate(path);
+			throw new FileNotFoundException(path);
+		}
+		synchronized (this) {
+			WhisperFile file = handles.get(path);
+			if (file != null && (file.isWritable() || !writable)
+					&& matches(file, fileKey, size)) {
+				file.validatedAt = now;
+				file.references++;
+				hits++;
+				return file;
+			}
+			misses++;
+		}
+
+		// Open outside the lock so a slow open doesn't stall other paths
+		WhisperFile opened = new WhisperFile(path, writable);
+		opened.fileKey = fileKey;
+		opened.validatedAt = now;
+		List<WhisperFile> toClose = new ArrayList<WhisperFile>();
+		WhisperFile result;
+		synchronized (this) {
+			WhisperFile existing = handles.get(path);
+			if (existing != null && (existing.isWritable() || !writable)
+					&& matches(existing, fileKey, size)) {
+				// Somebody else opened it in the meantime
+				existing.references++;
+				toClose.add(opened);
+				result = existing;
+			} else {
+				if (existing != null) {
+					// Read-only or left over from a replaced file
+					handles.remove(path);
+					retire(existing, toClose);
+				}
+				opened.references = 1;
+				handles.put(path, opened);
+				result = opened;
+				evict(toClose);
+			}
+		}
+		closeAll(toClose);
+		return result;
+	}
+
+	/**
+	 * Whether file, acquired from this pool, is still the file at its path.
+	 * If not it is removed from the pool, to be closed once released.
+	 * Handles opened outside the pool are taken to be current.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public boolean isCurrent(WhisperFile file) throws IOException {
+		if (file.fileKey == null) {
+			return true;
+		}
+		boolean current;
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(
+					Paths.get(file.getPath()), BasicFileAttributes.class);
+			synchronized (this) {
+				current = matches(file, fileKey(attributes),
+						attributes.size());
+			}
+		} catch (NoSuchFileException e) {
+			current = false;
+		}
+		if (!current) {
+			List<WhisperFile> toClose = new ArrayList<WhisperFile>();
+			synchronized (this) {
+				if (handles.get(file.getPath()) == file) {
+					handles.remove(file.getPath());
+					retire(file, toClose);
+				}
+			}
+			closeAll(toClose);
+		}
+		return current;
+	}
+
+	private static boolean matches(WhisperFile file, Object fileKey, long size) {
+		return file.fileKey != null && file.fileKey.equals(fileKey)
+				&& file.size() == size;
+	}
+
+	static Object fileKey(BasicFileAttributes attributes) {
+		Object fileKey = attributes.fileKey();
+		if (fileKey == null) {
+			// No inode on this platform, the creation time will have to do
+			fileKey = attributes.creationTime();
+		}
+		return fileKey;
+	}
+
+	/**
+	 * Gives back a handle obtained from {@link #acquire(String)}
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void release(WhisperFile file) throws IOException {
+		boolean close;
+		synchronized (this) {
+			file.references--;
+			close = file.retired && file.references == 0;
+		}
+		if (close) {
+			file.close();
+		}
+	}
+
+	/**
+	 * Removes the handle for path from the pool, for example because the
+	 * file was recreated or resized. The handle is closed once it is no
+	 * longer in use.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public void invalidate(String path) throws IOException {
+		List<WhisperFile> toClose = new ArrayList<WhisperFile>();
+		synchronized (this) {
+			WhisperFile file = handles.remove(path);
+			if (file != null) {
+				retire(file, toClose);
+			}
+		}
+		closeAll(toClose);
+	}
+
+	/**
+	 * Removes all handles from the pool. Handles still in use are closed
+	 * when they are released.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		List<WhisperFile> toClose = new ArrayList<WhisperFile>();
+		synchronized (this) {
+			for (WhisperFile file : handles.values()) {
+				retire(file, toClose);
+			}
+			handles.clear();
+		}
+		closeAll(toClose);
+	}
+
+	private void evict(List<WhisperFile> toClose) {
+		Iterator<WhisperFile> lru = handles.values().iterator();
+		while (handles.size() > maxOpen && lru.hasNext()) {
+			WhisperFile eldest = lru.next();
+			lru.remove();
+			evictions++;
+			retire(eldest, toClose);
+		}
+	}
+
+	private void retire(WhisperFile file, List<WhisperFile> toClose) {
+		file.retired = true;
+		if (file.references == 0) {
+			toClose.add(file);
+		}
+	}
+
+	private static void closeAll(List<WhisperFile> files) throws IOException {
+		IOException failure = null;
+		for (WhisperFile file : files) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	public int getMaxOpen() {
+		return maxOpen;
+	}
+
+	public synchronized int getOpenCount() {
+		return handles.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
@@ -0,0 +1,528 @@
+package org.github.whisper4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills the gaps of one replica of whisper files from another, like
+ * whisper-fill.py but without comparing every point.
+ *
+ * Each archive is split into blocks of {@link #getBlockPoints()} intervals,
+ * aligned to time so the blocks of both files cover the same intervals
+ * whatever the position of their ring buffers. The {@link BlockDigests} of
+ * both files are compared first and only blocks whose digests differ are
+ * read and compared point by point. Points that are missing in the
+ * destination, empty or left over from an earlier pass of the ring buffer,
+ * are copied from the source; points the destination already has are never
+ * overwritten.
+ *
+ * Source digests are taken with one sequential pass over the source, or
+ * handed in by the caller, for example from the host of the source replica.
+ * Destination digests are kept between fills, for up to
+ * {@link #setDigestCacheSize(int)} files, and kept up to date with the
+ * points the fill copies. Other writes may leave them stale, which is safe:
+ * a fill only ever adds points, so a destination block that once had the
+ * digest the source block has now still has all of its points. So after the
+ * first fill of a file, a fill reads the source and only the destination
+ * blocks that differ, plus those the retention moved into since.
+ *
+ * The highest precision archive is filled over its whole retention, every
+ * lower archive only over the time the archive above it does not cover.
+ * The lower intervals touched by copied points are recomputed once, after
+ * all archives are filled, with the aggregation of the destination file.
+ *
+ * The destination is locked exclusively while it is filled when the
+ * {@link Whisper} has {@link WhisperLocks}. The source is read without
+ * locks, taking both could deadlock when their paths share a stripe.
+ */
+public class WhisperFill {
+	/** Default number of intervals per block */
+	public static final int DEFAULT_BLOCK_POINTS = 256;
+	/** Default number of destination files whose digests are kept */
+	public static final int DEFAULT_DIGEST_CACHE_SIZE = 10000;
+
+	private final Whisper whisper;
+	private int blockPoints = DEFAULT_BLOCK_POINTS;
+	private int digestCacheSize = DEFAULT_DIGEST_CACHE_SIZE;
+	// Access order, guarded by itself
+	private final LinkedHashMap<String, CachedDigests> destinationDigests = new LinkedHashMap<String, CachedDigests>(
+			16, 0.75f, true);
+
+	private final AtomicLong blocksCompared = new AtomicLong();
+	private final AtomicLong blocksDiffering = new AtomicLong();
+	private final AtomicLong blocksRead = new AtomicLong();
+	private final AtomicLong pointsCopied = new AtomicLong();
+	private final AtomicLong filesCopied = new AtomicLong();
+
+	/**
+	 * @param whisper
+	 *            whose locks are used and that recomputes lower archives
+	 */
+	public WhisperFill(Whisper whisper) {
+		this.whisper = whisper;
+	}
+
+	/**
+	 * Number of intervals per compared block, smaller blocks read less of
+	 * the destination around every gap but need more digests
+	 */
+	public void setBlockPoints(int blockPoints) {
+		if (blockPoints < 1) {
+			throw new IllegalArgumentException("blockPoints must be at least 1");
+		}
+		this.blockPoints = blockPoints;
+	}
+
+	public int getBlockPoints() {
+		return blockPoints;
+	}
+
+	/**
+	 * Number of destination files whose digests are kept between fills, 0
+	 * to take them anew every time
+	 */
+	public void setDigestCacheSize(int files) {
+		if (files < 0) {
+			throw new IllegalArgumentException("files must not be negative");
+		}
+		synchronized (destinationDigests) {
+			digestCacheSize = files;
+			evict();
+		}
+	}
+
+	public int getDigestCacheSize() {
+		synchronized (destinationDigests) {
+			return digestCacheSize;
+		}
+	}
+
+	/**
+	 * Takes the block digests of the file at path, with one sequential pass
+	 * over its archives, to hand to
+	 * {@link #fill(String, String, BlockDigests)} where the file is a source
+	 *
+	 * @param path
+	 * @return
+	 */
+	public BlockDigests digests(String path) throws IOException,
+			CorruptWhisperFile {
+		WhisperFile file = new WhisperFile(path, false);
+		try {
+			return BlockDigests.read(file, blockPoints, Whisper.time());
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Copies the points destination is missing from source. Both files must
+	 * have the same archives.
+	 *
+	 * @param source
+	 * @param destination
+	 * @return the number of points copied
+	 */
+	public int fill(String source, String destination) throws IOException,
+			WhisperException {
+		return fill(source, destination, null);
+	}
+
+	/**
+	 * Copies the points destination is missing from source, comparing the
+	 * given digests of source with those of destination
+	 *
+	 * @param source
+	 * @param destination
+	 * @param sourceDigests
+	 *            digests of source taken with {@link #digests(String)}, or
+	 *            null to take them now; blocks they do not cover are read
+	 * @return the number of points copied
+	 */
+	public int fill(String source, String destination,
+			BlockDigests sourceDigests) throws IOException, WhisperException {
+		CachedDigests cached = takeCached(destination);
+		WhisperFile src = new WhisperFile(source, false);
+		List<Set<Long>> dirty;
+		int copied;
+		try {
+			WhisperFile dst = new WhisperFile(destination, true);
+			try {
+				WhisperLocks locks = whisper.getLocks();
+				WhisperLocks.Held lock = locks == null ? null : locks
+						.lockExclusive(dst);
+				try {
+					checkArchives(src, dst);
+					long now = Whisper.time();
+					List<ArchiveInfo> archives = dst.getHeader().archiveInfo;
+					if (sourceDigests == null) {
+						sourceDigests = BlockDigests.read(src, blockPoints, now);
+					} else if (!sourceDigests.matches(blockPoints, archives)) {
+						throw new IllegalArgumentException("Digests of "
+								+ source + " do not match its archives");
+					}
+					if (!cached.digests.matches(blockPoints, archives)) {
+						cached.digests = BlockDigests.read(dst, blockPoints,
+								now);
+					}
+					dirty = new ArrayList<Set<Long>>();
+					copied = fillArchives(src, dst, sourceDigests,
+							cached.digests, dirty, now);
+					if (copied > 0) {
+						dst.force();
+					}
+				} finally {
+					if (lock != null) {
+						lock.release();
+					}
+				}
+			} finally {
+				dst.close();
+			}
+		} finally {
+			src.close();
+		}
+		if (copied > 0) {
+			whisper.rollup(destination, dirty, null);
+			// Recomputed behind the digests' back, read again next time
+			for (int i = 0; i < dirty.size(); i++) {
+				for (Long interval : dirty.get(i)) {
+					cached.digests.forget(i + 1, interval);
+				}
+			}
+		}
+		putCached(destination, cached);
+		pointsCopied.addAndGet(copied);
+		return copied;
+	}
+
+	private static void checkArchives(WhisperFile src, WhisperFile dst)
+			throws InvalidConfigurationException, CorruptWhisperFile {
+		List<ArchiveInfo> sources = src.getHeader().archiveInfo;
+		List<ArchiveInfo> destinations = dst.getHeader().archiveInfo;
+		if (sources.size() != destinations.size()) {
+			throw new InvalidConfigurationException("Archives of "
+					+ src.getPath() + " and " + dst.getPath() + " differ");
+		}
+		for (int i = 0; i < sources.size(); i++) {
+			if (sources.get(i).secondsPerPoint != destinations.get(i).secondsPerPoint
+					|| sources.get(i).points != destinations.get(i).points) {
+				throw new InvalidConfigurationException("Archives of "
+						+ src.getPath() + " and " + dst.getPath() + " differ");
+			}
+		}
+	}
+
+	private int fillArchives(WhisperFile src, WhisperFile dst,
+			BlockDigests srcDigests, BlockDigests dstDigests,
+			List<Set<Long>> dirty, long now) throws CorruptWhisperFile {
+		List<ArchiveInfo> sources = src.getHeader().archiveInfo;
+		List<ArchiveInfo> destinations = dst.getHeader().archiveInfo;
+		int copied = 0;
+		for (int i = 0; i < sources.size(); i++) {
+			ArchiveInfo from = sources.get(i);
+			ArchiveInfo to = destinations.get(i);
+			ArchiveInfo lower = i + 1 < destinations.size() ? destinations
+					.get(i + 1) : null;
+			Set<Long> lowerIntervals = new TreeSet<Long>();
+			dirty.add(lowerIntervals);
+
+			long step = from.secondsPerPoint;
+			long first = now - from.retention;
+			first = first - Whisper.mod(first, step) + step;
+			long last = i == 0 ? now : now - sources.get(i - 1).retention;
+			last = last - Whisper.mod(last, step);
+
+			long srcBase = src.readTimestamp(from.offset);
+			if (srcBase == 0) {
+				continue;
+			}
+			long dstBase = dst.readTimestamp(to.offset);
+			int points = Math.min(blockPoints, from.points);
+			long span = points * step;
+			ByteBuffer srcBlock = ByteBuffer.allocate(points * Point.sizeof());
+			ByteBuffer dstBlock = ByteBuffer.allocate(points * Point.sizeof());
+			for (long start = first - Whisper.mod(first, span); start <= last; start += span) {
+				blocksCompared.incrementAndGet();
+				boolean srcKnown = srcDigests.isKnown(i, start);
+				if (srcKnown && srcDigests.get(i, start) == 0) {
+					// Nothing to copy
+					continue;
+				}
+				boolean dstRead = false;
+				if (!dstDigests.isKnown(i, start)) {
+					// Moved into the retention since the digests were taken
+					long digest = 0;
+					if (dstBase != 0) {
+						readBlock(dst, to, dstBase, start, dstBlock);
+						digest = digest(dstBlock, start, step);
+						dstRead = true;
+					}
+					dstDigests.set(i, start, digest);
+				}
+				if (srcKnown
+						&& srcDigests.get(i, start) == dstDigests.get(i, start)) {
+					continue;
+				}
+				blocksDiffering.incrementAndGet();
+				readBlock(src, from, srcBase, start, srcBlock);
+				if (dstBase != 0 && !dstRead) {
+					readBlock(dst, to, dstBase, start, dstBlock);
+				}
+				boolean dstEmpty = dstBase == 0;
+				for (int k = 0; k < points; k++) {
+					long interval = start + k * step;
+					if (interval < first || interval > last
+							|| timestamp(srcBlock, k) != interval
+							|| (!dstEmpty && timestamp(dstBlock, k) == interval)) {
+						continue;
+					}
+					if (dstBase == 0) {
+						// The archive is empty, the first point becomes its
+						// base
+						dstBase = interval;
+					}
+					if (!dstEmpty && timestamp(dstBlock, k) != 0) {
+						// Left over from an earlier pass, about to go
+						dstDigests.remove(i, timestamp(dstBlock, k),
+								dstBlock.getDouble(k * Point.sizeof() + 4));
+					}
+					double value = srcBlock.getDouble(k * Point.sizeof() + 4);
+					int offset = to.offset
+							+ (int) Whisper.mod((interval - dstBase) / step
+									* Point.sizeof(), to.size);
+					dst.writePoint(offset, interval, value);
+					dstDigests.add(i, interval, value);
+					whisper.written(dst.getPath(), step, interval);
+					copied++;
+					if (lower != null) {
+						lowerIntervals.add(interval
+								- Whisper.mod(interval, lower.secondsPerPoint));
+					}
+				}
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Reads the slots of the block starting at interval start into block
+	 */
+	private void readBlock(WhisperFile file, ArchiveInfo archive,
+			long base, long start, ByteBuffer block) {
+		blocksRead.incrementAndGet();
+		long step = archive.secondsPerPoint;
+		int points = block.capacity() / Point.sizeof();
+		int fromOffset = archive.offset
+				+ (int) Whisper.mod((start - base) / step * Point.sizeof(),
+						archive.size);
+		int untilOffset = archive.offset
+				+ (int) Whisper.mod((start - base) / step * Point.sizeof()
+						+ points * Point.sizeof(), archive.size);
+		block.clear();
+		file.readRange(archive, fromOffset, untilOffset, block);
+	}
+
+	private static long timestamp(ByteBuffer block, int slot) {
+		return block.getInt(slot * Point.sizeof()) & 0xffffffffL;
+	}
+
+	/**
+	 * The {@link BlockDigests} digest of a block read with readBlock, slots
+	 * holding other intervals are skipped
+	 */
+	static long digest(ByteBuffer block, long start, long step) {
+		long digest = 0;
+		int points = block.capacity() / Point.sizeof();
+		for (int k = 0; k < points; k++) {
+			long interval = start + k * step;
+			if (timestamp(block, k) == interval) {
+				digest += BlockDigests.mix(interval,
+						block.getDouble(k * Point.sizeof() + 4));
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * Removes the kept digests of destination, so concurrent fills of the
+	 * same file do not share them, or takes them anew when there are none or
+	 * the file was replaced
+	 */
+	private CachedDigests takeCached(String destination) throws IOException,
+			CorruptWhisperFile {
+		BasicFileAttributes attributes = Files.readAttributes(
+				Paths.get(destination), BasicFileAttributes.class);
+		Object fileKey = attributes.fileKey();
+		if (fileKey == null) {
+			// No inode on this platform, the creation time will have to do
+			fileKey = attributes.creationTime();
+		}
+		CachedDigests cached;
+		synchronized (destinationDigests) {
+			cached = destinationDigests.remove(destination);
+		}
+		if (cached != null && cached.fileKey.equals(fileKey)
+				&& cached.size == attributes.size()) {
+			return cached;
+		}
+		// Taken after opening, matched against the archives then
+		cached = new CachedDigests();
+		cached.fileKey = fileKey;
+		cached.size = attributes.size();
+		cached.digests = new BlockDigests(0,
+				Collections.<ArchiveInfo> emptyList());
+		return cached;
+	}
+
+	private void putCached(String destination, CachedDigests cached) {
+		synchronized (destinationDigests) {
+			if (digestCacheSize > 0) {
+				destinationDigests.put(destination, cached);
+				evict();
+			}
+		}
+	}
+
+	private void evict() {
+		Iterator<CachedDigests> eldest = destinationDigests.values()
+				.iterator();
+		while (destinationDigests.size() > digestCacheSize && eldest.hasNext()) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Fills every whisper file below the roots of destination from the file
+	 * of the same metric below the roots of source. Files missing in
+	 * destination are copied whole.
+	 *
+	 * @return the files that could not be filled, with the reason
+	 * @throws IOException
+	 *             if the source tree cannot be walked
+	 */
+	public Map<String, Exception> fillTree(final MetricPaths source,
+			final MetricPaths destination) throws IOException {
+		final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				String metric = attrs.isRegularFile() ? source.toMetric(file
+						.toString()) : null;
+				if (metric == null) {
+					return FileVisitResult.CONTINUE;
+				}
+				String target = destination.toPath(metric);
+				try {
+					if (new File(target).exists() || !copy(file, target)) {
+						fill(file.toString(), target);
+					}
+				} catch (Exception e) {
+					failures.put(target, e);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				failures.put(file.toString(), e);
+				return FileVisitResult.CONTINUE;
+			}
+		};
+		for (String root : source.getRoots()) {
+			Path rootPath = Paths.get(root);
+			if (Files.isDirectory(rootPath)) {
+				Files.walkFileTree(rootPath, visitor);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Copies source to the missing target
+	 *
+	 * @return false if somebody else created target in the meantime
+	 */
+	private boolean copy(Path source, String target) throws IOException {
+		long start = System.nanoTime();
+		File file = new File(target);
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		// Copied under a temporary name, so nobody sees a truncated file
+		File temporary = Whisper.temporaryFile(target);
+		try {
+			Files.copy(source, temporary.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.COPY_ATTRIBUTES);
+			Whisper.publish(temporary, target);
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} finally {
+			temporary.delete();
+		}
+		filesCopied.incrementAndGet();
+		whisper.created(target, file.length(), start);
+		return true;
+	}
+
+	/**
+	 * Number of blocks whose digests were compared
+	 */
+	public long getBlocksCompared() {
+		return blocksCompared.get();
+	}
+
+	/**
+	 * Number of blocks compared point by point because their digests
+	 * differed
+	 */
+	public long getBlocksDiffering() {
+		return blocksDiffering.get();
+	}
+
+	/**
+	 * Number of blocks read from source and destination files, besides the
+	 * passes that take digests
+	 */
+	public long getBlocksRead() {
+		return blocksRead.get();
+	}
+
+	public long getPointsCopied() {
+		return pointsCopied.get();
+	}
+
+	/**
+	 * Number of files copied whole because they were missing
+	 */
+	public long getFilesCopied() {
+		return filesCopied.get();
+	}
+
+	private static class CachedDigests {
+		BlockDigests digests;
+		// Identity of the file they were taken from
+		Object fileKey;
+		long size;
+	}
+}
@@ -0,0 +1,240 @@
+package org.github.whisper4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Shared and exclusive locking of whisper files.
+ *
+ * Threads of this JVM are serialized on a fixed set of read/write locks,
+ * striped by path, so they queue in memory instead of on the operating
+ * system. On top of that an advisory
+ * {@link java.nio.channels.FileChannel#lock} keeps other processes, such as
+ * the Python whisper tools, out while a file is updated: an exclusive lock
+ * for writers, a shared one for readers. The JVM allows
+ * only one OS lock per file, so concurrent readers of the same path share
+ * one OS lock. It is taken on a read-only channel owned by this class,
+ * opened by the first reader and closed by the last, so it does not depend
+ * on any reader's handle staying open.
+ *
+ * Time spent waiting for locks is accumulated and can be read with
+ * {@link #getLockWaitNanos()}.
+ */
+public class WhisperLocks {
+	private final ReentrantReadWriteLock[] stripes;
+	private final SharedFileLocks[] sharedFileLocks;
+	private final boolean fileLocks;
+	private final LongAdder lockWaitNanos = new LongAdder();
+	private final LongAdder acquisitions = new LongAdder();
+
+	/**
+	 * @param stripes
+	 *            number of in-process locks, rounded up to a power of two
+	 * @param fileLocks
+	 *            also take OS level locks, needed when other processes write
+	 *            the same files
+	 */
+	public WhisperLocks(int stripes, boolean fileLocks) {
+		int n = 1;
+		while (n < stripes) {
+			n <<= 1;
+		}
+		this.stripes = new ReentrantReadWriteLock[n];
+		this.sharedFileLocks = new SharedFileLocks[n];
+		for (int i = 0; i < n; i++) {
+			this.stripes[i] = new ReentrantReadWriteLock();
+			this.sharedFileLocks[i] = new SharedFileLocks();
+		}
+		this.fileLocks = fileLocks;
+	}
+
+	/**
+	 * Takes a shared lock on file, for reading
+	 *
+	 * @param file
+	 * @return the lock, to be released when done
+	 * @throws IOException
+	 */
+	public Held lockShared(WhisperFile file) throws IOException {
+		long start = System.nanoTime();
+		int stripe = stripeFor(file.getPath());
+		ReentrantReadWriteLock.ReadLock lock = stripes[stripe].readLock();
+		lock.lock();
+		SharedFileLock shared = null;
+		try {
+			if (fileLocks) {
+				shared = acquireShared(stripe, file);
+			}
+		} catch (IOException e) {
+			lock.unlock();
+			throw e;
+		} catch (RuntimeException e) {
+			lock.unlock();
+			throw e;
+		}
+		waited(start);
+		return new Held(stripe, file.getPath(), false, null, shared);
+	}
+
+	/**
+	 * Takes an exclusive lock on file, for updates and propagation
+	 *
+	 * @param file
+	 * @return the lock, to be released when done
+	 * @throws IOException
+	 */
+	public Held lockExclusive(WhisperFile file) throws IOException {
+		long start = System.nanoTime();
+		int stripe = stripeFor(file.getPath());
+		ReentrantReadWriteLock.WriteLock lock = stripes[stripe].writeLock();
+		lock.lock();
+		FileLock fileLock = null;
+		try {
+			if (fileLocks) {
+				fileLock = file.getChannel().lock();
+			}
+		} catch (IOException e) {
+			lock.unlock();
+			throw e;
+		} catch (RuntimeException e) {
+			lock.unlock();
+			throw e;
+		}
+		waited(start);
+		return new Held(stripe, file.getPath(), true, fileLock, null);
+	}
+
+	private SharedFileLock acquireShared(int stripe, WhisperFile file)
+			throws IOException {
+		Map<String, SharedFileLock> locks = sharedFileLocks[stripe].byPath;
+		synchronized (locks) {
+			SharedFileLock shared = locks.get(file.getPath());
+			if (shared == null) {
+				RandomAccessFile channelFile = new RandomAccessFile(
+						file.getPath(), "r");
+				try {
+					shared = new SharedFileLock();
+					shared.file = channelFile;
+					shared.lock = channelFile.getChannel().lock(0,
+							Long.MAX_VALUE, true);
+				} catch (IOException e) {
+					channelFile.close();
+					throw e;
+				} catch (RuntimeException e) {
+					channelFile.close();
+					throw e;
+				}
+				locks.put(file.getPath(), shared);
+			}
+			shared.holders++;
+			return shared;
+		}
+	}
+
+	private void releaseShared(int stripe, String path, SharedFileLock shared)
+			throws IOException {
+		Map<String, SharedFileLock> locks = sharedFileLocks[stripe].byPath;
+		synchronized (locks) {
+			shared.holders--;
+			if (shared.holders == 0) {
+				locks.remove(path);
+				try {
+					if (shared.lock.isValid()) {
+						shared.lock.release();
+					}
+				} finally {
+					shared.file.close();
+				}
+			}
+		}
+	}
+
+	private void waited(long start) {
+		lockWaitNanos.add(System.nanoTime() - start);
+		acquisitions.increment();
+	}
+
+	private int stripeFor(String path) {
+		int h = path.hashCode();
+		h ^= (h >>> 16);
+		return h & (stripes.length - 1);
+	}
+
+	/**
+	 * Whether OS level file locks are taken
+	 */
+	public boolean isFileLocking() {
+		return fileLocks;
+	}
+
+	/**
+	 * Total time spent waiting for locks, in nanoseconds
+	 */
+	public long getLockWaitNanos() {
+		return lockWaitNanos.sum();
+	}
+
+	/**
+	 * Number of locks taken
+	 */
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	private static class SharedFileLocks {
+		final Map<String, SharedFileLock> byPath = new HashMap<String, SharedFileLock>();
+	}
+
+	private static class SharedFileLock {
+		// Opened for the lock only, closed with it
+		RandomAccessFile file;
+		FileLock lock;
+		int holders;
+	}
+
+	/**
+	 * A lock held on a whisper file
+	 */
+	public class Held {
+		private final int stripe;
+		private final String path;
+		private final boolean exclusive;
+		private final FileLock fileLock;
+		private final SharedFileLock sharedFileLock;
+
+		private Held(int stripe, String path, boolean exclusive,
+				FileLock fileLock, SharedFileLock sharedFileLock) {
+			this.stripe = stripe;
+			this.path = path;
+			this.exclusive = exclusive;
+			this.fileLock = fileLock;
+			this.sharedFileLock = sharedFileLock;
+		}
+
+		public boolean isExclusive() {
+			return exclusive;
+		}
+
+		public void release() throws IOException {
+			try {
+				if (fileLock != null && fileLock.isValid()) {
+					fileLock.release();
+				}
+				if (sharedFileLock != null) {
+					releaseShared(stripe, path, sharedFileLock);
+				}
+			} finally {
+				if (exclusive) {
+					stripes[stripe].writeLock().unlock();
+				} else {
+					stripes[stripe].readLock().unlock();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package org.github.whisper4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Operational metrics of a {@link Whisper} instance: latencies of update,
+ * fetch, create and propagation, bytes read and written, points written,
+ * propagations done or skipped because of the xFilesFactor, and, when the
+ * Whisper has them, header cache, fetch cache and lock statistics.
+ *
+ * One metrics object may be given to several Whisper instances. All of them
+ * record into the same counters, and the cache and lock statistics are
+ * summed over the distinct caches and locks they use, so a cache shared by
+ * two instances is counted once.
+ *
+ * Counters are {@link LongAdder}s and latencies {@link LatencyHistogram}s, so
+ * recording takes no locks and can stay on at full ingest rate. The values
+ * can be read with {@link #snapshot()}, pushed to a {@link MetricsReporter}
+ * or browsed over JMX after {@link #register(String)}.
+ */
+public class WhisperMetrics implements DynamicMBean {
+	public static final String DOMAIN = "org.github.whisper4j";
+
+	final LatencyHistogram update = new LatencyHistogram();
+	final LatencyHistogram fetch = new LatencyHistogram();
+	final LatencyHistogram create = new LatencyHistogram();
+	final LatencyHistogram propagate = new LatencyHistogram();
+	final LongAdder bytesRead = new LongAdder();
+	final LongAdder bytesWritten = new LongAdder();
+	final LongAdder pointsWritten = new LongAdder();
+	final LongAdder propagations = new LongAdder();
+	final LongAdder propagationsSkipped = new LongAdder();
+
+	// Maintained by Whisper.setMetrics, for the cache and lock statistics
+	private final CopyOnWriteArrayList<Whisper> whispers = new CopyOnWriteArrayList<Whisper>();
+	private ObjectName objectName;
+	private ScheduledExecutorService reporting;
+
+	public LatencyHistogram getUpdateLatency() {
+		return update;
+	}
+
+	public LatencyHistogram getFetchLatency() {
+		return fetch;
+	}
+
+	public LatencyHistogram getCreateLatency() {
+		return create;
+	}
+
+	public LatencyHistogram getPropagateLatency() {
+		return propagate;
+	}
+
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	public long getPointsWritten() {
+		return pointsWritten.sum();
+	}
+
+	/**
+	 * Number of propagations to a lower archive that were attempted
+	 */
+	public long getPropagations() {
+		return propagations.sum();
+	}
+
+	/**
+	 * Number of propagations not written because too few of the higher
+	 * archive's points were known for the xFilesFactor
+	 */
+	public long getPropagationsSkipped() {
+		return propagationsSkipped.sum();
+	}
+
+	/**
+	 * All metrics by name, in a stable order. Latencies are in microseconds.
+	 */
+	public Map<String, Number> snapshot() {
+		Map<String, Number> values = new LinkedHashMap<String, Number>();
+		histogram(values, "update", update);
+		histogram(values, "fetch", fetch);
+		histogram(values, "create", create);
+		histogram(values, "propagate", propagate);
+		values.put("bytesRead", getBytesRead());
+		values.put("bytesWritten", getBytesWritten());
+		values.put("pointsWritten", getPointsWritten());
+		values.put("propagations", getPropagations());
+		values.put("propagationsSkipped", getPropagationsSkipped());
+		Set<HeaderCache> headerCaches = identitySet();
+		Set<FetchCache> fetchCaches = identitySet();
+		Set<WhisperLocks> locks = identitySet();
+		for (Whisper whisper : whispers) {
+			addIfSet(headerCaches, whisper.getHeaderCache());
+			addIfSet(fetchCaches, whisper.getFetchCache());
+			addIfSet(locks, whisper.getLocks());
+		}
+		if (!headerCaches.isEmpty()) {
+			long hits = 0;
+			long misses = 0;
+			for (HeaderCache cache : headerCaches) {
+				hits += cache.getHits();
+				misses += cache.getMisses();
+			}
+			values.put("headerCache.hits", hits);
+			values.put("headerCache.misses", misses);
+		}
+		if (!fetchCaches.isEmpty()) {
+			long hits = 0;
+			long tailReads = 0;
+			long misses = 0;
+			for (FetchCache cache : fetchCaches) {
+				hits += cache.getHits();
+				tailReads += cache.getTailReads();
+				misses += cache.getMisses();
+			}
+			values.put("fetchCache.hits", hits);
+			values.put("fetchCache.tailReads", tailReads);
+			values.put("fetchCache.misses", misses);
+		}
+		if (!locks.isEmpty()) {
+			long acquisitions = 0;
+			long waitNanos = 0;
+			for (WhisperLocks lock : locks) {
+				acquisitions += lock.getAcquisitions();
+				waitNanos += lock.getLockWaitNanos();
+			}
+			values.put("locks.acquisitions", acquisitions);
+			values.put("locks.waitMicros", waitNanos / 1000);
+		}
+		return values;
+	}
+
+	void attach(Whisper whisper) {
+		whispers.addIfAbsent(whisper);
+	}
+
+	void detach(Whisper whisper) {
+		whispers.remove(whisper);
+	}
+
+	private static <T> Set<T> identitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+
+	private static <T> void addIfSet(Set<T> set, T value) {
+		if (value != null) {
+			set.add(value);
+		}
+	}
+
+	private static void histogram(Map<String, Number> values, String name,
+			LatencyHistogram histogram) {
+		values.put(name + ".count", histogram.getCount());
+		values.put(name + ".meanMicros", histogram.getMeanNanos() / 1000);
+		values.put(name + ".p50Micros",
+				histogram.getPercentileNanos(0.5) / 1000);
+		values.put(name + ".p99Micros",
+				histogram.getPercentileNanos(0.99) / 1000);
+		values.put(name + ".maxMicros", histogram.getMaxNanos() / 1000);
+	}
+
+	/**
+	 * Calls reporter with a snapshot every period, on a daemon thread
+	 *
+	 * @param reporter
+	 * @param period
+	 * @param unit
+	 */
+	public synchronized void startReporting(final MetricsReporter reporter,
+			long period, TimeUnit unit) {
+		if (reporting != null) {
+			throw new IllegalStateException("already reporting");
+		}
+		reporting = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "whisper-metrics-reporter");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		reporting.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					reporter.report(Whisper.time(), snapshot());
+				} catch (RuntimeException e) {
+					// Keep reporting
+				}
+			}
+		}, period, period, unit);
+	}
+
+	public synchronized void stopReporting() {
+		if (reporting != null) {
+			reporting.shutdownNow();
+			reporting = null;
+		}
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server as
+	 * org.github.whisper4j:type=Whisper,name=&lt;name&gt;
+	 *
+	 * @param name
+	 * @throws JMException
+	 */
+	public synchronized void register(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=Whisper,name="
+				+ ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+		this.objectName = objectName;
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+			objectName = null;
+		}
+	}
+
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		Number value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> values = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Number value = values.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params,
+			String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Number> values = snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for (Map.Entry<String, Number> entry : values.entrySet()) {
+			attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry
+					.getValue().getClass().getName(), entry.getKey(), true,
+					false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Whisper metrics",
+				attributes, null, null, null);
+	}
+}
@@ -0,0 +1,393 @@
+package org.github.whisper4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Changes the archive layout of existing whisper files, like
+ * whisper-resize.py but without loading whole archives into memory.
+ *
+ * Every archive of the new file is filled from the highest precision old
+ * archive that covers each part of its time range. The old archive is read
+ * sequentially in chunks of at most {@link #CHUNK_POINTS} points and its
+ * points are aggregated into the new intervals on the fly, with the
+ * aggregation method and xFilesFactor of the new file, so memory use does
+ * not depend on the size of the file. The new file is written next to the
+ * old one and moved over it atomically, optionally keeping the old file as
+ * path.bak; the backup is a hard link to the old file where the file system
+ * allows, so keeping it costs no copy.
+ *
+ * The old file is locked exclusively while it is resized when the
+ * {@link Whisper} has {@link WhisperLocks}. Updates made through handles
+ * opened before the swap still go to the old file, so writers are best
+ * paused while their files are resized.
+ */
+public class WhisperResizer {
+	/** Points read from an old archive at a time */
+	public static final int CHUNK_POINTS = 4096;
+
+	/**
+	 * Receives progress of {@link WhisperResizer#resizeAll}
+	 */
+	public interface Listener {
+		/**
+		 * Called after every file, from the resizing threads
+		 *
+		 * @param path
+		 * @param error
+		 *            why the file could not be resized, or null
+		 * @param done
+		 *            number of files finished so far, including this one
+		 * @param total
+		 */
+		void resized(String path, Exception error, long done, long total);
+	}
+
+	private final Whisper whisper;
+	private boolean keepBackup = true;
+
+	/**
+	 * @param whisper
+	 *            whose locks, pool and caches are used and updated
+	 */
+	public WhisperResizer(Whisper whisper) {
+		this.whisper = whisper;
+	}
+
+	/**
+	 * Whether the old file is kept as path.bak, true by default
+	 */
+	public void setKeepBackup(boolean keepBackup) {
+		this.keepBackup = keepBackup;
+	}
+
+	public boolean isKeepBackup() {
+		return keepBackup;
+	}
+
+	/**
+	 * Resizes one file
+	 *
+	 * @param path
+	 * @param archiveList
+	 *            the new archives
+	 * @param xFilesFactor
+	 *            the new xFilesFactor, or null to keep the old one
+	 * @param aggregationMethod
+	 *            the new aggregation method, or null to keep the old one
+	 */
+	public void resize(String path, RetentionDef[] archiveList,
+			Float xFilesFactor, AggregationMethod aggregationMethod)
+			throws IOException, WhisperException {
+		WhisperFile old = new WhisperFile(path, true);
+		WhisperLocks locks = whisper.getLocks();
+		WhisperLocks.Held lock = locks == null ? null : locks
+				.lockExclusive(old);
+		File target = new File(path);
+		File temporary = null;
+		try {
+			// A name of its own, so concurrent resizes of path don't collide
+			temporary = Whisper.temporaryFile(path);
+			MetaData oldMetaData = old.getHeader().metadata;
+			float xff = xFilesFactor != null ? xFilesFactor
+					: oldMetaData.xFileFactor;
+			AggregationMethod method = aggregationMethod != null ? aggregationMethod
+					: AggregationMethod.fromInt(oldMetaData.aggregationType);
+
+			// Only the name was wanted, create refuses existing files
+			temporary.delete();
+			Whisper plain = new Whisper();
+			plain.setPreallocate(whisper.isPreallocate());
+			plain.create(temporary.getPath(), archiveList, xff, method);
+			WhisperFile resized = new WhisperFile(temporary.getPath(), true);
+			try {
+				copy(old, resized, xff, method);
+				resized.force();
+			} finally {
+				resized.close();
+			}
+
+			if (keepBackup) {
+				backup(target, new File(path + ".bak"));
+			}
+			Files.move(temporary.toPath(), target.toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+			whisper.replaced(path, resized.size());
+		} finally {
+			if (temporary != null) {
+				temporary.delete();
+			}
+			try {
+				if (lock != null) {
+					lock.release();
+				}
+			} finally {
+				old.close();
+			}
+		}
+	}
+
+	/**
+	 * Keeps the old file as backup. The move that follows gives path a new
+	 * inode, so a hard link keeps the old one without copying it.
+	 */
+	private static void backup(File target, File backup) throws IOException {
+		Files.deleteIfExists(backup.toPath());
+		try {
+			Files.createLink(backup.toPath(), target.toPath());
+		} catch (UnsupportedOperationException e) {
+			copy(target, backup);
+		} catch (IOException e) {
+			// No hard links on this file system
+			copy(target, backup);
+		}
+	}
+
+	private static void copy(File target, File backup) throws IOException {
+		Files.copy(target.toPath(), backup.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.COPY_ATTRIBUTES);
+	}
+
+	/**
+	 * Fills every archive of resized from the points of old
+	 */
+	private void copy(WhisperFile old, WhisperFile resized, float xff,
+			AggregationMethod method) throws CorruptWhisperFile,
+			InvalidAggregationMethodException {
+		long now = Whisper.time();
+		List<ArchiveInfo> oldArchives = old.getHeader().archiveInfo;
+		for (ArchiveInfo archive : resized.getHeader().archiveInfo) {
+			long step = archive.secondsPerPoint;
+			Writer writer = new Writer(resized, archive, xff, method);
+			long windowStart = now - archive.retention + step;
+			// Oldest data first, taken from the coarsest archive that still
+			// has it; boundaries are aligned to the new step so no new
+			// interval mixes two old archives
+			for (int i = oldArchives.size() - 1; i >= 0; i--) {
+				ArchiveInfo source = oldArchives.get(i);
+				long from = Math.max(windowStart, now - source.retention);
+				long until = i == 0 ? now + 1 : now
+						- oldArchives.get(i - 1).retention;
+				from = alignUp(from, step);
+				until = alignUp(until, step);
+				if (from < until) {
+					writer.expected = (int) Math.max(1, step
+							/ source.secondsPerPoint);
+					stream(old, source, from, until, writer);
+					writer.finish();
+				}
+			}
+		}
+	}
+
+	private static long alignUp(long t, long step) {
+		long mod = Whisper.mod(t, step);
+		return mod == 0 ? t : t + step - mod;
+	}
+
+	/**
+	 * Hands the known points of archive with timestamps in [from, until) to
+	 * writer in chronological order
+	 */
+	private static void stream(WhisperFile file, ArchiveInfo archive,
+			long from, long until, Writer writer)
+			throws InvalidAggregationMethodException {
+		long base = file.readTimestamp(archive.offset);
+		if (base == 0) {
+			return;
+		}
+		long step = archive.secondsPerPoint;
+		long first = alignUp(from, step);
+		long chunk = Math.min(CHUNK_POINTS, archive.points) * step;
+		ByteBuffer buffer = Whisper.scratch(Math.min(CHUNK_POINTS,
+				archive.points) * Point.sizeof());
+		for (long start = first; start < until; start += chunk) {
+			long end = Math.min(until, start + chunk);
+			end = alignUp(end, step);
+			int fromOffset = archive.offset
+					+ (int) Whisper.mod((start - base) / step * Point.sizeof(),
+							archive.size);
+			int untilOffset = archive.offset
+					+ (int) Whisper.mod((end - base) / step * Point.sizeof(),
+							archive.size);
+			buffer.clear();
+			file.readRange(archive, fromOffset, untilOffset, buffer);
+			buffer.flip();
+			long expected = start;
+			while (buffer.remaining() >= Point.sizeof() && expected < end) {
+				long timestamp = buffer.getInt() & 0xffffffffL;
+				double value = buffer.getDouble();
+				if (timestamp == expected && expected < until) {
+					writer.point(timestamp, value);
+				}
+				expected += step;
+			}
+		}
+	}
+
+	/**
+	 * Aggregates points into the intervals of one new archive and writes
+	 * them out
+	 */
+	private static class Writer {
+		final WhisperFile file;
+		final ArchiveInfo archive;
+		final float xff;
+		final AggregationMethod method;
+		final Aggregate aggregate = new Aggregate();
+		int expected = 1;
+		long interval = -1;
+		long base;
+
+		Writer(WhisperFile file, ArchiveInfo archive, float xff,
+				AggregationMethod method) {
+			this.file = file;
+			this.archive = archive;
+			this.xff = xff;
+			this.method = method;
+		}
+
+		void point(long timestamp, double value)
+				throws InvalidAggregationMethodException {
+			long aligned = timestamp
+					- Whisper.mod(timestamp, archive.secondsPerPoint);
+			if (aligned != interval) {
+				finish();
+				interval = aligned;
+			}
+			aggregate.add(value);
+		}
+
+		void finish() throws InvalidAggregationMethodException {
+			if (interval >= 0 && aggregate.isKnownEnough(xff, expected)) {
+				if (base == 0) {
+					// The archive is empty, the first point becomes its base
+					base = interval;
+				}
+				long distance = (interval - base) / archive.secondsPerPoint;
+				int offset = archive.offset
+						+ (int) Whisper.mod(distance * Point.sizeof(),
+								archive.size);
+				file.writePoint(offset, interval, aggregate.value(method));
+			}
+			aggregate.reset();
+			interval = -1;
+		}
+	}
+
+	/**
+	 * Resizes many files to the same layout on a pool of threads
+	 *
+	 * @return the files that could not be resized, with the reason
+	 * @throws InterruptedException
+	 */
+	public Map<String, Exception> resizeAll(Collection<String> paths,
+			final RetentionDef[] archiveList, final Float xFilesFactor,
+			final AggregationMethod aggregationMethod, int threads,
+			Listener listener) throws InterruptedException {
+		return resizeAll(paths, threads, listener, new Layout() {
+			public StorageSchema layoutFor(String path) {
+				return new StorageSchema(null, archiveList, 0,
+						aggregationMethod);
+			}
+
+			public Float xFilesFactorFor(StorageSchema schema) {
+				return xFilesFactor;
+			}
+		});
+	}
+
+	/**
+	 * Resizes many files to the layout their metric gets from the storage
+	 * schemas, on a pool of threads. Files without a schema are reported as
+	 * failures.
+	 *
+	 * @return the files that could not be resized, with the reason
+	 * @throws InterruptedException
+	 */
+	public Map<String, Exception> resizeAll(Collection<String> paths,
+			final StorageRules rules, int threads, Listener listener)
+			throws InterruptedException {
+		return resizeAll(paths, threads, listener, new Layout() {
+			public StorageSchema layoutFor(String path) {
+				String metric = rules.getMetricPaths().toMetric(path);
+				return metric == null ? null : rules.match(metric);
+			}
+
+			public Float xFilesFactorFor(StorageSchema schema) {
+				return schema.xFilesFactor;
+			}
+		});
+	}
+
+	private interface Layout {
+		StorageSchema layoutFor(String path);
+
+		Float xFilesFactorFor(StorageSchema schema);
+	}
+
+	private Map<String, Exception> resizeAll(Collection<String> paths,
+			int threads, final Listener listener, final Layout layout)
+			throws InterruptedException {
+		final Map<String, Exception> failures = new ConcurrentHashMap<String, Exception>();
+		final long total = paths.size();
+		final AtomicLong done = new AtomicLong();
+		final AtomicInteger count = new AtomicInteger();
+		// Bounded queue, the caller runs tasks when it is full
+		ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(
+						threads * 4), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "whisper-resize-"
+								+ count.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			for (final String path : paths) {
+				executor.execute(new Runnable() {
+					public void run() {
+						Exception error = null;
+						try {
+							StorageSchema schema = layout.layoutFor(path);
+							if (schema == null) {
+								throw new InvalidConfigurationException(
+										"No storage schema for " + path);
+							}
+							resize(path, schema.archives,
+									layout.xFilesFactorFor(schema),
+									schema.aggregationMethod);
+						} catch (Exception e) {
+							error = e;
+							failures.put(path, e);
+						}
+						long finished = done.incrementAndGet();
+						if (listener != null) {
+							listener.resized(path, error, finished, total);
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+		}
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		return failures;
+	}
+}
@@ -0,0 +1,373 @@
+package org.github.whisper4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory write-behind cache in front of {@link Whisper}, in the style
+ * of carbon-cache.
+ *
+ * Points are buffered per file and written by a pool of writer threads with
+ * {@link Whisper#update_many(String, List)}, so many points for the same file
+ * cost one write. Writers always take the files with the most pending points
+ * first. The number of buffered points is bounded; when the cache is full
+ * {@link #add(String, long, float)} either blocks until the writers catch up
+ * or drops the point, depending on the {@link OverflowPolicy}.
+ *
+ * Points that are buffered or being written can be read back with
+ * {@link #pendingPoints(String)}; a {@link Whisper} given this cache with
+ * {@link Whisper#setWriteBehindCache(WriteBehindCache)} merges them into
+ * what it fetches.
+ */
+public class WriteBehindCache implements PointSink, PendingPoints {
+	public enum OverflowPolicy {
+		/** Block the caller until there is room */
+		BLOCK,
+		/** Drop the point and return false */
+		DROP
+	}
+
+	// Idle writers are woken by add; the timeout is only a safety net
+	private static final long IDLE_WAIT_MILLIS = 1000;
+
+	private final Whisper whisper;
+	private final int maxPoints;
+	private final OverflowPolicy policy;
+	private final Thread[] writers;
+	private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+	// Files in the order the writers should take them, rebuilt when empty
+	private final LinkedList<String> schedule = new LinkedList<String>();
+	private final Object sizeLock = new Object();
+	private int size;
+	private volatile boolean accepting = true;
+	private volatile boolean running = true;
+
+	private final AtomicLong pointsWritten = new AtomicLong();
+	private final AtomicLong pointsDropped = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong writeErrors = new AtomicLong();
+	private volatile Exception lastError;
+
+	/**
+	 * @param whisper
+	 *            used for the writes
+	 * @param maxPoints
+	 *            maximum number of points buffered over all files
+	 * @param writerThreads
+	 *            number of threads writing to disk
+	 * @param policy
+	 *            what to do when maxPoints is reached
+	 */
+	public WriteBehindCache(Whisper whisper, int maxPoints, int writerThreads,
+			OverflowPolicy policy) {
+		if (maxPoints < 1 || writerThreads < 1) {
+			throw new IllegalArgumentException(
+					"maxPoints and writerThreads must be at least 1");
+		}
+		this.whisper = whisper;
+		this.maxPoints = maxPoints;
+		this.policy = policy;
+		this.writers = new Thread[writerThreads];
+		for (int i = 0; i < writerThreads; i++) {
+			writers[i] = new Thread(new Runnable() {
+				public void run() {
+					writeLoop();
+				}
+			}, "whisper-writer-" + i);
+			writers[i].setDaemon(true);
+		}
+	}
+
+	public void start() {
+		for (Thread writer : writers) {
+			writer.start();
+		}
+	}
+
+	/**
+	 * Buffers a point for the whisper file at path
+	 *
+	 * @param path
+	 * @param timestamp
+	 *            seconds since the epoch
+	 * @param value
+	 * @return false if the point was dropped because the cache is full
+	 * @throws InterruptedException
+	 *             when interrupted while waiting for room
+	 */
+	public boolean add(String path, long timestamp, float value)
+			throws InterruptedException {
+		if (!accepting) {
+			throw new IllegalStateException("cache is shut down");
+		}
+		if (!reserve()) {
+			pointsDropped.incrementAndGet();
+			return false;
+		}
+
+		Point point = new Point();
+		point.timestamp = timestamp;
+		point.value = value;
+		while (true) {
+			Pending entry = pending.get(path);
+			if (entry == null) {
+				Pending created = new Pending();
+				entry = pending.putIfAbsent(path, created);
+				if (entry == null) {
+					entry = created;
+				}
+			}
+			boolean first;
+			synchronized (entry) {
+				if (entry.removed) {
+					// Emptied and removed by a writer, try again
+					continue;
+				}
+				entry.points.add(point);
+				first = entry.count++ == 0;
+			}
+			if (first) {
+				// Nothing was waiting for this file, wake an idle writer
+				synchronized (schedule) {
+					schedule.notify();
+				}
+			}
+			return true;
+		}
+	}
+
+	private boolean reserve() throws InterruptedException {
+		synchronized (sizeLock) {
+			while (size >= maxPoints) {
+				if (policy == OverflowPolicy.DROP || !accepting) {
+					return false;
+				}
+				sizeLock.wait();
+			}
+			size++;
+			return true;
+		}
+	}
+
+	private void free(int points) {
+		synchronized (sizeLock) {
+			size -= points;
+			sizeLock.notifyAll();
+		}
+	}
+
+	private void writeLoop() {
+		while (true) {
+			String path;
+			try {
+				path = nextPath();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (path == null) {
+				if (!running && size() == 0) {
+					return;
+				}
+				continue;
+			}
+			flush(path);
+		}
+	}
+
+	private void flush(String path) {
+		Pending entry = pending.get(path);
+		if (entry == null) {
+			return;
+		}
+		List<Point> batch;
+		synchronized (entry) {
+			if (entry.writing || entry.points.isEmpty()) {
+				return;
+			}
+			batch = entry.points;
+			entry.points = new ArrayList<Point>();
+			entry.count = 0;
+			entry.writing = true;
+			entry.inFlight = batch;
+		}
+		try {
+			whisper.update_many(path, batch);
+			pointsWritten.addAndGet(batch.size());
+			writes.incrementAndGet();
+		} catch (Exception e) {
+			writeErrors.incrementAndGet();
+			lastError = e;
+		} finally {
+			synchronized (entry) {
+				entry.writing = false;
+				entry.inFlight = null;
+				if (entry.points.isEmpty()) {
+					entry.removed = true;
+					pending.remove(path, entry);
+				}
+			}
+			free(batch.size());
+		}
+	}
+
+	/**
+	 * A copy of the points for path that are buffered or being written, in
+	 * the order they were added. The copy is taken under the same short lock
+	 * {@link #add(String, long, float)} takes, never held across a write, so
+	 * readers do not hold up the writer threads. Points written to disk
+	 * after the copy was taken are still in it, so a reader that takes the
+	 * copy before reading the file misses none.
+	 *
+	 * @param path
+	 * @return the points, empty if there are none
+	 */
+	public List<Point> pendingPoints(String path) {
+		Pending entry = pending.get(path);
+		if (entry == null) {
+			return Collections.emptyList();
+		}
+		synchronized (entry) {
+			List<Point> inFlight = entry.inFlight;
+			int size = entry.points.size()
+					+ (inFlight == null ? 0 : inFlight.size());
+			if (size == 0) {
+				return Collections.emptyList();
+			}
+			List<Point> snapshot = new ArrayList<Point>(size);
+			if (inFlight != null) {
+				snapshot.addAll(inFlight);
+			}
+			snapshot.addAll(entry.points);
+			return snapshot;
+		}
+	}
+
+	/**
+	 * The next file to write, or null if there is nothing to do right now
+	 */
+	private String nextPath() throws InterruptedException {
+		synchronized (schedule) {
+			if (schedule.isEmpty()) {
+				// Sizes are read without locking, good enough for ordering
+				final Map<String, Integer> counts = new HashMap<String, Integer>();
+				for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+					Pending candidate = entry.getValue();
+					if (!candidate.writing && candidate.count > 0) {
+						counts.put(entry.getKey(), candidate.count);
+					}
+				}
+				if (counts.isEmpty()) {
+					schedule.wait(IDLE_WAIT_MILLIS);
+					return null;
+				}
+				List<String> paths = new ArrayList<String>(counts.keySet());
+				Collections.sort(paths, new Comparator<String>() {
+					public int compare(String a, String b) {
+						return counts.get(b).compareTo(counts.get(a));
+					}
+				});
+				schedule.addAll(paths);
+			}
+			return schedule.removeFirst();
+		}
+	}
+
+	/**
+	 * Stops accepting points, writes everything that is buffered and stops
+	 * the writer threads
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return true if everything was written within the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		accepting = false;
+		running = false;
+		synchronized (sizeLock) {
+			// Wake up callers blocked in add
+			sizeLock.notifyAll();
+		}
+		synchronized (schedule) {
+			// And idle writers, to drain and stop
+			schedule.notifyAll();
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Thread writer : writers) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline
+					- System.nanoTime());
+			if (remaining > 0 && writer.isAlive()) {
+				writer.join(remaining);
+			}
+		}
+		for (Thread writer : writers) {
+			if (writer.isAlive()) {
+				return false;
+			}
+		}
+		return size() == 0;
+	}
+
+	/**
+	 * Number of points buffered and not yet written
+	 */
+	public int size() {
+		synchronized (sizeLock) {
+			return size;
+		}
+	}
+
+	/**
+	 * Number of files with buffered points
+	 */
+	public int getPendingFiles() {
+		return pending.size();
+	}
+
+	public long getPointsWritten() {
+		return pointsWritten.get();
+	}
+
+	public long getPointsDropped() {
+		return pointsDropped.get();
+	}
+
+	/**
+	 * Number of update_many calls made
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+
+	public long getWriteErrors() {
+		return writeErrors.get();
+	}
+
+	/**
+	 * The last exception thrown by a write, points of failed writes are
+	 * dropped
+	 */
+	public Exception getLastError() {
+		return lastError;
+	}
+
+	private static class Pending {
+		List<Point> points = new ArrayList<Point>();
+		// The batch being written, still visible to pendingPoints
+		List<Point> inFlight;
+		// Read without locking when scheduling
+		volatile int count;
+		volatile boolean writing;
+		boolean removed;
+	}
+}
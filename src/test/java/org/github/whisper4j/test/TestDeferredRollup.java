@@ -0,0 +1,129 @@
+package org.github.whisper4j.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.DeferredRollup;
+import org.github.whisper4j.Point;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.UnitMultipliers;
+import org.github.whisper4j.Whisper;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class TestDeferredRollup {
+
+	private static double valueAt(TimeInfo timeInfo, long timestamp) {
+		for (Point point : timeInfo.points) {
+			if (point != null && point.timestamp == timestamp) {
+				return point.value;
+			}
+		}
+		return Double.NaN;
+	}
+
+	@Test
+	public void testRollupOncePerInterval() throws Exception {
+		String testFile = TestReadHeader.getWhistperFile(getClass(),
+				"deferred.wsp");
+		Util.delete(testFile);
+		Whisper jisper = new Whisper();
+		DeferredRollup rollup = new DeferredRollup(jisper, 10,
+				TimeUnit.MILLISECONDS);
+		jisper.setDeferredRollup(rollup);
+
+		RetentionDef[] defs = new RetentionDef[3];
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 1, UnitMultipliers.h);
+		defs[1] = RetentionDef.calc(5, UnitMultipliers.m, 1, UnitMultipliers.d);
+		defs[2] = RetentionDef.calc(15, UnitMultipliers.m, 7, UnitMultipliers.d);
+		jisper.create(testFile, defs, 0.5f, AggregationMethod.Average);
+
+		int now = Whisper.time();
+		long base = now - (now % 900) - 1800;
+		List<Point> points = new ArrayList<Point>();
+		for (int k = 0; k < 15; k++) {
+			Point point = new Point();
+			point.timestamp = base + 60 * k;
+			point.value = k;
+			points.add(point);
+		}
+		jisper.update_many(testFile, points.subList(0, 10));
+		jisper.update_many(testFile, points.subList(10, 15));
+
+		// Only the top archive is written so far
+		Assert.assertEquals(3, rollup.getDirtyIntervals());
+		TimeInfo fiveMinutes = jisper.fetch(testFile, now - 7200, now);
+		Assert.assertTrue(Double.isNaN(valueAt(fiveMinutes, base)));
+
+		rollup.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (rollup.getRollups() < 4 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		rollup.close();
+		Assert.assertEquals(0, rollup.getErrors());
+		// Three five minute intervals and the quarter they cascade into
+		Assert.assertEquals(4, rollup.getRollups());
+		Assert.assertEquals(0, rollup.getDirtyIntervals());
+		Assert.assertEquals(0, rollup.getDirtyFiles());
+
+		fiveMinutes = jisper.fetch(testFile, now - 7200, now);
+		Assert.assertEquals(2, valueAt(fiveMinutes, base), 0.0001);
+		Assert.assertEquals(7, valueAt(fiveMinutes, base + 300), 0.0001);
+		Assert.assertEquals(12, valueAt(fiveMinutes, base + 600), 0.0001);
+		TimeInfo quarters = jisper.fetch(testFile, now - 2 * 86400, now);
+		Assert.assertEquals(15 * 60, quarters.step);
+		Assert.assertEquals(7, valueAt(quarters, base), 0.0001);
+	}
+
+	@Test
+	public void testCascadeWaitsForOpenInterval() throws Exception {
+		int now = Whisper.time();
+		// Needs a closed five minute interval in the current day
+		Assume.assumeTrue(now % 86400 >= 600);
+		String testFile = TestReadHeader.getWhistperFile(getClass(),
+				"deferred_open.wsp");
+		Util.delete(testFile);
+		Whisper jisper = new Whisper();
+		DeferredRollup rollup = new DeferredRollup(jisper, 5,
+				TimeUnit.MILLISECONDS);
+		jisper.setDeferredRollup(rollup);
+
+		RetentionDef[] defs = new RetentionDef[3];
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 1, UnitMultipliers.h);
+		defs[1] = RetentionDef.calc(5, UnitMultipliers.m, 1, UnitMultipliers.d);
+		defs[2] = RetentionDef.calc(1, UnitMultipliers.d, 1, UnitMultipliers.y);
+		// One five minute point of a day would not pass any xFilesFactor
+		jisper.create(testFile, defs, 0f, AggregationMethod.Average);
+
+		long base = now - (now % 300) - 300;
+		List<Point> points = new ArrayList<Point>();
+		for (int k = 0; k < 5; k++) {
+			Point point = new Point();
+			point.timestamp = base + 60 * k;
+			point.value = k;
+			points.add(point);
+		}
+		jisper.update_many(testFile, points);
+
+		rollup.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (rollup.getRollups() < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		// Give it a few more rounds to roll up the open day, which it must not
+		Thread.sleep(100);
+		Assert.assertEquals(1, rollup.getRollups());
+		Assert.assertEquals(1, rollup.getDirtyIntervals());
+		Assert.assertEquals(1, rollup.getDirtyFiles());
+
+		rollup.close();
+		Assert.assertEquals(0, rollup.getErrors());
+		Assert.assertEquals(2, rollup.getRollups());
+		Assert.assertEquals(0, rollup.getDirtyFiles());
+	}
+}
@@ -0,0 +1,127 @@
+package org.github.whisper4j.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.FetchCache;
+import org.github.whisper4j.Point;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestFetchCache {
+
+	private String createFile(Whisper jisper, long base) throws Exception {
+		String testFile = Util.createFile(jisper, getClass(),
+				"fetch_cache.wsp", "1m:1h,10m:1d", 0f,
+				AggregationMethod.Average);
+		List<Point> points = new ArrayList<Point>();
+		for (int k = 0; k < 30; k++) {
+			points.add(Util.point(base + 60 * k, k));
+		}
+		jisper.update_many(testFile, points);
+		return testFile;
+	}
+
+	@Test
+	public void testHitsAndTailInvalidation() throws Exception {
+		Whisper jisper = new Whisper();
+		FetchCache cache = new FetchCache(100000);
+		jisper.setFetchCache(cache);
+		int now = Whisper.time();
+		long base = now - (now % 600) - 2400;
+		String testFile = createFile(jisper, base);
+		int from = (int) base - 1;
+		int until = (int) base + 1799;
+
+		TimeInfo first = jisper.fetchValues(testFile, from, until);
+		TimeInfo second = jisper.fetchValues(testFile, from, until);
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertArrayEquals(first.values, second.values, 0);
+		Assert.assertNotSame(first.values, second.values);
+
+		// Points come out as an uncached fetch makes them
+		TimeInfo points = jisper.fetch(testFile, from, until);
+		Whisper uncached = new Whisper();
+		TimeInfo expected = uncached.fetch(testFile, from, until);
+		for (int i = 0; i < expected.points.length; i++) {
+			Assert.assertEquals(expected.points[i].timestamp,
+					points.points[i].timestamp);
+			Assert.assertEquals(expected.points[i].value,
+					points.points[i].value, 0);
+		}
+
+		jisper.update(testFile, 100, base + 60 * 25);
+		TimeInfo third = jisper.fetchValues(testFile, from, until);
+		Assert.assertEquals(1, cache.getTailReads());
+		Assert.assertEquals(100, third.values[25], 0);
+		for (int k = 0; k < 30; k++) {
+			if (k != 25) {
+				Assert.assertEquals(k, third.values[k], 0);
+			}
+		}
+
+		// An update outside the range leaves it alone
+		jisper.update(testFile, 5, base + 1800);
+		jisper.fetchValues(testFile, from, until);
+		Assert.assertEquals(1, cache.getTailReads());
+	}
+
+	@Test
+	public void testPropagationInvalidatesLowerArchive() throws Exception {
+		Whisper jisper = new Whisper();
+		FetchCache cache = new FetchCache(100000);
+		jisper.setFetchCache(cache);
+		int now = Whisper.time();
+		long base = now - (now % 600) - 2400;
+		String testFile = createFile(jisper, base);
+		int from = (int) base - 4800;
+		int until = (int) base + 1799;
+
+		TimeInfo before = jisper.fetchValues(testFile, from, until);
+		Assert.assertEquals(600, before.step);
+		int slot = (int) ((base - before.fromInterval) / 600);
+		Assert.assertEquals(4.5, before.values[slot], 0.0001);
+
+		jisper.update(testFile, 1004.5f, base + 60 * 9);
+		TimeInfo after = jisper.fetchValues(testFile, from, until);
+		Assert.assertEquals(104.05, after.values[slot], 0.0001);
+		Assert.assertEquals(before.values[slot + 1], after.values[slot + 1],
+				0);
+	}
+
+	@Test
+	public void testHitsDoNotExtendExpiry() throws Exception {
+		String testFile = TestReadHeader.getWhistperFile(getClass(),
+				"fetch_cache_expiry.wsp");
+		Util.delete(testFile);
+		Whisper jisper = new Whisper();
+		jisper.setFetchCache(new FetchCache(100000));
+		// One second steps, so entries expire after a second
+		jisper.create(testFile, RetentionDef.parseRetentionDefs("1s:10m"),
+				0f, AggregationMethod.Average);
+		int now = Whisper.time();
+		int from = now - 300;
+		int until = now - 200;
+		long interval = from + 50;
+		jisper.update(testFile, 1, interval);
+		TimeInfo timeInfo = jisper.fetchValues(testFile, from, until);
+		int slot = (int) (interval - timeInfo.fromInterval);
+		Assert.assertEquals(1, timeInfo.values[slot], 0);
+
+		// Written by someone the cache does not hear from
+		new Whisper().update(testFile, 2, interval);
+		long deadline = System.currentTimeMillis() + 5000;
+		double value;
+		do {
+			// Fetched far more often than the step
+			Thread.sleep(50);
+			value = jisper.fetchValues(testFile, from, until).values[slot];
+		} while (value != 2 && System.currentTimeMillis() < deadline);
+		Assert.assertEquals(2, value, 0);
+	}
+}
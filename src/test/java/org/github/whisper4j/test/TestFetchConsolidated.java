@@ -0,0 +1,60 @@
+package org.github.whisper4j.test;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestFetchConsolidated {
+
+	private String createFile(Whisper jisper, long base) throws Exception {
+		String testFile = Util.createFile(jisper, getClass(),
+				"consolidated.wsp", "1m:1d,10m:7d", 0f, AggregationMethod.Sum);
+		jisper.update_many(testFile, Util.points(base, 60, 90, 1));
+		return testFile;
+	}
+
+	@Test
+	public void testConsolidatesHighPrecisionArchive() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		long base = now - (now % 600) - 6000;
+		String testFile = createFile(jisper, base);
+
+		TimeInfo timeInfo = jisper.fetchConsolidated(testFile, now - 7200,
+				now, 12, AggregationMethod.Average);
+		Assert.assertTrue(timeInfo.values.length <= 12);
+		Assert.assertEquals(0, timeInfo.step % 60);
+		Assert.assertTrue(timeInfo.step >= 600);
+		int known = 0;
+		for (double value : timeInfo.values) {
+			if (!Double.isNaN(value)) {
+				Assert.assertEquals(1, value, 0.0001);
+				known++;
+			}
+		}
+		Assert.assertTrue(known >= 8);
+
+		timeInfo = jisper.fetchConsolidated(testFile, now - 7200, now, 1000,
+				AggregationMethod.Max);
+		Assert.assertEquals(60, timeInfo.step);
+	}
+
+	@Test
+	public void testUsesLowerArchiveForSameFunction() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		long base = now - (now % 600) - 6000;
+		String testFile = createFile(jisper, base);
+
+		TimeInfo timeInfo = jisper.fetchConsolidated(testFile, now - 7200,
+				now, 12, AggregationMethod.Sum);
+		Assert.assertEquals(600, timeInfo.step);
+		Assert.assertTrue(timeInfo.values.length <= 13);
+		int first = (int) ((base - timeInfo.fromInterval) / 600);
+		for (int i = 0; i < 9; i++) {
+			Assert.assertEquals(10, timeInfo.values[first + i], 0.0001);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.github.whisper4j.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.DoublePredicate;
+import java.util.stream.StreamSupport;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.FetchSpliterator;
+import org.github.whisper4j.PointConsumer;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestFetchSpliterator {
+
+	private String createFile(Whisper jisper, long now) throws Exception {
+		String testFile = Util.createFile(jisper, getClass(), "stream.wsp",
+				"1m:1d", 0.5f, AggregationMethod.Average);
+		// Written first, so the ring buffer wraps within the day
+		jisper.update_many(testFile, Arrays.asList(Util.point(now - 600, 1)));
+		// Every other minute up to there
+		jisper.update_many(testFile,
+				Util.points(now - 86000, 120, (86000 - 600) / 120 + 1, 1));
+		return testFile;
+	}
+
+	@Test
+	public void testStreamMatchesFetch() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		String testFile = createFile(jisper, now);
+
+		TimeInfo expected = jisper.fetchValues(testFile, now - 86400, now);
+		final List<Double> values = new ArrayList<Double>();
+		final long[] last = new long[1];
+		FetchSpliterator spliterator = jisper.stream(testFile, now - 86400,
+				now, 100);
+		try {
+			Assert.assertEquals(expected.values.length,
+					spliterator.estimateSize());
+			spliterator.forEachRemaining(new PointConsumer() {
+				public void accept(long timestamp, double value) {
+					values.add(value);
+					last[0] = timestamp;
+				}
+			});
+		} finally {
+			spliterator.close();
+		}
+		Assert.assertEquals(expected.values.length, values.size());
+		for (int i = 0; i < values.size(); i++) {
+			Assert.assertEquals(expected.values[i], values.get(i), 0);
+		}
+		Assert.assertEquals(expected.untilInterval - expected.step, last[0]);
+	}
+
+	@Test
+	public void testEarlyTerminationAndParallelSum() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		String testFile = createFile(jisper, now);
+
+		FetchSpliterator spliterator = jisper.stream(testFile, now - 86400,
+				now, 64);
+		final int[] seen = new int[1];
+		PointConsumer counter = new PointConsumer() {
+			public void accept(long timestamp, double value) {
+				seen[0]++;
+			}
+		};
+		for (int i = 0; i < 5; i++) {
+			Assert.assertTrue(spliterator.tryAdvance(counter));
+		}
+		spliterator.close();
+		Assert.assertEquals(5, seen[0]);
+
+		TimeInfo expected = jisper.fetchValues(testFile, now - 86400, now);
+		double sum = 0;
+		for (double value : expected.values) {
+			if (!Double.isNaN(value)) {
+				sum += value;
+			}
+		}
+		spliterator = jisper.stream(testFile, now - 86400, now, 64);
+		try {
+			double streamed = StreamSupport.doubleStream(spliterator, true)
+					.filter(new DoublePredicate() {
+						public boolean test(double value) {
+							return !Double.isNaN(value);
+						}
+					}).sum();
+			Assert.assertEquals(sum, streamed, 0.0001);
+			Assert.assertTrue(sum > 700);
+		} finally {
+			spliterator.close();
+		}
+	}
+
+	@Test
+	public void testSplitsThrowOnceClosed() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		String testFile = createFile(jisper, now);
+
+		FetchSpliterator spliterator = jisper.stream(testFile, now - 86400,
+				now, 100);
+		FetchSpliterator prefix = spliterator.trySplit();
+		Assert.assertNotNull(prefix);
+		spliterator.close();
+		try {
+			prefix.tryAdvance(new PointConsumer() {
+				public void accept(long timestamp, double value) {
+				}
+			});
+			Assert.fail("Read from an unmapped file");
+		} catch (IllegalStateException expected) {
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package org.github.whisper4j.test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Header;
+import org.github.whisper4j.HeaderCache;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.UnitMultipliers;
+import org.github.whisper4j.Whisper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHeaderCache {
+
+	@Test
+	public void testReplacedFileIsNotServedFromCache() throws Exception {
+		String testFile = TestReadHeader.getWhistperFile(getClass(),
+				"header_cache.wsp");
+		Util.delete(testFile);
+
+		Whisper jisper = new Whisper();
+		// Check the file on every lookup
+		HeaderCache cache = new HeaderCache(100, 0);
+		jisper.setHeaderCache(cache);
+
+		RetentionDef[] defs = new RetentionDef[1];
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 1, UnitMultipliers.h);
+		jisper.create(testFile, defs, 0.5f, AggregationMethod.Average);
+
+		Header first = jisper.info(testFile);
+		Assert.assertSame(first, jisper.info(testFile));
+		Assert.assertEquals(1, cache.getHits());
+
+		// Replace the file behind the cache's back, as a resize would
+		Whisper other = new Whisper();
+		Util.delete(testFile);
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 2, UnitMultipliers.h);
+		other.create(testFile, defs, 0.5f, AggregationMethod.Average);
+
+		Header second = jisper.info(testFile);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(120, second.archiveInfo.get(0).points);
+		Assert.assertEquals(1, cache.getInvalidations());
+	}
+
+	@Test
+	public void testHeaderRewrittenInPlaceIsNotServedFromCache()
+			throws Exception {
+		Whisper jisper = new Whisper();
+		HeaderCache cache = new HeaderCache(100, 0);
+		jisper.setHeaderCache(cache);
+		String testFile = Util.createFile(jisper, getClass(),
+				"header_cache_in_place.wsp", "1m:1h", 0.5f,
+				AggregationMethod.Average);
+		Header first = jisper.info(testFile);
+
+		// Same inode and size, as whisper-set-aggregation-method leaves it
+		RandomAccessFile fh = new RandomAccessFile(testFile, "rw");
+		try {
+			fh.writeInt(AggregationMethod.Max.getIntValue());
+		} finally {
+			fh.close();
+		}
+		// Past the granularity of the file system's timestamps
+		Path path = Paths.get(testFile);
+		Files.setLastModifiedTime(path, FileTime.fromMillis(Files
+				.getLastModifiedTime(path).toMillis() + 2000));
+
+		Header second = jisper.info(testFile);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(AggregationMethod.Max.getIntValue(),
+				second.metadata.aggregationType);
+		Assert.assertEquals(1, cache.getInvalidations());
+	}
+
+	@Test
+	public void testTrustedWithinRevalidateInterval() throws Exception {
+		String testFile = TestReadHeader.getWhistperFile(getClass(),
+				"header_cache_interval.wsp");
+		Util.delete(testFile);
+
+		Whisper jisper = new Whisper();
+		HeaderCache cache = new HeaderCache(100, 60000);
+		jisper.setHeaderCache(cache);
+		RetentionDef[] defs = new RetentionDef[1];
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 1, UnitMultipliers.h);
+		jisper.create(testFile, defs, 0.5f, AggregationMethod.Average);
+		Header first = jisper.info(testFile);
+
+		// Not checked against the file until the interval has passed
+		Util.delete(testFile);
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 2, UnitMultipliers.h);
+		new Whisper().create(testFile, defs, 0.5f, AggregationMethod.Average);
+		Assert.assertSame(first, jisper.info(testFile));
+		Assert.assertEquals(0, cache.getInvalidations());
+
+		cache.invalidate(testFile);
+		Assert.assertEquals(1, cache.getInvalidations());
+		Assert.assertEquals(120,
+				jisper.info(testFile).archiveInfo.get(0).points);
+	}
+}
@@ -0,0 +1,82 @@
+package org.github.whisper4j.test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.MetricIndex;
+import org.github.whisper4j.MetricPaths;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.UnitMultipliers;
+import org.github.whisper4j.Whisper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMetricIndex {
+
+	@Test
+	public void testPatterns() {
+		MetricIndex index = new MetricIndex(new MetricPaths("/tmp/whisper"));
+		index.add("servers.web1.cpu.user");
+		index.add("servers.web1.cpu.system");
+		index.add("servers.web2.cpu.user");
+		index.add("servers.db1.cpu.user");
+		index.add("servers.db1.load");
+
+		Assert.assertEquals(5, index.size());
+		Assert.assertEquals(
+				Arrays.asList("servers.db1.cpu.user", "servers.web1.cpu.user",
+						"servers.web2.cpu.user"),
+				index.findMetrics("servers.*.cpu.user"));
+		Assert.assertEquals(
+				Arrays.asList("servers.web1.cpu.system"),
+				index.findMetrics("servers.web?.cpu.{system,idle}"));
+		Assert.assertEquals(
+				Arrays.asList("servers.web1.cpu.system",
+						"servers.web1.cpu.user"),
+				index.findMetrics("servers.web1.cpu.{user,system}"));
+		Assert.assertEquals(Arrays.asList("servers.web2.cpu.user"),
+				index.findMetrics("servers.web[!1].cpu.*"));
+		Assert.assertEquals(Arrays.asList("servers.web1", "servers.web2"),
+				index.find("servers.web[0-9]"));
+		Assert.assertEquals(Arrays.asList("servers.db1.cpu",
+				"servers.db1.load"), index.find("servers.db*.*"));
+		Assert.assertTrue(index.findMetrics("servers.web*").isEmpty());
+		Assert.assertTrue(index.isBranch("servers.db1"));
+
+		index.remove("servers.db1.load");
+		index.remove("servers.db1.cpu.user");
+		Assert.assertFalse(index.isBranch("servers.db1"));
+		Assert.assertEquals(Arrays.asList("servers.web1", "servers.web2"),
+				index.find("servers.*"));
+	}
+
+	@Test
+	public void testCreateAndRescan() throws Exception {
+		File root = new File(TestReadHeader.getWhistperFile(getClass(),
+				"index_root"));
+		MetricPaths paths = new MetricPaths(root.getPath());
+		new File(paths.toPath("a.b.c")).delete();
+		new File(paths.toPath("a.d")).delete();
+		new File(paths.toPath("a.d")).getParentFile().mkdirs();
+		new File(paths.toPath("a.b.c")).getParentFile().mkdirs();
+
+		MetricIndex index = new MetricIndex(paths);
+		Whisper jisper = new Whisper();
+		jisper.setMetricIndex(index);
+		RetentionDef[] defs = new RetentionDef[1];
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 1, UnitMultipliers.h);
+		jisper.create(paths.toPath("a.b.c"), defs, 0.5f,
+				AggregationMethod.Average);
+		Assert.assertTrue(index.contains("a.b.c"));
+
+		// Created behind the index's back
+		new Whisper().create(paths.toPath("a.d"), defs, 0.5f,
+				AggregationMethod.Average);
+		Assert.assertFalse(index.contains("a.d"));
+		index.rescan();
+		Assert.assertEquals(Arrays.asList("a.b.c", "a.d"),
+				index.findMetrics("a.{b.c,d}"));
+		Assert.assertEquals(Arrays.asList("a.b", "a.d"), index.find("a.*"));
+	}
+}
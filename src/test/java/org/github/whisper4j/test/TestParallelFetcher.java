@@ -0,0 +1,66 @@
+package org.github.whisper4j.test;
+
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.FetchResult;
+import org.github.whisper4j.ParallelFetcher;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.UnitMultipliers;
+import org.github.whisper4j.Whisper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestParallelFetcher {
+
+	@Test
+	public void testResultsInOrderWithFailures() throws Exception {
+		Whisper jisper = new Whisper();
+		RetentionDef[] defs = new RetentionDef[1];
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 1, UnitMultipliers.h);
+		int now = Whisper.time();
+		long timestamp = now - (now % 60) - 120;
+
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			String testFile = TestReadHeader.getWhistperFile(getClass(),
+					"fetch_many_" + i + ".wsp");
+			Util.delete(testFile);
+			jisper.create(testFile, defs, 0.5f, AggregationMethod.Average);
+			jisper.update(testFile, i, timestamp);
+			paths.add(testFile);
+		}
+		String corrupt = TestReadHeader.getWhistperFile(getClass(),
+				"fetch_many_corrupt.wsp");
+		FileOutputStream out = new FileOutputStream(corrupt);
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+		paths.add(5, corrupt);
+		paths.add(TestReadHeader.getWhistperFile(getClass(),
+				"fetch_many_missing.wsp"));
+
+		ParallelFetcher fetcher = new ParallelFetcher(jisper, 4);
+		try {
+			List<FetchResult> results = fetcher.fetchMany(paths,
+					(int) timestamp - 60, (int) timestamp + 60);
+			Assert.assertEquals(paths.size(), results.size());
+			int expected = 0;
+			for (int i = 0; i < results.size(); i++) {
+				FetchResult result = results.get(i);
+				Assert.assertEquals(paths.get(i), result.path);
+				if (i == 5 || i == results.size() - 1) {
+					Assert.assertFalse(result.isSuccess());
+					Assert.assertNotNull(result.error);
+					continue;
+				}
+				Assert.assertTrue(result.isSuccess());
+				Assert.assertEquals(expected++,
+						result.timeInfo.points[0].value, 0.0001);
+			}
+		} finally {
+			fetcher.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.github.whisper4j.test;
+
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.github.whisper4j.MetricPaths;
+import org.github.whisper4j.PlaintextReceiver;
+import org.github.whisper4j.PointSink;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPlaintextReceiver {
+
+	private static class CountingSink implements PointSink {
+		final AtomicInteger points = new AtomicInteger();
+		final Map<String, Float> last = new ConcurrentHashMap<String, Float>();
+		final Map<String, Long> timestamps = new ConcurrentHashMap<String, Long>();
+
+		public boolean add(String path, long timestamp, float value) {
+			last.put(path, value);
+			timestamps.put(path, timestamp);
+			points.incrementAndGet();
+			return true;
+		}
+	}
+
+	private static void await(CountingSink sink, int points) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (sink.points.get() < points
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testTcpAndUdp() throws Exception {
+		MetricPaths paths = new MetricPaths("/tmp/whisper");
+		CountingSink sink = new CountingSink();
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		PlaintextReceiver receiver = new PlaintextReceiver(paths, sink,
+				new InetSocketAddress(loopback, 0), new InetSocketAddress(
+						loopback, 0));
+		receiver.start();
+		try {
+			int lines = 20000;
+			Socket socket = new Socket(loopback, receiver.getTcpPort());
+			OutputStream out = socket.getOutputStream();
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < lines; i++) {
+				sb.append("servers.host").append(i % 100).append(".cpu ")
+						.append(i).append(".5 ").append(1000000 + i)
+						.append('\n');
+			}
+			// Bad lines are skipped, the last line has no newline
+			sb.append("no.value\n");
+			sb.append("bad..name 1 1000\n");
+			sb.append("servers.now -2.25 -1\r\n");
+			sb.append("servers.last 1e3 1234.75");
+			out.write(sb.toString().getBytes("UTF-8"));
+			socket.close();
+
+			DatagramSocket udp = new DatagramSocket();
+			byte[] datagram = "udp.a 1 100\nudp.b 2 200\n".getBytes("UTF-8");
+			udp.send(new DatagramPacket(datagram, datagram.length, loopback,
+					receiver.getUdpPort()));
+			udp.close();
+
+			await(sink, lines + 4);
+			Assert.assertEquals(lines + 4, sink.points.get());
+			Assert.assertEquals(2, receiver.getBadLines());
+			Assert.assertEquals(lines + 6, receiver.getLines());
+
+			String host99 = paths.toPath("servers.host99.cpu");
+			Assert.assertEquals(19999.5f, sink.last.get(host99), 0.0001);
+			Assert.assertEquals(1019999L, (long) sink.timestamps.get(host99));
+			Assert.assertEquals(-2.25f,
+					sink.last.get(paths.toPath("servers.now")), 0.0001);
+			Assert.assertTrue(sink.timestamps.get(paths.toPath("servers.now")) > 1000000000L);
+			Assert.assertEquals(1000f,
+					sink.last.get(paths.toPath("servers.last")), 0.0001);
+			Assert.assertEquals(1234L,
+					(long) sink.timestamps.get(paths.toPath("servers.last")));
+			Assert.assertEquals(2f, sink.last.get(paths.toPath("udp.b")),
+					0.0001);
+		} finally {
+			receiver.close();
+		}
+	}
+
+	@Test
+	public void testSinkFailureKeepsServing() throws Exception {
+		final MetricPaths paths = new MetricPaths("/tmp/whisper");
+		final String broken = paths.toPath("servers.broken");
+		CountingSink sink = new CountingSink() {
+			public boolean add(String path, long timestamp, float value) {
+				if (path.equals(broken)) {
+					throw new IllegalStateException("cache is shut down");
+				}
+				return super.add(path, timestamp, value);
+			}
+		};
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		PlaintextReceiver receiver = new PlaintextReceiver(paths, sink,
+				new InetSocketAddress(loopback, 0), null);
+		receiver.start();
+		try {
+			Socket first = new Socket(loopback, receiver.getTcpPort());
+			first.getOutputStream().write(
+					"servers.broken 1 1000\nservers.ok 2 1000\n"
+							.getBytes("UTF-8"));
+			first.close();
+			await(sink, 1);
+
+			// A later connection is still served
+			Socket second = new Socket(loopback, receiver.getTcpPort());
+			second.getOutputStream().write(
+					"servers.broken 3 1000\nservers.later 4 1000\n"
+							.getBytes("UTF-8"));
+			second.close();
+			await(sink, 2);
+
+			Assert.assertEquals(2, sink.points.get());
+			Assert.assertEquals(4f, sink.last.get(paths.toPath("servers.later")),
+					0.0001);
+			Assert.assertEquals(2, receiver.getSinkErrors());
+			Assert.assertTrue(receiver.getLastSinkError() instanceof IllegalStateException);
+		} finally {
+			receiver.close();
+		}
+	}
+}
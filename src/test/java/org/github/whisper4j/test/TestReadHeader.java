@@ -171,4 +171,28 @@ public class TestReadHeader {
 		// Assert.assertEquals(2,validPoints);
 	}
 
+	@Test
+	public void testFetchValues() throws Exception {
+		String testFile = getWhistperFile(getClass(), "out.wsp");
+
+		Whisper jisper = new Whisper();
+		TimeInfo points = jisper.fetch(testFile, Integer.MIN_VALUE,
+				Integer.MAX_VALUE);
+		TimeInfo values = jisper.fetchValues(testFile, Integer.MIN_VALUE,
+				Integer.MAX_VALUE);
+		Assert.assertNull(values.points);
+		Assert.assertEquals(points.fromInterval, values.fromInterval);
+		Assert.assertEquals(points.step, values.step);
+		Assert.assertEquals(points.points.length, values.values.length);
+
+		for (int i = 0; i < values.values.length; i++) {
+			Point point = points.points[i];
+			if (point == null || point.timestamp == 0) {
+				Assert.assertTrue(Double.isNaN(values.values[i]));
+			} else {
+				Assert.assertEquals(point.value, values.values[i], 0.00001);
+			}
+		}
+	}
+
 }
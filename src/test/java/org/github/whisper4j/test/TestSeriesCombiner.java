@@ -0,0 +1,113 @@
+package org.github.whisper4j.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Point;
+import org.github.whisper4j.SeriesCombiner;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSeriesCombiner {
+
+	private static TimeInfo series(long from, long step, double... values) {
+		TimeInfo timeInfo = new TimeInfo(from, from + step * values.length,
+				step);
+		timeInfo.values = values;
+		return timeInfo;
+	}
+
+	@Test
+	public void testAlignsStepsAndCombines() throws Exception {
+		long from = 1200000;
+		TimeInfo a = series(from, 60, 1, 2, Double.NaN, 4);
+		// Same values as Point[], as returned by fetch
+		TimeInfo b = new TimeInfo(from, from + 240, 120);
+		b.points = new Point[2];
+		b.points[0] = new Point();
+		b.points[0].timestamp = from;
+		b.points[0].value = 10;
+		b.points[1] = new Point();
+		b.points[1].timestamp = from + 120;
+		b.points[1].value = 20;
+		TimeInfo c = series(from + 240, 120, 7);
+		List<TimeInfo> all = Arrays.asList(a, b, c);
+
+		SeriesCombiner combiner = new SeriesCombiner();
+		TimeInfo sum = combiner.sum(all);
+		Assert.assertEquals(120, sum.step);
+		Assert.assertEquals(from, sum.fromInterval);
+		Assert.assertEquals(from + 360, sum.untilInterval);
+		Assert.assertArrayEquals(new double[] { 11.5, 24, 7 }, sum.values,
+				0.0001);
+		Assert.assertArrayEquals(new double[] { 5.75, 12, 7 },
+				combiner.average(all).values, 0.0001);
+		Assert.assertArrayEquals(new double[] { 1.5, 4, 7 },
+				combiner.min(all).values, 0.0001);
+		Assert.assertArrayEquals(new double[] { 10, 20, 7 },
+				combiner.max(all).values, 0.0001);
+		Assert.assertArrayEquals(new double[] { 2, 2, 1 },
+				combiner.count(all).values, 0.0001);
+		Assert.assertArrayEquals(new double[] { 1.5, 4, 7 },
+				combiner.percentile(all, 50).values, 0.0001);
+		Assert.assertArrayEquals(new double[] { 10, 20, 7 },
+				combiner.percentile(all, 100).values, 0.0001);
+
+		TimeInfo empty = combiner.sum(Arrays.asList(series(from, 60,
+				Double.NaN)));
+		Assert.assertTrue(Double.isNaN(empty.values[0]));
+	}
+
+	@Test
+	public void testSkipsEmptySlotsOfFetchedSeries() throws Exception {
+		Whisper jisper = new Whisper();
+		String testFile = Util.createFile(jisper, getClass(),
+				"combine_gaps.wsp", "1m:1h", 0.5f, AggregationMethod.Average);
+		int now = Whisper.time();
+		long base = now - (now % 60) - 600;
+		jisper.update_many(testFile,
+				Arrays.asList(Util.point(base, 5), Util.point(base + 120, 3)));
+
+		// The minute in between comes back as an empty point
+		TimeInfo fetched = jisper.fetch(testFile, (int) base - 1,
+				(int) base + 179);
+		Assert.assertEquals(3, fetched.points.length);
+		List<TimeInfo> all = Arrays.asList(fetched);
+
+		SeriesCombiner combiner = new SeriesCombiner();
+		Assert.assertArrayEquals(new double[] { 1, 0, 1 },
+				combiner.count(all).values, 0);
+		Assert.assertArrayEquals(new double[] { 5, Double.NaN, 3 },
+				combiner.min(all).values, 0);
+		Assert.assertArrayEquals(new double[] { 5, Double.NaN, 3 },
+				combiner.average(all).values, 0);
+	}
+
+	@Test
+	public void testParallelMatchesSequential() throws Exception {
+		List<TimeInfo> all = new ArrayList<TimeInfo>();
+		for (int s = 0; s < 5; s++) {
+			double[] values = new double[50000];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = (i + s) % 7 == 0 ? Double.NaN : i * s;
+			}
+			all.add(series(600000, 60, values));
+		}
+		SeriesCombiner parallel = new SeriesCombiner(4);
+		SeriesCombiner sequential = new SeriesCombiner();
+		try {
+			Assert.assertArrayEquals(sequential.sum(all).values,
+					parallel.sum(all).values, 0);
+			Assert.assertArrayEquals(sequential.max(all).values,
+					parallel.max(all).values, 0);
+			Assert.assertArrayEquals(sequential.percentile(all, 90).values,
+					parallel.percentile(all, 90).values, 0);
+		} finally {
+			parallel.close();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package org.github.whisper4j.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.FetchResult;
+import org.github.whisper4j.MetricIndex;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.ShardedMetricPaths;
+import org.github.whisper4j.ShardedStorage;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WriteBehindCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestShardedStorage {
+
+	private static List<String> roots(int count) {
+		File root = new File(TestReadHeader.getWhistperFile(
+				TestShardedStorage.class, "shards"));
+		List<String> roots = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			roots.add(new File(root, "disk" + i).getPath());
+		}
+		return roots;
+	}
+
+	@Test
+	public void testStableBalancedPlacement() throws Exception {
+		ShardedMetricPaths four = new ShardedMetricPaths(roots(4));
+		ShardedMetricPaths again = new ShardedMetricPaths(roots(4));
+		ShardedMetricPaths five = new ShardedMetricPaths(roots(5));
+		int[] counts = new int[4];
+		int moved = 0;
+		for (int i = 0; i < 1000; i++) {
+			String metric = "servers.web" + i + ".cpu";
+			int shard = four.shardFor(metric);
+			counts[shard]++;
+			Assert.assertEquals(shard, again.shardFor(metric));
+			String path = four.toPath(metric);
+			Assert.assertTrue(path.startsWith(four.getRoots().get(shard)));
+			Assert.assertEquals(shard, four.shardOf(path));
+			Assert.assertEquals(metric, four.toMetric(path));
+			if (five.shardFor(metric) != shard) {
+				// Only moves to the new disk
+				Assert.assertEquals(4, five.shardFor(metric));
+				moved++;
+			}
+		}
+		for (int count : counts) {
+			Assert.assertTrue(count > 150);
+		}
+		Assert.assertTrue(moved > 100 && moved < 300);
+	}
+
+	@Test
+	public void testWritesAndFetchesThroughShards() throws Exception {
+		ShardedMetricPaths paths = new ShardedMetricPaths(roots(3));
+		Whisper jisper = new Whisper();
+		List<String> metrics = new ArrayList<String>();
+		for (int i = 0; i < 12; i++) {
+			String metric = "app.node" + i + ".requests";
+			metrics.add(metric);
+			String path = paths.toPath(metric);
+			Util.delete(path);
+			new File(path).getParentFile().mkdirs();
+			jisper.create(path, RetentionDef.parseRetentionDefs("1m:1h"), 0f,
+					AggregationMethod.Average);
+		}
+
+		ShardedStorage storage = new ShardedStorage(paths, jisper, 1000, 1,
+				2, WriteBehindCache.OverflowPolicy.BLOCK);
+		jisper.setPendingPoints(storage);
+		int now = Whisper.time();
+		long base = now - (now % 60) - 600;
+		for (int i = 0; i < metrics.size(); i++) {
+			Assert.assertTrue(storage.addMetric(metrics.get(i), base, i));
+		}
+
+		// Buffered, not yet written, found on the right shard
+		TimeInfo pending = storage.fetchValues(metrics.get(7), (int) base - 60,
+				(int) base + 59);
+		Assert.assertEquals(7, pending.values[0], 0);
+
+		storage.start();
+		List<FetchResult> results = storage.fetchMany(metrics,
+				(int) base - 60, (int) base + 59);
+		for (int i = 0; i < metrics.size(); i++) {
+			FetchResult result = results.get(i);
+			Assert.assertTrue(result.isSuccess());
+			Assert.assertEquals(paths.toPath(metrics.get(i)), result.path);
+			Assert.assertEquals(i, result.timeInfo.points[0].value, 0);
+		}
+
+		Assert.assertTrue(storage.shutdown(10, TimeUnit.SECONDS));
+		jisper.setPendingPoints(null);
+		for (int i = 0; i < metrics.size(); i++) {
+			TimeInfo written = jisper.fetchValues(paths.toPath(metrics.get(i)),
+					(int) base - 60, (int) base + 59);
+			Assert.assertEquals(i, written.values[0], 0);
+		}
+
+		MetricIndex index = new MetricIndex(paths);
+		index.rescan();
+		Assert.assertEquals(12, index.findMetrics("app.*.requests").size());
+	}
+}
@@ -0,0 +1,111 @@
+package org.github.whisper4j.test;
+
+import java.io.File;
+import java.io.StringReader;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Header;
+import org.github.whisper4j.MetricPaths;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.StorageRules;
+import org.github.whisper4j.StorageSchema;
+import org.github.whisper4j.Whisper;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStorageRules {
+	private static final String SCHEMAS = "# Schema definitions\n"
+			+ "[carbon]\n" + "pattern = ^carbon\\.\n"
+			+ "retentions = 60:90d\n\n" + "[servers]\n"
+			+ "pattern = ^servers\\.(web|db)[0-9]+\\.\n"
+			+ "retentions = 10s:1d,1min:7d,10m:5y\n\n" + "[default]\n"
+			+ "pattern = .*\n" + "retentions = 1m:1d\n";
+	private static final String AGGREGATION = "[min]\n"
+			+ "pattern = \\.min$\n" + "xFilesFactor = 0.1\n"
+			+ "aggregationMethod = min\n\n" + "[count]\n"
+			+ "pattern = \\.count$\n" + "xFilesFactor = 0\n"
+			+ "aggregationMethod = sum\n";
+
+	@Test
+	public void testParseRetentionDef() {
+		RetentionDef def = RetentionDef.parseRetentionDef("60:1440");
+		Assert.assertEquals(60, def.secondsPerPoint);
+		Assert.assertEquals(1440, def.point);
+		def = RetentionDef.parseRetentionDef("1m:1d");
+		Assert.assertEquals(60, def.secondsPerPoint);
+		Assert.assertEquals(1440, def.point);
+		def = RetentionDef.parseRetentionDef("10min:2w");
+		Assert.assertEquals(600, def.secondsPerPoint);
+		Assert.assertEquals(2016, def.point);
+		def = RetentionDef.parseRetentionDef("1hours:1y");
+		Assert.assertEquals(3600, def.secondsPerPoint);
+		Assert.assertEquals(8760, def.point);
+		Assert.assertEquals(3,
+				RetentionDef.parseRetentionDefs("10s:1d,1m:7d,10m:5y").length);
+		try {
+			RetentionDef.parseRetentionDef("1q:1d");
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMatch() throws Exception {
+		StorageRules rules = StorageRules.parse(new MetricPaths("/tmp"),
+				new StringReader(SCHEMAS), new StringReader(AGGREGATION));
+
+		StorageSchema schema = rules.match("carbon.agents.a.cpu");
+		Assert.assertEquals("carbon", schema.name);
+		Assert.assertEquals(60, schema.archives[0].secondsPerPoint);
+		Assert.assertEquals(90 * 1440, schema.archives[0].point);
+		Assert.assertEquals(0.5f, schema.xFilesFactor, 0.0001);
+		Assert.assertEquals(AggregationMethod.Average,
+				schema.aggregationMethod);
+
+		schema = rules.match("servers.web12.latency.min");
+		Assert.assertEquals("servers", schema.name);
+		Assert.assertEquals(3, schema.archives.length);
+		Assert.assertEquals(AggregationMethod.Min, schema.aggregationMethod);
+		Assert.assertEquals(0.1f, schema.xFilesFactor, 0.0001);
+		// Memoized
+		Assert.assertSame(schema, rules.match("servers.web12.latency.min"));
+
+		schema = rules.match("servers.mail1.requests.count");
+		Assert.assertEquals("default", schema.name);
+		Assert.assertEquals(AggregationMethod.Sum, schema.aggregationMethod);
+		Assert.assertEquals(0f, schema.xFilesFactor, 0.0001);
+	}
+
+	@Test
+	public void testCreateOnFirstWrite() throws Exception {
+		File root = new File(TestReadHeader.getWhistperFile(getClass(),
+				"schemas_root"));
+		MetricPaths paths = new MetricPaths(root.getPath());
+		String path = paths.toPath("servers.db3.queries.count");
+		new File(path).delete();
+
+		Whisper jisper = new Whisper();
+		jisper.setStorageRules(StorageRules.parse(paths, new StringReader(
+				SCHEMAS), new StringReader(AGGREGATION)));
+		int now = Whisper.time();
+		jisper.update(path, 5, now - 30);
+		jisper.update(path, 6, now - 20);
+
+		Header header = jisper.info(path);
+		Assert.assertEquals(3, header.metadata.archiveCount);
+		Assert.assertEquals(AggregationMethod.Sum.getIntValue(),
+				header.metadata.aggregationType);
+		Assert.assertEquals(10, header.archiveInfo.get(0).secondsPerPoint);
+
+		// Without rules a missing file is still an error
+		String missing = paths.toPath("servers.db3.queries.missing");
+		new File(missing).delete();
+		try {
+			new Whisper().update(missing, 1, now);
+			Assert.fail();
+		} catch (java.io.FileNotFoundException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package org.github.whisper4j.test;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.ArchiveInfo;
+import org.github.whisper4j.Point;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WhisperFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestUpdateMany {
+
+	@Test
+	public void testUpdateManyAndPropagate() throws Exception {
+		Whisper jisper = new Whisper();
+		String testFile = Util.createFile(jisper, getClass(),
+				"update_many.wsp", "1m:1h,5m:1d", 0.5f,
+				AggregationMethod.Average);
+
+		int now = Whisper.time();
+		long base = now - (now % 300) - 1200;
+
+		// Newest first, with a second value for base+180 that must win
+		List<Point> points = new ArrayList<Point>();
+		for (int k = 9; k >= 0; k--) {
+			points.add(Util.point(base + 60 * k, k));
+		}
+		points.add(Util.point(base + 190, 3.5f));
+		jisper.update_many(testFile, points);
+
+		TimeInfo timeInfo = jisper.fetch(testFile, (int) base - 60,
+				(int) base + 540);
+		Assert.assertEquals(base, timeInfo.fromInterval);
+		Assert.assertEquals(60, timeInfo.step);
+		for (int k = 0; k < 10; k++) {
+			Point p = timeInfo.points[k];
+			Assert.assertEquals(base + 60 * k, p.timestamp);
+			Assert.assertEquals(k == 3 ? 3.5f : k, p.value, 0.0001);
+		}
+
+		// Both five minute intervals were propagated to the lower archive
+		TimeInfo lower = jisper.fetch(testFile, now - 7200, now);
+		Assert.assertEquals(300, lower.step);
+		int first = (int) ((base - lower.fromInterval) / 300);
+		Assert.assertEquals(base, lower.points[first].timestamp);
+		Assert.assertEquals(2.1f, lower.points[first].value, 0.0001);
+		Assert.assertEquals(base + 300, lower.points[first + 1].timestamp);
+		Assert.assertEquals(7f, lower.points[first + 1].value, 0.0001);
+	}
+
+	@Test
+	public void testWrapAround() throws Exception {
+		Whisper jisper = new Whisper();
+		String testFile = Util.createFile(jisper, getClass(),
+				"update_many_wrap.wsp", "1m:1h,5m:1d", 0.5f,
+				AggregationMethod.Average);
+		ArchiveInfo archive = jisper.info(testFile).archiveInfo.get(0);
+
+		int now = Whisper.time();
+		long base = now - (now % 60) - 3540;
+		List<Point> points = new ArrayList<Point>();
+		points.add(Util.point(base, 1));
+		jisper.update_many(testFile, points);
+
+		// A run from slot 58 to slot 62 wraps back to the start of the archive
+		points.clear();
+		for (int k = 58; k <= 62; k++) {
+			points.add(Util.point(base + 60 * k, k));
+		}
+		jisper.update_many(testFile, points);
+
+		RandomAccessFile fh = new RandomAccessFile(testFile, "r");
+		try {
+			Point slot0 = Whisper.readPoint(fh, archive.offset);
+			Assert.assertEquals(base + 60 * 60, slot0.timestamp);
+			Assert.assertEquals(60f, slot0.value, 0.0001);
+			Point slot2 = Whisper.readPoint(fh, archive.offset + 2
+					* Point.sizeof());
+			Assert.assertEquals(base + 60 * 62, slot2.timestamp);
+			Point slot59 = Whisper.readPoint(fh, archive.offset + 59
+					* Point.sizeof());
+			Assert.assertEquals(base + 60 * 59, slot59.timestamp);
+			Assert.assertEquals(59f, slot59.value, 0.0001);
+		} finally {
+			fh.close();
+		}
+
+		// The wrapped run reads back through a single direct buffer
+		WhisperFile file = new WhisperFile(testFile, false);
+		try {
+			int from = archive.offset + 58 * Point.sizeof();
+			int until = archive.offset + 3 * Point.sizeof();
+			ByteBuffer dst = ByteBuffer.allocateDirect(WhisperFile
+					.rangeLength(archive, from, until));
+			Assert.assertEquals(5 * Point.sizeof(),
+					file.readRange(archive, from, until, dst));
+			dst.flip();
+			double[] values = Whisper.unpackValues(dst, (int) base + 58 * 60,
+					60);
+			for (int k = 0; k < 5; k++) {
+				Assert.assertEquals(58 + k, values[k], 0.0001);
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test
+	public void testMaxOfNegativeValues() throws Exception {
+		Whisper jisper = new Whisper();
+		String testFile = Util.createFile(jisper, getClass(),
+				"update_many_max.wsp", "1m:1h,5m:1d", 0.5f,
+				AggregationMethod.Max);
+
+		int now = Whisper.time();
+		long base = now - (now % 300) - 1200;
+		List<Point> points = new ArrayList<Point>();
+		for (int k = 0; k < 5; k++) {
+			points.add(Util.point(base + 60 * k, -5 + k));
+		}
+		jisper.update_many(testFile, points);
+
+		TimeInfo lower = jisper.fetchValues(testFile, now - 7200, now);
+		int first = (int) ((base - lower.fromInterval) / 300);
+		Assert.assertEquals(-1, lower.values[first], 0);
+	}
+}
@@ -0,0 +1,189 @@
+package org.github.whisper4j.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Header;
+import org.github.whisper4j.InvalidConfigurationException;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.UnitMultipliers;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WhisperCreator;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestWhisperCreator {
+
+	private static RetentionDef[] layout() {
+		RetentionDef[] defs = new RetentionDef[2];
+		defs[0] = RetentionDef.calc(10, UnitMultipliers.s, 1, UnitMultipliers.d);
+		defs[1] = RetentionDef.calc(1, UnitMultipliers.m, 7, UnitMultipliers.d);
+		return defs;
+	}
+
+	private static long expectedSize() {
+		return 16 + 2 * 12 + (8640 + 10080) * 12;
+	}
+
+	@Test
+	public void testSparseAndPreallocatedCreate() throws Exception {
+		for (boolean preallocate : new boolean[] { false, true }) {
+			String testFile = TestReadHeader.getWhistperFile(getClass(),
+					"create_" + preallocate + ".wsp");
+			Util.delete(testFile);
+			Whisper jisper = new Whisper();
+			jisper.setPreallocate(preallocate);
+			jisper.create(testFile, layout(), 0.5f, AggregationMethod.Max);
+			Assert.assertEquals(expectedSize(), new File(testFile).length());
+
+			Header header = jisper.info(testFile);
+			Assert.assertEquals(2, header.metadata.archiveCount);
+			int now = Whisper.time();
+			TimeInfo timeInfo = jisper.fetchValues(testFile, now - 3600, now);
+			for (double value : timeInfo.values) {
+				Assert.assertTrue(Double.isNaN(value));
+			}
+		}
+	}
+
+	@Test
+	public void testParallelCloneFromTemplate() throws Exception {
+		File root = new File(TestReadHeader.getWhistperFile(getClass(),
+				"creator"));
+		File templates = new File(root, "templates");
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			File file = new File(root, "metrics/host" + (i % 5) + "/m" + i
+					+ ".wsp");
+			file.delete();
+			paths.add(file.getPath());
+		}
+		Whisper jisper = new Whisper();
+		jisper.setPreallocate(true);
+		new File(paths.get(0)).getParentFile().mkdirs();
+		jisper.create(paths.get(0), layout(), 0.5f, AggregationMethod.Max);
+
+		WhisperCreator creator = new WhisperCreator(jisper, 4, 0, templates);
+		try {
+			Map<String, Exception> failures = creator.createAll(paths,
+					layout(), 0.5f, AggregationMethod.Max);
+			Assert.assertTrue(failures.toString(), failures.isEmpty());
+		} finally {
+			creator.close();
+		}
+		Assert.assertEquals(49, creator.getCreated());
+		Assert.assertEquals(49, creator.getCloned());
+		Assert.assertEquals(1, creator.getSkipped());
+		for (String path : paths) {
+			Assert.assertEquals(expectedSize(), new File(path).length());
+			Assert.assertEquals(AggregationMethod.Max.getIntValue(), jisper
+					.info(path).metadata.aggregationType);
+		}
+		jisper.update(paths.get(7), 42, Whisper.time() - 20);
+	}
+
+	@Test
+	public void testSparseFilesSkipTemplates() throws Exception {
+		File root = new File(TestReadHeader.getWhistperFile(getClass(),
+				"creator_sparse"));
+		File templates = new File(root, "templates");
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 4; i++) {
+			File file = new File(root, "m" + i + ".wsp");
+			file.delete();
+			paths.add(file.getPath());
+		}
+		WhisperCreator creator = new WhisperCreator(new Whisper(), 2, 0,
+				templates);
+		try {
+			Assert.assertTrue(creator.createAll(paths, layout(), 0.5f,
+					AggregationMethod.Average).isEmpty());
+		} finally {
+			creator.close();
+		}
+		Assert.assertEquals(4, creator.getCreated());
+		Assert.assertEquals(0, creator.getCloned());
+		Assert.assertFalse(templates.exists());
+	}
+
+	@Test
+	public void testConcurrentCreatesKeepOneFile() throws Exception {
+		final String testFile = TestReadHeader.getWhistperFile(getClass(),
+				"create_race.wsp");
+		Util.delete(testFile);
+		final Whisper jisper = new Whisper();
+		final AtomicInteger created = new AtomicInteger();
+		final CountDownLatch go = new CountDownLatch(1);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						go.await();
+						jisper.create(testFile, layout(), 0.5f,
+								AggregationMethod.Max);
+						created.incrementAndGet();
+					} catch (InvalidConfigurationException e) {
+						// Lost the race
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		go.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(1, created.get());
+		Assert.assertEquals(expectedSize(), new File(testFile).length());
+
+		// Creating over it leaves the file and its data alone
+		long interval = Whisper.time() - 30;
+		jisper.update(testFile, 42, interval);
+		try {
+			jisper.create(testFile, layout(), 0.5f, AggregationMethod.Max);
+			Assert.fail("created over an existing file");
+		} catch (InvalidConfigurationException expected) {
+		}
+		TimeInfo timeInfo = jisper.fetch(testFile, (int) interval - 10,
+				(int) interval + 10);
+		Assert.assertEquals(42, timeInfo.points[0].value, 0);
+		// No temporary files left behind
+		for (String name : new File(testFile).getAbsoluteFile()
+				.getParentFile().list()) {
+			Assert.assertFalse(name, name.endsWith(".tmp"));
+		}
+	}
+
+	@Test
+	public void testRateLimit() throws Exception {
+		File root = new File(TestReadHeader.getWhistperFile(getClass(),
+				"creator_rate"));
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 6; i++) {
+			File file = new File(root, "m" + i + ".wsp");
+			file.delete();
+			paths.add(file.getPath());
+		}
+		WhisperCreator creator = new WhisperCreator(new Whisper(), 4, 20,
+				null);
+		long start = System.nanoTime();
+		try {
+			Assert.assertTrue(creator.createAll(paths, layout(), 0.5f,
+					AggregationMethod.Average).isEmpty());
+		} finally {
+			creator.close();
+		}
+		// Six files at 20 per second take at least a quarter second
+		Assert.assertTrue(System.nanoTime() - start >= 240000000L);
+		Assert.assertEquals(6, creator.getCreated());
+	}
+}
@@ -0,0 +1,166 @@
+package org.github.whisper4j.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.HeaderCache;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WhisperFile;
+import org.github.whisper4j.WhisperFilePool;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class TestWhisperFilePool {
+
+	@Test
+	public void testEvictionAndCounters() throws Exception {
+		Whisper jisper = new Whisper();
+		String a = Util.createFile(jisper, getClass(), "pool_a.wsp",
+				"1m:1h", 0.5f, AggregationMethod.Average);
+		String b = Util.createFile(jisper, getClass(), "pool_b.wsp",
+				"1m:1h", 0.5f, AggregationMethod.Average);
+
+		WhisperFilePool pool = new WhisperFilePool(1);
+		WhisperFile fileA = pool.acquire(a);
+		pool.release(fileA);
+		Assert.assertSame(fileA, pool.acquire(a));
+		pool.release(fileA);
+		Assert.assertEquals(1, pool.getHits());
+		Assert.assertEquals(1, pool.getMisses());
+
+		// Keep a in use while b evicts it
+		fileA = pool.acquire(a);
+		WhisperFile fileB = pool.acquire(b);
+		Assert.assertEquals(1, pool.getEvictions());
+		Assert.assertEquals(1, pool.getOpenCount());
+		Assert.assertTrue(fileA.getChannel().isOpen());
+
+		pool.release(fileA);
+		Assert.assertFalse(fileA.getChannel().isOpen());
+		pool.release(fileB);
+		Assert.assertTrue(fileB.getChannel().isOpen());
+
+		pool.close();
+		Assert.assertFalse(fileB.getChannel().isOpen());
+	}
+
+	@Test
+	public void testWhisperOnPool() throws Exception {
+		Whisper jisper = new Whisper();
+		String testFile = Util.createFile(jisper, getClass(),
+				"pool_update.wsp", "1m:1h", 0.5f, AggregationMethod.Average);
+		WhisperFilePool pool = new WhisperFilePool(10);
+		jisper.setFilePool(pool);
+
+		int now = Whisper.time();
+		long interval = now - (now % 60) - 120;
+		jisper.update(testFile, 42f, interval);
+		TimeInfo timeInfo = jisper.fetch(testFile, (int) interval - 60,
+				(int) interval + 60);
+		Assert.assertEquals(interval, timeInfo.points[0].timestamp);
+		Assert.assertEquals(42f, timeInfo.points[0].value, 0.0001);
+
+		Assert.assertEquals(1, pool.getMisses());
+		Assert.assertEquals(1, pool.getHits());
+		pool.close();
+	}
+
+	@Test
+	public void testReadsOpenReadOnly() throws Exception {
+		String testFile = Util.createFile(new Whisper(), getClass(),
+				"pool_read_only.wsp", "1m:1h", 0.5f,
+				AggregationMethod.Average);
+		WhisperFilePool pool = new WhisperFilePool(10);
+		WhisperFile reader = pool.acquire(testFile, false);
+		Assert.assertFalse(reader.isWritable());
+		// The first write replaces it, later reads share the writable one
+		WhisperFile writer = pool.acquire(testFile, true);
+		Assert.assertTrue(writer.isWritable());
+		Assert.assertSame(writer, pool.acquire(testFile, false));
+		pool.release(reader);
+		Assert.assertFalse(reader.getChannel().isOpen());
+		pool.release(writer);
+		pool.release(writer);
+		pool.close();
+	}
+
+	@Test
+	public void testReplacedFilesAreReopened() throws Exception {
+		Whisper jisper = new Whisper();
+		String testFile = Util.createFile(jisper, getClass(),
+				"pool_replaced.wsp", "1m:1h", 0.5f, AggregationMethod.Average);
+		jisper.setFilePool(new WhisperFilePool(10, 0));
+		jisper.setHeaderCache(new HeaderCache(100, 0));
+		int now = Whisper.time();
+		long interval = now - (now % 60) - 120;
+		jisper.update(testFile, 42f, interval);
+		Assert.assertEquals(42f, jisper.fetch(testFile, (int) interval - 60,
+				(int) interval + 60).points[0].value, 0.0001);
+
+		// Put in place by another tool, the way whisper-resize.py does
+		Whisper other = new Whisper();
+		String replacement = Util.createFile(other, getClass(),
+				"pool_replacement.wsp", "1m:2h", 0.5f,
+				AggregationMethod.Average);
+		other.update(replacement, 7f, interval);
+		Files.move(Paths.get(replacement), Paths.get(testFile),
+				StandardCopyOption.REPLACE_EXISTING);
+
+		Assert.assertEquals(120,
+				jisper.info(testFile).archiveInfo.get(0).points);
+		Assert.assertEquals(7f, jisper.fetch(testFile, (int) interval - 60,
+				(int) interval + 60).points[0].value, 0.0001);
+		jisper.getFilePool().close();
+	}
+
+	@Test
+	public void testClosedHandlesAreUnmapped() throws Exception {
+		File maps = new File("/proc/self/maps");
+		Assume.assumeTrue(maps.canRead());
+		Whisper jisper = new Whisper();
+		String testFile = new File(Util.createFile(jisper, getClass(),
+				"pool_unmap.wsp", "1m:1h", 0.5f, AggregationMethod.Average))
+				.getCanonicalPath();
+
+		WhisperFilePool pool = new WhisperFilePool(1);
+		WhisperFile file = pool.acquire(testFile);
+		Assert.assertTrue(mapped(maps, testFile));
+		pool.release(file);
+		pool.close();
+		// Gone without waiting for the garbage collector
+		Assert.assertFalse(mapped(maps, testFile));
+	}
+
+	@Test
+	public void testFileFetchReleasesItsMapping() throws Exception {
+		File maps = new File("/proc/self/maps");
+		Assume.assumeTrue(maps.canRead());
+		Whisper jisper = new Whisper();
+		String testFile = new File(Util.createFile(jisper, getClass(),
+				"pool_file_fetch.wsp", "1m:1h", 0.5f,
+				AggregationMethod.Average)).getCanonicalPath();
+
+		int now = Whisper.time();
+		RandomAccessFile fh = new RandomAccessFile(testFile, "r");
+		try {
+			jisper.file_fetch(testFile, fh, now - 600, now);
+			Assert.assertFalse(mapped(maps, testFile));
+			// The caller's handle is still good
+			Assert.assertTrue(fh.getChannel().isOpen());
+			jisper.file_fetch(testFile, fh, now - 600, now);
+		} finally {
+			fh.close();
+		}
+	}
+
+	private static boolean mapped(File maps, String path) throws Exception {
+		String content = new String(Files.readAllBytes(maps.toPath()), "UTF-8");
+		return content.contains(path);
+	}
+}
@@ -0,0 +1,168 @@
+package org.github.whisper4j.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.BlockDigests;
+import org.github.whisper4j.MetricPaths;
+import org.github.whisper4j.Point;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WhisperFill;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestWhisperFill {
+
+	private static void create(Whisper jisper, String path) throws Exception {
+		Util.createFile(jisper, path, "1m:1h,10m:1d", 0f, AggregationMethod.Sum);
+	}
+
+	@Test
+	public void testFillCopiesOnlyMissingPoints() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		long base = now - (now % 600) - 3000;
+		File root = new File(TestReadHeader.getWhistperFile(getClass(),
+				"fill"));
+		MetricPaths source = new MetricPaths(new File(root, "a").getPath());
+		MetricPaths destination = new MetricPaths(new File(root, "b").getPath());
+		String src = source.toPath("web.requests");
+		String dst = destination.toPath("web.requests");
+		String other = source.toPath("web.errors");
+		Util.delete(destination.toPath("web.errors"));
+		create(jisper, src);
+		create(jisper, dst);
+		create(jisper, other);
+
+		List<Point> all = new ArrayList<Point>();
+		List<Point> gaps = new ArrayList<Point>();
+		for (int k = 0; k < 30; k++) {
+			all.add(Util.point(base + 60 * k, 1));
+			if (k == 5) {
+				gaps.add(Util.point(base + 60 * k, 7));
+			} else if (k < 10 || k >= 20) {
+				gaps.add(Util.point(base + 60 * k, 1));
+			}
+		}
+		jisper.update_many(src, all);
+		jisper.update_many(dst, gaps);
+		jisper.update_many(other, all);
+
+		WhisperFill fill = new WhisperFill(jisper);
+		fill.setBlockPoints(16);
+		Map<String, Exception> failures = fill.fillTree(source, destination);
+		Assert.assertTrue(failures.toString(), failures.isEmpty());
+		Assert.assertEquals(10, fill.getPointsCopied());
+		Assert.assertEquals(1, fill.getFilesCopied());
+		Assert.assertTrue(fill.getBlocksDiffering() < fill.getBlocksCompared());
+
+		TimeInfo timeInfo = jisper.fetchValues(dst, (int) base - 1,
+				(int) base + 1740);
+		Assert.assertEquals(30, timeInfo.values.length);
+		for (int k = 0; k < 30; k++) {
+			Assert.assertEquals(k == 5 ? 7 : 1, timeInfo.values[k], 0.0001);
+		}
+		// Served by the 10 minute archive, recomputed after the fill
+		timeInfo = jisper.fetchValues(dst, now - 7200, (int) base + 1799);
+		int first = (int) ((base - timeInfo.fromInterval) / 600);
+		Assert.assertEquals(16, timeInfo.values[first], 0.0001);
+		Assert.assertEquals(10, timeInfo.values[first + 1], 0.0001);
+		Assert.assertEquals(10, timeInfo.values[first + 2], 0.0001);
+
+		Assert.assertTrue(new File(destination.toPath("web.errors")).exists());
+		// Published under its name, the temporary copy is gone
+		for (String name : new File(destination.toPath("web.errors"))
+				.getParentFile().list()) {
+			Assert.assertFalse(name, name.endsWith(".tmp"));
+		}
+		Assert.assertEquals(0, fill.fill(src, dst));
+	}
+
+	@Test
+	public void testRepeatFillReadsNoBlocks() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		long base = now - (now % 600) - 3000;
+		String src = TestReadHeader.getWhistperFile(getClass(), "repeat-src");
+		String dst = TestReadHeader.getWhistperFile(getClass(), "repeat-dst");
+		create(jisper, src);
+		create(jisper, dst);
+		List<Point> all = new ArrayList<Point>();
+		for (int k = 0; k < 30; k++) {
+			all.add(Util.point(base + 60 * k, 1));
+		}
+		jisper.update_many(src, all);
+		jisper.update_many(dst, all.subList(0, 10));
+
+		WhisperFill fill = new WhisperFill(jisper);
+		fill.setBlockPoints(16);
+		Assert.assertEquals(20, fill.fill(src, dst));
+		// The rolled up blocks are read once more
+		Assert.assertEquals(0, fill.fill(src, dst));
+		long read = fill.getBlocksRead();
+		long differing = fill.getBlocksDiffering();
+		Assert.assertEquals(0, fill.fill(src, dst));
+		Assert.assertEquals(read, fill.getBlocksRead());
+		Assert.assertEquals(differing, fill.getBlocksDiffering());
+	}
+
+	@Test
+	public void testEmptyBlocksDoNotDiffer() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		long timestamp = now - (now % 60) - 600;
+		String src = TestReadHeader.getWhistperFile(getClass(), "empty-src");
+		String dst = TestReadHeader.getWhistperFile(getClass(), "empty-dst");
+		create(jisper, src);
+		create(jisper, dst);
+		List<Point> one = new ArrayList<Point>();
+		one.add(Util.point(timestamp, 1));
+		jisper.update_many(src, one);
+
+		WhisperFill fill = new WhisperFill(jisper);
+		fill.setBlockPoints(16);
+		// Within the minute archive, rolled up into the other
+		Assert.assertEquals(1, fill.fill(src, dst));
+		// Only the blocks holding the point, one per archive at most
+		Assert.assertTrue(fill.getBlocksDiffering() <= 2);
+		Assert.assertTrue(fill.getBlocksCompared() > 2);
+	}
+
+	@Test
+	public void testFillWithExchangedDigests() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		long base = now - (now % 600) - 3000;
+		String src = TestReadHeader.getWhistperFile(getClass(), "exchange-src");
+		String dst = TestReadHeader.getWhistperFile(getClass(), "exchange-dst");
+		create(jisper, src);
+		create(jisper, dst);
+		List<Point> all = new ArrayList<Point>();
+		for (int k = 0; k < 30; k++) {
+			all.add(Util.point(base + 60 * k, 1));
+		}
+		jisper.update_many(src, all);
+
+		WhisperFill remote = new WhisperFill(jisper);
+		remote.setBlockPoints(16);
+		BlockDigests digests = remote.digests(src);
+		Assert.assertEquals(2, digests.getArchiveCount());
+
+		WhisperFill fill = new WhisperFill(jisper);
+		fill.setBlockPoints(16);
+		fill.setDigestCacheSize(0);
+		Assert.assertEquals(30, fill.fill(src, dst, digests));
+		Assert.assertEquals(0, fill.fill(src, dst, digests));
+
+		fill.setBlockPoints(32);
+		try {
+			fill.fill(src, dst, digests);
+			Assert.fail("Digests of other blocks were accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
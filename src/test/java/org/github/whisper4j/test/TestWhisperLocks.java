@@ -0,0 +1,100 @@
+package org.github.whisper4j.test;
+
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WhisperFile;
+import org.github.whisper4j.WhisperLocks;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestWhisperLocks {
+
+	@Test
+	public void testReadersShareTheFileLock() throws Exception {
+		String testFile = Util.createFile(new Whisper(), getClass(),
+				"locks_shared.wsp", "1m:1h", 0.5f, AggregationMethod.Average);
+		WhisperLocks locks = new WhisperLocks(16, true);
+
+		// Two handles on the same file must not trip over the JVM wide
+		// OverlappingFileLockException
+		WhisperFile a = new WhisperFile(testFile, false);
+		WhisperFile b = new WhisperFile(testFile, false);
+		WhisperLocks.Held lockA = locks.lockShared(a);
+		WhisperLocks.Held lockB = locks.lockShared(b);
+		lockB.release();
+		lockA.release();
+		a.close();
+		b.close();
+		Assert.assertEquals(2, locks.getAcquisitions());
+	}
+
+	@Test
+	public void testSharedLockOutlivesFirstReader() throws Exception {
+		String testFile = Util.createFile(new Whisper(), getClass(),
+				"locks_first_reader.wsp", "1m:1h", 0.5f,
+				AggregationMethod.Average);
+		WhisperLocks locks = new WhisperLocks(16, true);
+
+		WhisperFile first = new WhisperFile(testFile, false);
+		WhisperFile second = new WhisperFile(testFile, false);
+		WhisperLocks.Held lockFirst = locks.lockShared(first);
+		WhisperLocks.Held lockSecond = locks.lockShared(second);
+
+		// The first reader finishes and closes its handle
+		lockFirst.release();
+		first.close();
+
+		// Still held for the second one: an exclusive lock on another
+		// channel of this JVM overlaps it
+		WhisperFile writer = new WhisperFile(testFile, true);
+		try {
+			writer.getChannel().tryLock();
+			Assert.fail("shared lock was released with the first reader");
+		} catch (OverlappingFileLockException expected) {
+		}
+		lockSecond.release();
+		second.close();
+
+		// Released with the last reader
+		FileLock exclusive = writer.getChannel().tryLock();
+		Assert.assertNotNull(exclusive);
+		exclusive.release();
+		writer.close();
+	}
+
+	@Test
+	public void testExclusiveBlocksReaders() throws Exception {
+		String testFile = Util.createFile(new Whisper(), getClass(),
+				"locks_exclusive.wsp", "1m:1h", 0.5f, AggregationMethod.Average);
+		final WhisperLocks locks = new WhisperLocks(16, true);
+		final WhisperFile writer = new WhisperFile(testFile, true);
+		final WhisperFile reader = new WhisperFile(testFile, true);
+
+		WhisperLocks.Held exclusive = locks.lockExclusive(writer);
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					locks.lockShared(reader).release();
+					acquired.countDown();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.start();
+		Assert.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+		exclusive.release();
+		Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		thread.join();
+		Assert.assertTrue(locks.getLockWaitNanos() > 0);
+		writer.close();
+		reader.close();
+	}
+}
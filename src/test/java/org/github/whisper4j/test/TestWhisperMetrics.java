@@ -0,0 +1,143 @@
+package org.github.whisper4j.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.HeaderCache;
+import org.github.whisper4j.LatencyHistogram;
+import org.github.whisper4j.MetricsReporter;
+import org.github.whisper4j.Point;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.UnitMultipliers;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WhisperMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestWhisperMetrics {
+
+	@Test
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000);
+		}
+		Assert.assertEquals(100, histogram.getCount());
+		Assert.assertEquals(100000, histogram.getMaxNanos());
+		Assert.assertEquals(50500, histogram.getMeanNanos(), 0.001);
+		// Bucket upper bounds, within a factor of two of the exact values
+		long p50 = histogram.getPercentileNanos(0.5);
+		Assert.assertTrue(p50 >= 50000 && p50 < 100000);
+		Assert.assertEquals(100000, histogram.getPercentileNanos(0.99));
+	}
+
+	@Test
+	public void testRecording() throws Exception {
+		String testFile = TestReadHeader.getWhistperFile(getClass(),
+				"metrics.wsp");
+		Util.delete(testFile);
+		Whisper jisper = new Whisper();
+		WhisperMetrics metrics = new WhisperMetrics();
+		jisper.setMetrics(metrics);
+		jisper.setHeaderCache(new HeaderCache(100));
+
+		RetentionDef[] defs = new RetentionDef[2];
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 1, UnitMultipliers.h);
+		defs[1] = RetentionDef.calc(5, UnitMultipliers.m, 1, UnitMultipliers.d);
+		jisper.create(testFile, defs, 0.5f, AggregationMethod.Average);
+
+		int now = Whisper.time();
+		long base = now - (now % 300) - 600;
+		// One point out of five is below the xFilesFactor
+		jisper.update(testFile, 1, base);
+		List<Point> points = new ArrayList<Point>();
+		for (int k = 0; k < 5; k++) {
+			Point point = new Point();
+			point.timestamp = base + 300 + 60 * k;
+			point.value = k;
+			points.add(point);
+		}
+		jisper.update_many(testFile, points);
+		jisper.fetch(testFile, (int) base - 60, (int) base + 540);
+
+		Map<String, Number> snapshot = metrics.snapshot();
+		Assert.assertEquals(1L, snapshot.get("create.count"));
+		Assert.assertEquals(2L, snapshot.get("update.count"));
+		Assert.assertEquals(1L, snapshot.get("fetch.count"));
+		Assert.assertEquals(6L, snapshot.get("pointsWritten"));
+		Assert.assertEquals(2L, snapshot.get("propagations"));
+		Assert.assertEquals(1L, snapshot.get("propagationsSkipped"));
+		Assert.assertEquals(2L, snapshot.get("propagate.count"));
+		// Five points per propagation and ten for the fetch
+		Assert.assertEquals(20L * 12, snapshot.get("bytesRead"));
+		Assert.assertEquals(1L, snapshot.get("headerCache.misses"));
+		Assert.assertEquals(2L, snapshot.get("headerCache.hits"));
+		Assert.assertTrue(metrics.getBytesWritten() > 6 * 12);
+
+		metrics.register("test");
+		try {
+			ObjectName name = new ObjectName(
+					"org.github.whisper4j:type=Whisper,name=\"test\"");
+			Assert.assertEquals(6L, ManagementFactory.getPlatformMBeanServer()
+					.getAttribute(name, "pointsWritten"));
+		} finally {
+			metrics.unregister();
+		}
+
+		final CountDownLatch reported = new CountDownLatch(1);
+		metrics.startReporting(new MetricsReporter() {
+			public void report(long timestamp, Map<String, Number> values) {
+				if (values.get("fetch.count").longValue() == 1) {
+					reported.countDown();
+				}
+			}
+		}, 10, TimeUnit.MILLISECONDS);
+		try {
+			Assert.assertTrue(reported.await(5, TimeUnit.SECONDS));
+		} finally {
+			metrics.stopReporting();
+		}
+	}
+
+	@Test
+	public void testSharedBetweenInstances() throws Exception {
+		String testFile = TestReadHeader.getWhistperFile(getClass(),
+				"metrics_shared.wsp");
+		Util.delete(testFile);
+		WhisperMetrics metrics = new WhisperMetrics();
+		HeaderCache shared = new HeaderCache(100);
+		Whisper first = new Whisper();
+		first.setHeaderCache(shared);
+		first.setMetrics(metrics);
+		Whisper second = new Whisper();
+		second.setHeaderCache(shared);
+		second.setMetrics(metrics);
+		Whisper third = new Whisper();
+		third.setHeaderCache(new HeaderCache(100));
+		third.setMetrics(metrics);
+
+		RetentionDef[] defs = new RetentionDef[1];
+		defs[0] = RetentionDef.calc(1, UnitMultipliers.m, 1, UnitMultipliers.h);
+		first.create(testFile, defs, 0.5f, AggregationMethod.Average);
+		// A miss and a hit on the shared cache, a miss on the other one
+		first.info(testFile);
+		second.info(testFile);
+		third.info(testFile);
+
+		Map<String, Number> snapshot = metrics.snapshot();
+		Assert.assertEquals(1L, snapshot.get("create.count"));
+		Assert.assertEquals(1L, snapshot.get("headerCache.hits"));
+		Assert.assertEquals(2L, snapshot.get("headerCache.misses"));
+
+		// Moving an instance to other metrics takes its cache along
+		third.setMetrics(new WhisperMetrics());
+		Assert.assertEquals(1L, metrics.snapshot().get("headerCache.misses"));
+	}
+}
@@ -0,0 +1,123 @@
+package org.github.whisper4j.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.Header;
+import org.github.whisper4j.RetentionDef;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WhisperMetrics;
+import org.github.whisper4j.WhisperResizer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestWhisperResize {
+
+	private String createFile(Whisper jisper, String name, long base)
+			throws Exception {
+		String testFile = Util.createFile(jisper, getClass(), name,
+				"1m:1h,1h:1d", 0f, AggregationMethod.Sum);
+		Util.delete(testFile + ".bak");
+		jisper.update_many(testFile, Util.points(base, 60, 30, 1));
+		return testFile;
+	}
+
+	@Test
+	public void testResizeReaggregates() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		long base = now - (now % 300) - 3000;
+		String testFile = createFile(jisper, "resize.wsp", base);
+
+		long oldSize = new File(testFile).length();
+		WhisperMetrics metrics = new WhisperMetrics();
+		jisper.setMetrics(metrics);
+
+		RetentionDef[] defs = RetentionDef.parseRetentionDefs("5m:1d");
+		WhisperResizer resizer = new WhisperResizer(jisper);
+		resizer.resize(testFile, defs, null, null);
+		// Not a create
+		Assert.assertEquals(0, metrics.getCreateLatency().getCount());
+		Assert.assertTrue(metrics.getBytesWritten() > 0);
+
+		Header header = jisper.info(testFile);
+		Assert.assertEquals(1, header.metadata.archiveCount);
+		Assert.assertEquals(300, header.archiveInfo.get(0).secondsPerPoint);
+		Assert.assertEquals(AggregationMethod.Sum.getIntValue(),
+				header.metadata.aggregationType);
+		Assert.assertEquals(oldSize, new File(testFile + ".bak").length());
+		Assert.assertEquals(2,
+				jisper.info(testFile + ".bak").metadata.archiveCount);
+
+		TimeInfo timeInfo = jisper.fetchValues(testFile, (int) base - 1,
+				(int) base + 1799);
+		Assert.assertEquals(6, timeInfo.values.length);
+		for (double value : timeInfo.values) {
+			Assert.assertEquals(5, value, 0.0001);
+		}
+	}
+
+	@Test
+	public void testResizeAllReportsProgress() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		long base = now - (now % 600) - 3000;
+		String a = createFile(jisper, "resize_a.wsp", base);
+		String b = createFile(jisper, "resize_b.wsp", base);
+		String missing = TestReadHeader.getWhistperFile(getClass(),
+				"resize_missing.wsp");
+		Util.delete(missing);
+
+		WhisperResizer resizer = new WhisperResizer(jisper);
+		resizer.setKeepBackup(false);
+		final AtomicLong finished = new AtomicLong();
+		Map<String, Exception> failures = resizer.resizeAll(
+				Arrays.asList(a, b, missing),
+				RetentionDef.parseRetentionDefs("10m:1d"), 0.5f,
+				AggregationMethod.Average, 2, new WhisperResizer.Listener() {
+					public void resized(String path, Exception error,
+							long done, long total) {
+						Assert.assertEquals(3, total);
+						finished.incrementAndGet();
+					}
+				});
+		Assert.assertEquals(3, finished.get());
+		Assert.assertEquals(1, failures.size());
+		Assert.assertTrue(failures.containsKey(missing));
+		Assert.assertFalse(new File(a + ".bak").exists());
+
+		TimeInfo timeInfo = jisper.fetchValues(b, (int) base - 1,
+				(int) base + 1799);
+		Assert.assertEquals(3, timeInfo.values.length);
+		for (double value : timeInfo.values) {
+			Assert.assertEquals(1, value, 0.0001);
+		}
+		Assert.assertEquals(0.5f, jisper.info(b).metadata.xFileFactor, 0);
+	}
+
+	@Test
+	public void testConcurrentResizesOfOneFile() throws Exception {
+		Whisper jisper = new Whisper();
+		int now = Whisper.time();
+		long base = now - (now % 600) - 3000;
+		String testFile = createFile(jisper, "resize_twice.wsp", base);
+
+		WhisperResizer resizer = new WhisperResizer(jisper);
+		resizer.setKeepBackup(false);
+		// No locks, so both run at once
+		Map<String, Exception> failures = resizer.resizeAll(
+				Arrays.asList(testFile, testFile),
+				RetentionDef.parseRetentionDefs("10m:1d"), null, null, 2,
+				null);
+		Assert.assertTrue(failures.toString(), failures.isEmpty());
+		Assert.assertEquals(600,
+				jisper.info(testFile).archiveInfo.get(0).secondsPerPoint);
+		for (String name : new File(testFile).getParentFile().list()) {
+			Assert.assertFalse(name, name.startsWith(".resize_twice.wsp."));
+		}
+	}
+}
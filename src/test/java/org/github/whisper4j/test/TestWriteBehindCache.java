@@ -0,0 +1,140 @@
+package org.github.whisper4j.test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.github.whisper4j.AggregationMethod;
+import org.github.whisper4j.CorruptWhisperFile;
+import org.github.whisper4j.InvalidAggregationMethodException;
+import org.github.whisper4j.Point;
+import org.github.whisper4j.TimeInfo;
+import org.github.whisper4j.Whisper;
+import org.github.whisper4j.WriteBehindCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestWriteBehindCache {
+
+	@Test
+	public void testShutdownDrainsEverything() throws Exception {
+		Whisper jisper = new Whisper();
+		String a = Util.createFile(jisper, getClass(), "cache_a.wsp",
+				"1m:1h", 0.5f, AggregationMethod.Average);
+		String b = Util.createFile(jisper, getClass(), "cache_b.wsp",
+				"1m:1h", 0.5f, AggregationMethod.Average);
+
+		WriteBehindCache cache = new WriteBehindCache(jisper, 1000, 2,
+				WriteBehindCache.OverflowPolicy.BLOCK);
+		cache.start();
+
+		int now = Whisper.time();
+		long base = now - (now % 60) - 1200;
+		for (int k = 0; k < 20; k++) {
+			Assert.assertTrue(cache.add(a, base + 60 * k, k));
+			Assert.assertTrue(cache.add(b, base + 60 * k, 100 + k));
+		}
+		Assert.assertTrue(cache.shutdown(10, TimeUnit.SECONDS));
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(40, cache.getPointsWritten());
+		Assert.assertEquals(0, cache.getWriteErrors());
+
+		TimeInfo timeInfo = jisper.fetchValues(b, (int) base - 60,
+				(int) base + 1140);
+		for (int k = 0; k < 20; k++) {
+			Assert.assertEquals(100 + k, timeInfo.values[k], 0.0001);
+		}
+	}
+
+	@Test
+	public void testIdleWritersWakeOnAdd() throws Exception {
+		Whisper jisper = new Whisper();
+		String testFile = Util.createFile(jisper, getClass(), "cache_wake.wsp",
+				"1m:1h", 0.5f, AggregationMethod.Average);
+		WriteBehindCache cache = new WriteBehindCache(jisper, 1000, 1,
+				WriteBehindCache.OverflowPolicy.BLOCK);
+		cache.start();
+		// Let the writer go idle
+		Thread.sleep(200);
+
+		int now = Whisper.time();
+		long start = System.nanoTime();
+		cache.add(testFile, now - (now % 60) - 60, 1);
+		while (cache.getPointsWritten() == 0
+				&& System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+			Thread.sleep(1);
+		}
+		// Well within the idle timeout, which is only a safety net
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS
+				.toNanos(500));
+		Assert.assertTrue(cache.shutdown(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testDropWhenFull() throws Exception {
+		WriteBehindCache cache = new WriteBehindCache(new Whisper(), 2, 1,
+				WriteBehindCache.OverflowPolicy.DROP);
+		// Writers not started, so nothing drains
+		Assert.assertTrue(cache.add("x.wsp", 1, 1));
+		Assert.assertTrue(cache.add("x.wsp", 2, 2));
+		Assert.assertFalse(cache.add("y.wsp", 3, 3));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(1, cache.getPointsDropped());
+		Assert.assertEquals(1, cache.getPendingFiles());
+	}
+
+	@Test
+	public void testFetchSeesPendingPoints() throws Exception {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Whisper slow = new Whisper() {
+			public void update_many(String path, List<Point> points)
+					throws IOException, CorruptWhisperFile,
+					InvalidAggregationMethodException {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				super.update_many(path, points);
+			}
+		};
+		String testFile = Util.createFile(slow, getClass(),
+				"cache_pending.wsp", "1m:1h", 0.5f, AggregationMethod.Average);
+		WriteBehindCache cache = new WriteBehindCache(slow, 1000, 1,
+				WriteBehindCache.OverflowPolicy.BLOCK);
+		Whisper reader = new Whisper();
+		reader.setWriteBehindCache(cache);
+
+		int now = Whisper.time();
+		long base = now - (now % 60) - 600;
+		cache.add(testFile, base, 1);
+		cache.add(testFile, base + 60, 2);
+		// Same interval, the later point wins
+		cache.add(testFile, base + 61, 3);
+
+		TimeInfo buffered = reader.fetchValues(testFile, (int) base - 60,
+				(int) base + 119);
+		Assert.assertEquals(1, buffered.values[0], 0);
+		Assert.assertEquals(3, buffered.values[1], 0);
+
+		// Still visible while the writer is busy with them
+		cache.start();
+		Assert.assertTrue(writing.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(3, cache.pendingPoints(testFile).size());
+		TimeInfo inFlight = reader.fetch(testFile, (int) base - 60,
+				(int) base + 119);
+		Assert.assertEquals(base, inFlight.points[0].timestamp);
+		Assert.assertEquals(1, inFlight.points[0].value, 0);
+		Assert.assertEquals(3, inFlight.points[1].value, 0);
+
+		release.countDown();
+		Assert.assertTrue(cache.shutdown(10, TimeUnit.SECONDS));
+		Assert.assertTrue(cache.pendingPoints(testFile).isEmpty());
+		TimeInfo written = reader.fetchValues(testFile, (int) base - 60,
+				(int) base + 119);
+		Assert.assertEquals(3, written.values[1], 0);
+	}
+}
@@ -2,6 +2,8 @@ package org.github.whisper4j.test;
 
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import javax.swing.JTable.PrintMode;
@@ -32,6 +34,58 @@ public class Util {
 		}
 	}
 
+	/**
+	 * Creates a fresh whisper file at path, replacing any left over from an
+	 * earlier run
+	 * 
+	 * @param jisper
+	 * @param path
+	 * @param retentions
+	 *            as in storage-schemas.conf, like "1m:1h,10m:1d"
+	 * @param xFilesFactor
+	 * @param method
+	 * @return path
+	 */
+	public static String createFile(Whisper jisper, String path,
+			String retentions, float xFilesFactor, AggregationMethod method)
+			throws Exception {
+		delete(path);
+		new File(path).getAbsoluteFile().getParentFile().mkdirs();
+		jisper.create(path, RetentionDef.parseRetentionDefs(retentions),
+				xFilesFactor, method);
+		return path;
+	}
+
+	/**
+	 * Creates a fresh whisper file named name in the directory of test, see
+	 * {@link TestReadHeader#getWhistperFile(Class, String)}
+	 */
+	public static String createFile(Whisper jisper, Class<?> test,
+			String name, String retentions, float xFilesFactor,
+			AggregationMethod method) throws Exception {
+		return createFile(jisper, TestReadHeader.getWhistperFile(test, name),
+				retentions, xFilesFactor, method);
+	}
+
+	public static Point point(long timestamp, float value) {
+		Point point = new Point();
+		point.timestamp = timestamp;
+		point.value = value;
+		return point;
+	}
+
+	/**
+	 * count points of the same value, step seconds apart from base on
+	 */
+	public static List<Point> points(long base, long step, int count,
+			float value) {
+		List<Point> points = new ArrayList<Point>();
+		for (int k = 0; k < count; k++) {
+			points.add(point(base + step * k, value));
+		}
+		return points;
+	}
+
 	/**
 	 * Calls whisper-create.py with the given arguments
 	 * 